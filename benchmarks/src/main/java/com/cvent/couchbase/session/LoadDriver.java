@@ -0,0 +1,280 @@
+package com.cvent.couchbase.session;
+
+import com.couchbase.client.java.Bucket;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.jersey.api.core.DefaultResourceConfig;
+import com.sun.jersey.spi.container.servlet.ServletContainer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.DispatcherType;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.session.SessionHandler;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+
+/**
+ * Drives load through an embedded Jetty + Jersey server whose session manager stores sessions in an in-memory bucket,
+ * and reports throughput and latency percentiles. Each client thread has a session of its own.
+ *
+ * Options are given as name=value arguments:
+ * <ul>
+ * <li>threads: The number of client threads, 16 by default</li>
+ * <li>seconds: The number of seconds to measure for, 30 by default</li>
+ * <li>warmupSeconds: The number of seconds to run before measuring, 5 by default</li>
+ * <li>writeRatio: The fraction of requests that write to the session, 0.2 by default</li>
+ * <li>attributes: The number of attributes each session has, 16 by default</li>
+ * <li>latencyMicros: The median latency in usec of bucket operations, 500 by default</li>
+ * <li>latencySigma: How long the tail of the latency of bucket operations is, 0.5 by default</li>
+ * <li>timeoutRate: The fraction of bucket operations that time out, 0 by default</li>
+ * <li>errorRate: The fraction of bucket operations that fail, 0 by default</li>
+ * <li>replicaLagMillis: The number of msec the replica lags behind, 0 by default</li>
+ * <li>hedgePercentile: The percentile of read latencies after which reads are hedged, 0 (no hedging) by default</li>
+ * <li>hedgeMinDelayMillis: The min number of msec after which reads are hedged, 1 by default</li>
+ * <li>timeoutPercentile: The percentile of latencies that timeouts adapt to, 0 (the kv timeout) by default</li>
+ * <li>timeoutMultiplier: The multiple of that percentile after which calls time out, 3 by default</li>
+ * <li>breakerFailureRate: The share of failed calls that opens the circuit, 0 (no circuit breaker) by default</li>
+ * <li>breakerOpenMillis: The number of msec the circuit stays open, 1000 by default</li>
+ * <li>degradedWritePolicy: What to do with writes while the circuit is open, FAIL by default</li>
+ * <li>shards: The number of buckets sessions are spread across, 1 by default</li>
+ * <li>touchThreshold: The fraction of the max inactive interval between touches, 0 (every read) by default</li>
+ * <li>deltaThreshold: The max number of changed attributes written as a delta, 0 (no delta writes) by default</li>
+ * </ul>
+ */
+public final class LoadDriver {
+
+    private static final String COOKIE_NAME = "JSESSIONID";
+
+    private final Map<String, String> options;
+
+    private LoadDriver(Map<String, String> options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            String[] option = arg.split("=", 2);
+            if (option.length != 2) {
+                throw new IllegalArgumentException("Options must be given as name=value: " + arg);
+            }
+            options.put(option[0], option[1]);
+        }
+
+        new LoadDriver(options).run();
+    }
+
+    private void run() throws Exception {
+        List<Bucket> buckets = new ArrayList<>();
+        for (int i = 0; i < getLong("shards", 1); i++) {
+            InMemoryBucket bucket = new InMemoryBucket();
+            bucket.setLatency(Latency.logNormal(getLong("latencyMicros", 500), getDouble("latencySigma", 0.5)));
+            bucket.setFailureRates(getDouble("timeoutRate", 0), getDouble("errorRate", 0));
+            bucket.setReplicaLagMillis(getLong("replicaLagMillis", 0));
+            buckets.add(bucket.getBucket());
+        }
+
+        CouchbaseSessionManager manager = buckets.size() > 1
+                ? new CouchbaseSessionManager(SessionFixtures.KEY_PREFIX, new SessionShards(buckets),
+                        new ObjectMapper(), SessionFixtures.MAX_INACTIVE_INTERVAL)
+                : new CouchbaseSessionManager(SessionFixtures.KEY_PREFIX, buckets.get(0),
+                        new ObjectMapper(), SessionFixtures.MAX_INACTIVE_INTERVAL);
+        manager.enableHedgedReads(getDouble("hedgePercentile", 0), getLong("hedgeMinDelayMillis", 1));
+        manager.enableAdaptiveTimeouts(getDouble("timeoutPercentile", 0), getDouble("timeoutMultiplier", 3), 1);
+        manager.enableCircuitBreaker(getDouble("breakerFailureRate", 0), 20, 1000, getLong("breakerOpenMillis", 1000));
+        manager.setDegradedWritePolicy(DegradedWritePolicy.valueOf(options.getOrDefault("degradedWritePolicy", "FAIL")),
+                10000);
+        manager.setTouchThreshold(getDouble("touchThreshold", 0));
+        manager.setDeltaThreshold(getInt("deltaThreshold", 0));
+
+        ServletContextHandler context = new ServletContextHandler(ServletContextHandler.SESSIONS);
+        context.setContextPath("/");
+        context.setSessionHandler(new SessionHandler(manager));
+        context.addFilter(HttpSessionCookieFilter.class, "/*", EnumSet.of(DispatcherType.REQUEST));
+        context.addServlet(new ServletHolder(new ServletContainer(
+                new DefaultResourceConfig(LoadTestResource.class, CouchbaseHttpSessionProvider.class))), "/*");
+
+        Server server = new Server(0);
+        server.setHandler(context);
+        server.start();
+        try {
+            int port = ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+            drive("http://localhost:" + port + "/session");
+        } finally {
+            server.stop();
+        }
+    }
+
+    private void drive(String url) throws Exception {
+        int threads = getInt("threads", 16);
+        long warmupNanos = TimeUnit.SECONDS.toNanos(getLong("warmupSeconds", 5));
+        long measureNanos = TimeUnit.SECONDS.toNanos(getLong("seconds", 30));
+
+        long start = System.nanoTime();
+        long measureFrom = start + warmupNanos;
+        long measureUntil = measureFrom + measureNanos;
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<Client>> futures = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            Client client = new Client(url, getInt("attributes", 16), getDouble("writeRatio", 0.2));
+            futures.add(executor.submit(() -> client.run(measureFrom, measureUntil)));
+        }
+        executor.shutdown();
+
+        List<Client> clients = new ArrayList<>();
+        for (Future<Client> future : futures) {
+            clients.add(future.get());
+        }
+        report(clients, measureNanos);
+    }
+
+    private static void report(List<Client> clients, long measureNanos) {
+        int requests = 0;
+        long errors = 0;
+        for (Client client : clients) {
+            requests += client.count;
+            errors += client.errors;
+        }
+
+        long[] latencies = new long[requests];
+        int offset = 0;
+        for (Client client : clients) {
+            System.arraycopy(client.latencies, 0, latencies, offset, client.count);
+            offset += client.count;
+        }
+        Arrays.sort(latencies);
+
+        System.out.printf("requests=%d errors=%d throughput=%.1f/s%n", requests, errors,
+                requests / (measureNanos / 1e9));
+        System.out.printf("latency usec p50=%d p90=%d p99=%d p99.9=%d max=%d%n",
+                percentile(latencies, 0.5),
+                percentile(latencies, 0.9),
+                percentile(latencies, 0.99),
+                percentile(latencies, 0.999),
+                latencies.length == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(latencies[latencies.length - 1]));
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.min(sorted.length - 1, Math.ceil(percentile * sorted.length) - 1);
+        return TimeUnit.NANOSECONDS.toMicros(sorted[Math.max(0, index)]);
+    }
+
+    private int getInt(String name, int defaultValue) {
+        return options.containsKey(name) ? Integer.parseInt(options.get(name)) : defaultValue;
+    }
+
+    private long getLong(String name, long defaultValue) {
+        return options.containsKey(name) ? Long.parseLong(options.get(name)) : defaultValue;
+    }
+
+    private double getDouble(String name, double defaultValue) {
+        return options.containsKey(name) ? Double.parseDouble(options.get(name)) : defaultValue;
+    }
+
+    /**
+     * A client with a session of its own, recording the latency of each request it makes while measuring
+     */
+    private static final class Client {
+
+        private final String url;
+
+        private final int attributes;
+
+        private final double writeRatio;
+
+        private String cookie;
+
+        private long[] latencies = new long[1024];
+
+        private int count;
+
+        private long errors;
+
+        private Client(String url, int attributes, double writeRatio) {
+            this.url = url;
+            this.attributes = attributes;
+            this.writeRatio = writeRatio;
+        }
+
+        private Client run(long measureFrom, long measureUntil) throws IOException {
+            request("POST", url + "/init?attributes=" + attributes);
+
+            long now = System.nanoTime();
+            while (now < measureUntil) {
+                boolean write = ThreadLocalRandom.current().nextDouble() < writeRatio;
+                boolean succeeded;
+                try {
+                    succeeded = request(write ? "POST" : "GET", url);
+                } catch (IOException ex) {
+                    succeeded = false;
+                }
+
+                long end = System.nanoTime();
+                if (now >= measureFrom) {
+                    record(end - now, succeeded);
+                }
+                now = end;
+            }
+            return this;
+        }
+
+        private void record(long latencyNanos, boolean succeeded) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = latencyNanos;
+            if (!succeeded) {
+                errors++;
+            }
+        }
+
+        /**
+         * @param method The http method
+         * @param target The url to request
+         * @return Whether or not the request succeeded
+         * @throws IOException
+         */
+        private boolean request(String method, String target) throws IOException {
+            HttpURLConnection connection = (HttpURLConnection) new URL(target).openConnection();
+            connection.setRequestMethod(method);
+            if (cookie != null) {
+                connection.setRequestProperty("Cookie", cookie);
+            }
+
+            int status = connection.getResponseCode();
+            for (String header : connection.getHeaderFields().getOrDefault("Set-Cookie", new ArrayList<>())) {
+                if (header.startsWith(COOKIE_NAME + "=")) {
+                    cookie = header.split(";", 2)[0];
+                }
+            }
+
+            //Read the whole response so that the connection can be reused
+            try (InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+                if (in != null) {
+                    byte[] buffer = new byte[1024];
+                    while (in.read(buffer) >= 0) {
+                        continue;
+                    }
+                }
+            }
+            return status < 400;
+        }
+    }
+}
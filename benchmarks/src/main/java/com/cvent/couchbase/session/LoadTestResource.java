@@ -0,0 +1,52 @@
+package com.cvent.couchbase.session;
+
+import com.cvent.couchbase.session.CouchbaseSessionManager.CouchbaseHttpSession;
+import java.util.Map;
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.MediaType;
+
+/**
+ * The resource the load driver exercises: sessions are read on GET and an attribute is incremented on POST
+ */
+@Path("/session")
+@Produces(MediaType.TEXT_PLAIN)
+public class LoadTestResource {
+
+    static final String COUNTER = "counter";
+
+    /**
+     * Give a new session its attributes
+     *
+     * @param session The session
+     * @param attributes The number of attributes to give the session
+     * @return The session id
+     */
+    @POST
+    @Path("init")
+    public String init(@CouchbaseSession(write = true) CouchbaseHttpSession session,
+            @QueryParam("attributes") @DefaultValue("16") int attributes) {
+        for (Map.Entry<String, Object> attribute
+                : SessionFixtures.newAttributes(attributes, SessionFixtures.Shape.MAPS).entrySet()) {
+            session.setAttribute(attribute.getKey(), attribute.getValue());
+        }
+        return session.getId();
+    }
+
+    @GET
+    public String read(@CouchbaseSession CouchbaseHttpSession session) {
+        return String.valueOf(session.getAttribute(COUNTER));
+    }
+
+    @POST
+    public String write(@CouchbaseSession(write = true) CouchbaseHttpSession session) {
+        Object counter = session.getAttribute(COUNTER);
+        long next = counter instanceof Number ? ((Number) counter).longValue() + 1 : 1;
+        session.setAttribute(COUNTER, next);
+        return String.valueOf(next);
+    }
+}
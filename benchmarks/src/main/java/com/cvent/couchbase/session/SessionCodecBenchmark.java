@@ -0,0 +1,67 @@
+package com.cvent.couchbase.session;
+
+import com.cvent.couchbase.session.CouchbaseSessionManager.SessionJson;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Serialization and deserialization of sessions across session sizes, attribute shapes and formats
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SessionCodecBenchmark {
+
+    @Param({"4", "16", "64"})
+    public int attributes;
+
+    @Param({"SCALARS", "MAPS", "NESTED"})
+    public SessionFixtures.Shape shape;
+
+    @Param({"JSON", "SMILE"})
+    public SessionFormat format;
+
+    @Param({"0", "1024"})
+    public int compressionThreshold;
+
+    @Param({"false", "true"})
+    public boolean lazyAttributes;
+
+    private SessionCodec codec;
+
+    private SessionJson json;
+
+    private Object content;
+
+    @Setup
+    public void setUp() throws IOException {
+        codec = new SessionCodec(new ObjectMapper(), format, compressionThreshold);
+        json = SessionFixtures.newSessionJson("session", attributes, shape);
+        content = codec.encode(json);
+    }
+
+    @Benchmark
+    public Object serialize() throws IOException {
+        return codec.encode(json);
+    }
+
+    @Benchmark
+    public SessionJson deserialize() throws IOException {
+        return codec.decode(content, lazyAttributes);
+    }
+}
@@ -0,0 +1,161 @@
+package com.cvent.couchbase.session;
+
+import com.couchbase.client.java.Bucket;
+import com.cvent.couchbase.session.CouchbaseSessionManager.SessionJson;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+
+/**
+ * Builds the sessions, documents and requests the benchmarks run against
+ */
+public final class SessionFixtures {
+
+    public static final String KEY_PREFIX = "benchmark::session::";
+
+    public static final int MAX_INACTIVE_INTERVAL = 1800;
+
+    /**
+     * The shape of the attributes of a session
+     */
+    public enum Shape {
+
+        /**
+         * Strings, numbers and booleans
+         */
+        SCALARS,
+
+        /**
+         * Flat maps of ten scalars each
+         */
+        MAPS,
+
+        /**
+         * Maps holding lists of maps, three levels deep
+         */
+        NESTED
+    }
+
+    private SessionFixtures() {
+    }
+
+    /**
+     * @param sessionId The id of the session
+     * @param attributes The number of attributes the session has
+     * @param shape The shape of the attributes
+     * @return The session state
+     */
+    public static SessionJson newSessionJson(String sessionId, int attributes, Shape shape) {
+        long now = System.currentTimeMillis();
+        SessionJson json = new SessionJson();
+        json.setSessionId(sessionId);
+        json.setCreationTime(now);
+        json.setLastSaved(now);
+        json.setLastTouched(now);
+        json.setMaxInactiveInterval(MAX_INACTIVE_INTERVAL);
+        json.setAttributes(newAttributes(attributes, shape));
+        return json;
+    }
+
+    /**
+     * @param attributes The number of attributes
+     * @param shape The shape of the attributes
+     * @return Attributes as they'd be read back by the default mapper
+     */
+    public static Map<String, Object> newAttributes(int attributes, Shape shape) {
+        Map<String, Object> map = new HashMap<>();
+        for (int i = 0; i < attributes; i++) {
+            map.put("attribute" + i, newAttribute(i, shape));
+        }
+        return map;
+    }
+
+    private static Object newAttribute(int index, Shape shape) {
+        switch (shape) {
+            case SCALARS:
+                switch (index % 3) {
+                    case 0:
+                        return "value of attribute " + index;
+                    case 1:
+                        return index * 1000L;
+                    default:
+                        return index % 2 == 0;
+                }
+            case MAPS:
+                return newMap(index);
+            case NESTED:
+                Map<String, Object> nested = newMap(index);
+                List<Object> children = new ArrayList<>();
+                for (int i = 0; i < 3; i++) {
+                    Map<String, Object> child = newMap(i);
+                    child.put("items", new ArrayList<>(newMap(index + i).values()));
+                    children.add(child);
+                }
+                nested.put("children", children);
+                return nested;
+            default:
+                throw new IllegalArgumentException("Unknown shape " + shape);
+        }
+    }
+
+    private static Map<String, Object> newMap(int index) {
+        Map<String, Object> map = new LinkedHashMap<>();
+        for (int i = 0; i < 10; i++) {
+            map.put("field" + i, i % 2 == 0 ? "value " + index + "." + i : (Object) (index * 10L + i));
+        }
+        return map;
+    }
+
+    /**
+     * Store sessions named session0 to session(count-1) as JSON documents.
+     *
+     * @param bucket The bucket to store the sessions in
+     * @param mapper The mapper the session manager uses
+     * @param count The number of sessions
+     * @param attributes The number of attributes each session has
+     * @param shape The shape of the attributes
+     * @throws IOException
+     */
+    public static void storeSessions(Bucket bucket, ObjectMapper mapper, int count, int attributes, Shape shape)
+            throws IOException {
+        SessionCodec codec = new SessionCodec(mapper, SessionFormat.JSON, 0);
+        for (int i = 0; i < count; i++) {
+            String sessionId = getSessionId(i);
+            bucket.upsert(SessionCodec.createDocument(KEY_PREFIX + sessionId, MAX_INACTIVE_INTERVAL,
+                    codec.encode(newSessionJson(sessionId, attributes, shape)), 0));
+        }
+    }
+
+    public static String getSessionId(int index) {
+        return "session" + index;
+    }
+
+    /**
+     * A request that only supports getSession(), which resolves the session once, as jetty does
+     *
+     * @param session Resolves the session of the request
+     * @return The request
+     */
+    public static HttpServletRequest newRequest(Supplier<HttpSession> session) {
+        HttpSession[] resolved = new HttpSession[1];
+        return (HttpServletRequest) Proxy.newProxyInstance(HttpServletRequest.class.getClassLoader(),
+                new Class<?>[]{HttpServletRequest.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("getSession")) {
+                        if (resolved[0] == null) {
+                            resolved[0] = session.get();
+                        }
+                        return resolved[0];
+                    }
+                    throw new UnsupportedOperationException(method.getName() + " isn't supported by this request");
+                });
+    }
+}
@@ -0,0 +1,139 @@
+package com.cvent.couchbase.session;
+
+import com.couchbase.client.java.error.CASMismatchException;
+import com.cvent.couchbase.session.CouchbaseSessionManager.CouchbaseHttpSession;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Loading and storing sessions through the session manager, against an in-memory bucket with injected latency.
+ *
+ * Run with several threads, e.g. -t 8, to measure contention. With a single session every thread reads and writes the
+ * same session and most writes fail on a CAS mismatch, which the write benchmark counts.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SessionManagerBenchmark {
+
+    @Param({"0", "250"})
+    public long latencyMicros;
+
+    @Param({"1000", "1"})
+    public int sessions;
+
+    @Param({"16"})
+    public int attributes;
+
+    @Param({"MAPS"})
+    public SessionFixtures.Shape shape;
+
+    private InMemoryBucket bucket;
+
+    private CouchbaseSessionManager manager;
+
+    /**
+     * The outcome of the writes made by one thread
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Writes {
+
+        public long written;
+
+        public long conflicts;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            written = 0;
+            conflicts = 0;
+        }
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        ObjectMapper mapper = new ObjectMapper();
+        bucket = new InMemoryBucket();
+        SessionFixtures.storeSessions(bucket.getBucket(), mapper, sessions, attributes, shape);
+        bucket.setLatencyMicros(latencyMicros);
+
+        manager = new CouchbaseSessionManager(SessionFixtures.KEY_PREFIX, bucket.getBucket(), mapper,
+                SessionFixtures.MAX_INACTIVE_INTERVAL);
+        manager.start();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        manager.stop();
+    }
+
+    /**
+     * A request that reads the session without writing to it
+     *
+     * @return The session
+     */
+    @Benchmark
+    public Object read() {
+        CouchbaseHttpSession session = getSession();
+        session.getAttribute("attribute0");
+        session.complete();
+        return session;
+    }
+
+    /**
+     * A request that changes one attribute of the session and saves it when it completes
+     *
+     * @return The session
+     */
+    @Benchmark
+    public Object update() {
+        CouchbaseHttpSession session = getSession();
+        session.setWrite(true);
+        session.setAttribute("counter", System.nanoTime());
+        session.complete();
+        return session;
+    }
+
+    /**
+     * Change one attribute of the session and save it, counting writes that lose a race with another thread
+     *
+     * @param writes The outcome of the writes of this thread
+     * @return The session
+     */
+    @Benchmark
+    public Object write(Writes writes) {
+        CouchbaseHttpSession session = getSession();
+        session.setWrite(true);
+        session.setAttribute("counter", System.nanoTime());
+        try {
+            manager.updateSession(session);
+            writes.written++;
+        } catch (CASMismatchException ex) {
+            writes.conflicts++;
+        }
+        return session;
+    }
+
+    private CouchbaseHttpSession getSession() {
+        int index = ThreadLocalRandom.current().nextInt(sessions);
+        return (CouchbaseHttpSession) manager.getSession(SessionFixtures.getSessionId(index));
+    }
+}
@@ -0,0 +1,129 @@
+package com.cvent.couchbase.session;
+
+import com.cvent.couchbase.session.CouchbaseSessionManager.CouchbaseHttpSession;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.jersey.api.model.Parameter;
+import com.sun.jersey.spi.inject.Injectable;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.http.HttpServletRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The overhead of injecting a session into a resource with CouchbaseHttpSessionProvider, compared to getting it from
+ * the session manager directly
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SessionProviderBenchmark {
+
+    @Param({"1000"})
+    public int sessions;
+
+    @Param({"16"})
+    public int attributes;
+
+    private CouchbaseSessionManager manager;
+
+    private ThreadLocal<HttpServletRequest> request;
+
+    private Injectable<?> readSession;
+
+    private Injectable<?> writeSession;
+
+    /**
+     * A resource method with the session parameters being injected
+     *
+     * @param read A read only session
+     * @param write A writable session
+     */
+    static void resource(@CouchbaseSession CouchbaseHttpSession read,
+            @CouchbaseSession(write = true) CouchbaseHttpSession write) {
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        ObjectMapper mapper = new ObjectMapper();
+        InMemoryBucket bucket = new InMemoryBucket();
+        SessionFixtures.storeSessions(bucket.getBucket(), mapper, sessions, attributes, SessionFixtures.Shape.MAPS);
+
+        manager = new CouchbaseSessionManager(SessionFixtures.KEY_PREFIX, bucket.getBucket(), mapper,
+                SessionFixtures.MAX_INACTIVE_INTERVAL);
+        manager.start();
+
+        request = new ThreadLocal<>();
+        CouchbaseHttpSessionProvider provider = new CouchbaseHttpSessionProvider(request);
+
+        Method method = SessionProviderBenchmark.class.getDeclaredMethod("resource", CouchbaseHttpSession.class,
+                CouchbaseHttpSession.class);
+        Annotation[][] annotations = method.getParameterAnnotations();
+        readSession = getInjectable(provider, (CouchbaseSession) annotations[0][0]);
+        writeSession = getInjectable(provider, (CouchbaseSession) annotations[1][0]);
+    }
+
+    private static Injectable<?> getInjectable(CouchbaseHttpSessionProvider provider, CouchbaseSession annotation) {
+        Parameter parameter = new Parameter(new Annotation[]{annotation}, annotation, Parameter.Source.UNKNOWN,
+                "session", CouchbaseHttpSession.class, CouchbaseHttpSession.class);
+        return provider.getInjectable(null, annotation, parameter);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        manager.stop();
+    }
+
+    /**
+     * @return The session, got from the session manager directly
+     */
+    @Benchmark
+    public Object direct() {
+        return manager.getSession(nextSessionId());
+    }
+
+    /**
+     * @return The session, injected read only
+     */
+    @Benchmark
+    public Object injectRead() {
+        return inject(readSession);
+    }
+
+    /**
+     * @return The session, injected writable
+     */
+    @Benchmark
+    public Object injectWrite() {
+        return inject(writeSession);
+    }
+
+    private Object inject(Injectable<?> injectable) {
+        String sessionId = nextSessionId();
+        request.set(SessionFixtures.newRequest(() -> manager.getSession(sessionId)));
+        try {
+            return injectable.getValue();
+        } finally {
+            request.remove();
+        }
+    }
+
+    private String nextSessionId() {
+        return SessionFixtures.getSessionId(ThreadLocalRandom.current().nextInt(sessions));
+    }
+}
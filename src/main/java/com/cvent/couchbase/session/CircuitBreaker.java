@@ -0,0 +1,176 @@
+package com.cvent.couchbase.session;
+
+import com.couchbase.client.core.CouchbaseException;
+import com.couchbase.client.java.error.CASMismatchException;
+import com.couchbase.client.java.error.DocumentAlreadyExistsException;
+import com.couchbase.client.java.error.DocumentDoesNotExistException;
+import com.couchbase.client.java.error.TranscodingException;
+import com.couchbase.client.java.error.subdoc.SubDocumentException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stops calls to couchbase once too many of them fail, so that request threads don't all pile up waiting on a
+ * struggling cluster. Calls and failures are counted over a fixed window. Once the window has seen enough calls and the
+ * share of them that failed reaches the threshold the circuit opens and calls are rejected. After a while the circuit
+ * is half open and a single call is let through to probe the cluster: if it succeeds the circuit closes again,
+ * otherwise it stays open for another while. Only the outcome of the probe does either, calls that were let through
+ * before the circuit opened, or that didn't need its permission, are ignored until it has closed. A probe that never
+ * reports its outcome is replaced by another once the circuit would have re-opened.
+ *
+ * Only failures that say something about the health of the cluster count, a missing document or a CAS mismatch is a
+ * successful call as far as the circuit is concerned.
+ */
+final class CircuitBreaker {
+
+    private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    /**
+     * The permit of a call that may not be made
+     */
+    static final long REJECTED = -1;
+
+    /**
+     * The permit of a call made while the circuit is closed
+     */
+    static final long CLOSED = 0;
+
+    private final double failureRate;
+
+    private final int minCalls;
+
+    private final long windowMillis;
+
+    private final long openMillis;
+
+    private final Runnable onClose;
+
+    private final AtomicLong calls = new AtomicLong();
+
+    private final AtomicLong failures = new AtomicLong();
+
+    private volatile long windowStart;
+
+    /**
+     * When the next call may be let through to probe the cluster, 0 while the circuit is closed. While a probe is in
+     * flight this is the time the circuit re-opens at unless the probe reports its outcome first, and doubles as the
+     * permit of the probe.
+     */
+    private final AtomicLong retryAt = new AtomicLong();
+
+    /**
+     * Create a new circuit breaker
+     *
+     * @param failureRate The share of calls in a window that have to fail for the circuit to open, between 0 and 1
+     * @param minCalls The min number of calls in a window before the circuit can open
+     * @param windowMillis The number of msec over which calls are counted
+     * @param openMillis The number of msec the circuit stays open before a call is let through
+     * @param onClose Run when the circuit closes again
+     */
+    CircuitBreaker(double failureRate, int minCalls, long windowMillis, long openMillis, Runnable onClose) {
+        this.failureRate = failureRate;
+        this.minCalls = Math.max(1, minCalls);
+        this.windowMillis = windowMillis;
+        this.openMillis = openMillis;
+        this.onClose = onClose;
+    }
+
+    /**
+     * @param now The current time in msec since the epoch
+     * @return REJECTED if the call may not be made, CLOSED if the circuit is closed, or else the permit of a probe of
+     * the cluster. The outcome of the call has to be recorded with its permit.
+     */
+    long allowRequest(long now) {
+        long retry = retryAt.get();
+        if (retry == 0) {
+            return CLOSED;
+        }
+
+        long probe = now + openMillis;
+        return now >= retry && retryAt.compareAndSet(retry, probe) ? probe : REJECTED;
+    }
+
+    /**
+     * @return Whether or not calls are currently being rejected
+     */
+    boolean isOpen() {
+        return retryAt.get() != 0;
+    }
+
+    /**
+     * @param permit The permit the call was made with
+     * @param now The current time in msec since the epoch
+     */
+    void recordSuccess(long permit, long now) {
+        if (permit != CLOSED) {
+            //Unless the probe took so long that another one has been let through since
+            if (retryAt.compareAndSet(permit, 0)) {
+                resetWindow(now);
+                LOG.info("Couchbase session store recovered, closing circuit");
+                onClose.run();
+            }
+        } else if (retryAt.get() == 0) {
+            count(now, false);
+        }
+    }
+
+    /**
+     * @param permit The permit the call was made with
+     * @param now The current time in msec since the epoch
+     */
+    void recordFailure(long permit, long now) {
+        if (permit != CLOSED) {
+            //Keep rejecting calls for a while after the failed probe
+            retryAt.compareAndSet(permit, now + openMillis);
+        } else if (retryAt.get() == 0) {
+            count(now, true);
+        }
+    }
+
+    /**
+     * @param now The current time in msec since the epoch
+     * @param failed Whether or not the call failed
+     */
+    private void count(long now, boolean failed) {
+        if (now - windowStart >= windowMillis) {
+            //Calls made while another thread resets the window may be lost, which doesn't matter for a rate
+            resetWindow(now);
+        }
+
+        long total = calls.incrementAndGet();
+        if (!failed) {
+            return;
+        }
+
+        long failedCalls = failures.incrementAndGet();
+        if (total >= minCalls && failedCalls >= failureRate * total && retryAt.compareAndSet(0, now + openMillis)) {
+            LOG.warn("{} of the last {} couchbase session store calls failed, opening circuit for {} msec",
+                    failedCalls, total, openMillis);
+        }
+    }
+
+    private void resetWindow(long now) {
+        windowStart = now;
+        calls.set(0);
+        failures.set(0);
+    }
+
+    /**
+     * @param error The error a call failed with
+     * @return Whether or not the error counts against the health of the cluster
+     */
+    static boolean isFailure(Throwable error) {
+        if (error instanceof TimeoutException || error.getCause() instanceof TimeoutException) {
+            return true;
+        }
+
+        return error instanceof CouchbaseException
+                && !(error instanceof SessionStoreUnavailableException)
+                && !(error instanceof DocumentDoesNotExistException)
+                && !(error instanceof DocumentAlreadyExistsException)
+                && !(error instanceof CASMismatchException)
+                && !(error instanceof TranscodingException)
+                && !(error instanceof SubDocumentException);
+    }
+}
@@ -7,12 +7,18 @@ import com.sun.jersey.core.spi.component.ComponentScope;
 import com.sun.jersey.spi.inject.Injectable;
 import com.sun.jersey.spi.inject.InjectableProvider;
 
+import java.util.concurrent.CompletionStage;
 import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.ext.Provider;
 
 /**
  * Provides the HttpSession entity for any resource annotated with @CouchbaseSession annotated method parameter
+ *
+ * Every parameter of a request shares the session resolved by the CouchbaseSessionContext of the request.
+ *
+ * Resources that handle requests asynchronously can take a CompletionStage&lt;CouchbaseHttpSession&gt; parameter
+ * instead. The session is then written once the async request completes.
  * 
  * @author bryan
  */
@@ -36,12 +42,16 @@ public class CouchbaseHttpSessionProvider implements InjectableProvider<Couchbas
             return () -> {
                 final HttpServletRequest req = request.get();
                 if (req != null) {
-                    CouchbaseHttpSession couchbaseHttpSession = (CouchbaseHttpSession) req.getSession(session.create());
-                    if (session.write()) {
-                        couchbaseHttpSession.setWrite(true);
-                    }
-                    
-                    return couchbaseHttpSession;
+                    return CouchbaseSessionContext.get(req).getSession(session.create(), session.write());
+                }
+                return null;
+            };
+        }
+        if (parameter.getParameterClass() == CompletionStage.class) {
+            return () -> {
+                final HttpServletRequest req = request.get();
+                if (req != null) {
+                    return CouchbaseSessionContext.get(req).getSessionAsync(session.create(), session.write());
                 }
                 return null;
             };
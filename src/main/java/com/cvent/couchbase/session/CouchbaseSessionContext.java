@@ -0,0 +1,110 @@
+package com.cvent.couchbase.session;
+
+import com.cvent.couchbase.session.CouchbaseSessionManager.CouchbaseHttpSession;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * The session of a single request, resolved at most once no matter how many filters, resources, sub-resources and
+ * {@link CouchbaseSession} parameters ask for it. It's kept as an attribute of the request.
+ *
+ * A session that's asked for with write access after it was handed out read only is made writable in place, so every
+ * component of the request shares the same session object and the same state.
+ */
+public final class CouchbaseSessionContext {
+
+    private static final String ATTRIBUTE = CouchbaseSessionContext.class.getName();
+
+    private final HttpServletRequest request;
+
+    private CouchbaseHttpSession session;
+
+    /**
+     * Set once the request has been asked for its session, so that a request without one isn't asked again unless a
+     * session is to be created
+     */
+    private boolean resolved;
+
+    /**
+     * Looks up the session the request asked for without blocking, if it hadn't been looked up when the session was
+     * first asked for asynchronously
+     */
+    private CompletionStage<CouchbaseHttpSession> lookup;
+
+    private CouchbaseSessionContext(HttpServletRequest request) {
+        this.request = request;
+    }
+
+    /**
+     * @param request The request
+     * @return The session context of the request, created on first use
+     */
+    public static CouchbaseSessionContext get(HttpServletRequest request) {
+        Object context = request.getAttribute(ATTRIBUTE);
+        if (context instanceof CouchbaseSessionContext) {
+            return (CouchbaseSessionContext) context;
+        }
+
+        CouchbaseSessionContext created = new CouchbaseSessionContext(request);
+        request.setAttribute(ATTRIBUTE, created);
+        return created;
+    }
+
+    /**
+     * Get the session of the request
+     *
+     * @param create Whether or not to create the session if the request doesn't have one
+     * @param write Whether or not the session is to be written to
+     * @return The session or null if the request doesn't have one and create is false
+     */
+    public synchronized CouchbaseHttpSession getSession(boolean create, boolean write) {
+        if (session != null && !session.isValid()) {
+            //Invalidated during the request
+            session = null;
+            resolved = false;
+        }
+
+        if (session == null && (create || !resolved)) {
+            session = (CouchbaseHttpSession) request.getSession(create);
+            resolved = true;
+        }
+
+        if (session != null && write && !session.isWrite()) {
+            session.setWrite(true);
+        }
+        return session;
+    }
+
+    /**
+     * Get the session of the request as a stage, for resources that handle the request asynchronously. Jetty resolves
+     * the requested session before the request is dispatched, so the stage is normally complete already. A session
+     * that hasn't been looked up yet is read with the non-blocking lookup of CouchbaseSessionManager, and the stage
+     * completes once it has been read. Changes made to the session are written once the async request completes.
+     *
+     * @param create Whether or not to create the session if the request doesn't have one, once it has been looked up
+     * @param write Whether or not the session is to be written to
+     * @return Completes with the session or null if the request doesn't have one and create is false
+     */
+    public CompletionStage<CouchbaseHttpSession> getSessionAsync(boolean create, boolean write) {
+        CompletionStage<CouchbaseHttpSession> requested;
+        synchronized (this) {
+            if (lookup == null && session == null && !resolved && !create) {
+                lookup = CouchbaseSessionManager.getRequestedSessionAsync(request);
+            }
+            requested = lookup;
+        }
+        if (requested != null) {
+            //The session that was looked up has been handed to the request
+            return requested.thenApply(found -> getSession(create, write));
+        }
+
+        CompletableFuture<CouchbaseHttpSession> future = new CompletableFuture<>();
+        try {
+            future.complete(getSession(create, write));
+        } catch (RuntimeException ex) {
+            future.completeExceptionally(ex);
+        }
+        return future;
+    }
+}
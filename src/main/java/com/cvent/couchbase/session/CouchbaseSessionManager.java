@@ -1,18 +1,54 @@
 package com.cvent.couchbase.session;
 
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
 import com.couchbase.client.core.CouchbaseException;
+import com.couchbase.client.java.AsyncBucket;
 import com.couchbase.client.java.Bucket;
-import com.couchbase.client.java.ReplicaMode;
+import com.couchbase.client.java.document.Document;
 import com.couchbase.client.java.document.RawJsonDocument;
+import com.couchbase.client.java.error.CASMismatchException;
+import com.couchbase.client.java.error.DocumentAlreadyExistsException;
 import com.couchbase.client.java.error.DocumentDoesNotExistException;
-import com.fasterxml.jackson.core.JsonProcessingException;
+import com.cvent.couchbase.session.SessionStore.Read;
+import com.cvent.couchbase.session.SessionStore.StoreOperation;
+import com.cvent.couchbase.session.SessionWriter.DeferredWrite;
+import com.cvent.couchbase.session.SessionWriter.EncodedSession;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 import java.io.IOException;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+import javax.servlet.http.HttpSessionEvent;
+import org.eclipse.jetty.http.HttpCookie;
+import org.eclipse.jetty.server.HttpConnection;
+import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.session.AbstractSession;
 import org.eclipse.jetty.server.session.AbstractSessionManager;
 import org.slf4j.LoggerFactory;
+import rx.Observable;
 
 /**
  * An implementation of session manager for Couchbase + Jetty. This session manager stores documents as JSON into a
@@ -25,14 +61,147 @@ import org.slf4j.LoggerFactory;
  * A session will remain active if there is activity.
  *
  * If a read fails for an IOException then this will fallback and try to read the session from a replica.
+ *
+ * By default every read extends the expiry of the session using getAndTouch. Alternatively touches can be throttled so
+ * that most reads are plain gets, see setTouchThreshold().
+ *
+ * Optionally a near cache can be enabled which keeps recently used sessions in memory so that requests that don't
+ * write to the session can be served without fetching and parsing the document again. See enableNearCache().
+ *
+ * Optionally changed sessions can be written behind, off the request thread, and writes from concurrent requests can
+ * be batched into bulk operations. See enableWriteBehind() and enableWriteBatching().
+ *
+ * Optionally a session with only a few changed attributes can be written as a sub-document mutation of just those
+ * attributes instead of rewriting the whole document. See setDeltaThreshold().
+ *
+ * Optionally attributes can be deserialized lazily, on first use, see setLazyAttributes().
+ *
+ * Optionally a session whose attributes were set but ended up with the same stored form isn't written at all, see
+ * setSkipUnchangedWrites().
+ *
+ * Optionally a write that conflicts with another write of the same session is merged onto the latest state of the
+ * session and retried, so that concurrent requests can write to the same session, see enableConflictMerge().
+ *
+ * Optionally sessions can be stored in a binary format and/or compressed, see setSessionFormat().
+ *
+ * Optionally reads that are slow to return from the active node can be hedged with reads from the replicas, see
+ * enableHedgedReads().
+ *
+ * Optionally the timeouts of calls to couchbase can adapt to their observed latency, see enableAdaptiveTimeouts(),
+ * and calls can be stopped altogether while too many of them fail, see enableCircuitBreaker(). While the circuit is
+ * open sessions are served from the near cache, even if stale, or the replicas, and writes are handled according to
+ * setDegradedWritePolicy().
+ *
+ * Optionally the latency of session operations, the size of sessions and failures can be recorded into a metric
+ * registry, see enableMetrics().
+ *
+ * Sessions can be spread across several buckets, possibly on different clusters, see SessionShards.
+ *
+ * Optionally small sessions can be kept in an encrypted cookie instead of couchbase, see enableCookieSessions().
+ *
+ * New sessions can be created lazily, only inserted and given a cookie once they're first written, see
+ * setLazyCreation().
+ *
+ * The size of sessions can be budgeted, to report and stop sessions that keep growing, see enableSizeBudget().
+ *
+ * Large attributes that are rarely read can be kept cold, in documents of their own that are only read when they're
+ * asked for and expire on their own, see setColdAttribute().
+ *
+ * Optionally HttpSessionListeners and HttpSessionBindingListeners can be told about sessions that time out, which
+ * otherwise just expire in couchbase, see enableExpiryEvents().
+ *
+ * Sessions can also be read and written without blocking the calling thread on couchbase, see getSessionAsync() and
+ * saveAsync(). A session used by an async request is written once the request completes rather than when it's
+ * dispatched, without blocking a container thread.
  */
 public final class CouchbaseSessionManager extends AbstractSessionManager {
 
     private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(CouchbaseSessionManager.class);
 
-    private final Bucket bucket;
     private final ObjectMapper mapper;
     private final String keyPrefix;
+    private final SessionStore store;
+
+    private final SessionWriter writer;
+
+    /**
+     * The name of the JSON field that records when the expiry of a session document was last extended
+     */
+    static final String LAST_TOUCHED = "lastTouched";
+
+    static final String LAST_SAVED = "lastSaved";
+
+    static final String ATTRIBUTES = "attributes";
+
+    /**
+     * Separates the key of a session document from the name of a cold attribute in the key of the attribute document
+     */
+    private static final String COLD_KEY_SEPARATOR = "::";
+
+    /**
+     * The request attribute that marks an async request whose session is written once it completes
+     */
+    private static final String ASYNC_COMPLETION_ATTRIBUTE = CouchbaseSessionManager.class.getName()
+            + ".asyncCompletion";
+
+    /**
+     * The request attribute that marks a request whose session was looked up already
+     */
+    private static final String LOOKED_UP_ATTRIBUTE = CouchbaseSessionManager.class.getName() + ".lookedUp";
+
+    private volatile SessionNearCache nearCache;
+
+    private volatile double touchThreshold;
+
+    private volatile boolean replicaReads;
+
+    private volatile boolean lazyAttributes;
+
+    private volatile boolean skipUnchangedWrites;
+
+    private volatile boolean lazyCreation;
+
+    private volatile int renewalGraceSeconds;
+
+    private volatile SessionConflictResolver conflictResolver;
+
+    private volatile int maxMergeRetries;
+
+    private volatile long mergeBackoffMillis;
+
+    private volatile SessionMetrics metrics;
+
+    private volatile SessionCookieSealer cookieSealer;
+
+    private volatile long cookieMaxLifetimeMillis;
+
+    /**
+     * The names of the cold attributes mapped to the number of seconds they're kept for after they're set
+     */
+    private final ConcurrentMap<String, Integer> coldAttributes = new ConcurrentHashMap<>();
+
+    /**
+     * Follows the key prefix in the keys of the documents of the expiry index
+     */
+    private static final String EXPIRY_KEY_PREFIX = "expiry::";
+
+    /**
+     * The max number of sessions read at once when scanning the expiry index
+     */
+    private static final int EXPIRY_BATCH_SIZE = 100;
+
+    private int expiryBucketSeconds;
+
+    private int expiryPartitions;
+
+    private int expiryNodeIndex;
+
+    private int expiryNodeCount;
+
+    /**
+     * The expiry index of each shard, or null if expiry events are disabled
+     */
+    private volatile List<SessionExpiryIndex> expiryIndexes;
 
     /**
      * Create a new session manager
@@ -44,206 +213,2267 @@ public final class CouchbaseSessionManager extends AbstractSessionManager {
      * @param maxInactiveInterval The max number of seconds that session can exist for with no activity
      */
     public CouchbaseSessionManager(String keyPrefix, Bucket bucket, ObjectMapper mapper, int maxInactiveInterval) {
+        this(keyPrefix, bucket, null, mapper, maxInactiveInterval);
+        setSessionIdManager(new NoOpSessionIdManager());
+    }
+
+    /**
+     * Create a new session manager that spreads sessions across several buckets. New session ids are tagged with
+     * their shard by a ShardedSessionIdManager.
+     *
+     * The timeouts of calls to couchbase are taken from the environment of the first bucket.
+     *
+     * @param keyPrefix The key prefix to use with couchbase documents
+     * @param shards The buckets to spread sessions across
+     * @param mapper The jackson ObjectMapper to be used for serialization/deserialization of session objects to/from
+     * JSON
+     * @param maxInactiveInterval The max number of seconds that session can exist for with no activity
+     */
+    public CouchbaseSessionManager(String keyPrefix, SessionShards shards, ObjectMapper mapper,
+            int maxInactiveInterval) {
+        this(keyPrefix, shards.getBuckets().get(0), shards, mapper, maxInactiveInterval);
+        setSessionIdManager(new ShardedSessionIdManager(shards));
+    }
+
+    private CouchbaseSessionManager(String keyPrefix, Bucket bucket, SessionShards shards, ObjectMapper mapper,
+            int maxInactiveInterval) {
         super();
-        this.bucket = bucket;
         this.mapper = mapper;
         setMaxInactiveInterval(maxInactiveInterval);
-        setSessionIdManager(new NoOpSessionIdManager());
         this.keyPrefix = keyPrefix;
+        SessionCodec codec = new SessionCodec(mapper, SessionFormat.JSON, 0);
+        this.store = new SessionStore(keyPrefix, bucket, shards, codec, this::getExpiry);
+        this.writer = new SessionWriter(store, mapper, codec, coldAttributes, this::getExpiry,
+                (key, cas) -> trackExpiry(key, getMaxInactiveInterval(), cas));
     }
 
     private String getKey(String id) {
         return keyPrefix + id;
     }
 
-    @Override
-    protected void addSession(AbstractSession session) {
-        if (LOG.isDebugEnabled()) {
-            LOG.debug("Add session {}", session);
-        }
+    private String getId(String key) {
+        return key.substring(keyPrefix.length());
+    }
 
-        if (isRunning()) {
-            try {
-                RawJsonDocument doc = RawJsonDocument.create(getKey(session.getClusterId()),
-                        getMaxInactiveInterval(),
-                        serialize((CouchbaseHttpSession) session));
+    /**
+     * Keep up to maxEntries recently used sessions in memory.
+     *
+     * A cached session younger than ttlMillis is served straight from memory. An older one is revalidated by
+     * extending the expiry of the stored document conditionally on its CAS, which is a small sub-document mutation
+     * instead of a full fetch and parse, and is only fetched again when the document has changed since.
+     *
+     * Sessions served from memory may be up to ttlMillis out of date with respect to writes made on other nodes. As
+     * soon as such a session is made writable it's revalidated so that writes are never based on stale state. Each
+     * session served from memory is decoded from the cached document, so requests never share attribute instances.
+     *
+     * @param maxEntries The max number of sessions to keep in memory, 0 disables the near cache
+     * @param ttlMillis The number of msec a cached session may be served without revalidating it
+     */
+    public void enableNearCache(int maxEntries, long ttlMillis) {
+        this.nearCache = maxEntries > 0 ? new SessionNearCache(maxEntries, ttlMillis) : null;
+    }
+
+    /**
+     * Only extend the expiry of a session when a fraction of maxInactiveInterval has passed since it was last
+     * extended. Reads in between are plain gets instead of getAndTouch, which is a mutation. The time of the last
+     * touch is persisted with the session.
+     *
+     * For example with a threshold of 0.1 and a 30 minute maxInactiveInterval a session is touched at most once every
+     * 3 minutes, and an idle session may expire up to 3 minutes earlier than it otherwise would have.
+     *
+     * @param touchThreshold The fraction of maxInactiveInterval between touches, 0 touches on every read
+     */
+    public void setTouchThreshold(double touchThreshold) {
+        this.touchThreshold = touchThreshold;
+    }
 
-                bucket.insert(doc);
-            } catch (JsonProcessingException ex) {
-                throw new RuntimeException("Failed serialize session to JSON " + session, ex);
+    /**
+     * When touches are throttled, allow reads that don't need to touch the session to be served from a replica to
+     * take load off the active node. A session read from a replica is read again from the active node as soon as it's
+     * made writable, since the replica may be behind.
+     *
+     * @param replicaReads Whether or not to read from replicas when no touch is needed
+     */
+    public void setReplicaReads(boolean replicaReads) {
+        this.replicaReads = replicaReads;
+    }
+
+    /**
+     * Write changed sessions behind: instead of waiting for couchbase on the request thread when a request completes,
+     * the write is queued and sent asynchronously. Writes of the same session are always applied in order and a
+     * session read while a write of it is still pending is served from that write. Pending writes are flushed when the
+     * session manager is stopped.
+     *
+     * A failed write can no longer be reported to the request that made it, it's logged instead.
+     *
+     * Must be called before the session manager is started.
+     *
+     * @param capacity The max number of writes waiting to be sent, 0 disables write behind
+     * @param policy What to do with a write when the queue is full
+     */
+    public void enableWriteBehind(int capacity, OverflowPolicy policy) {
+        writer.enableWriteBehind(capacity, policy);
+    }
+
+    /**
+     * Batch the writes of concurrent requests: writes are collected for up to windowMillis, or until maxBatchSize
+     * writes have been collected, and then sent as one bulk async operation. When a batch holds several writes of
+     * the same session, each based on the one before, only the last one is sent.
+     *
+     * Unless writes are also written behind, each request still waits for its own write to complete and sees its
+     * outcome, including any CAS mismatch, as before.
+     *
+     * Must be called before the session manager is started.
+     *
+     * @param windowMillis The max number of msec to wait for a batch to fill up
+     * @param maxBatchSize The max number of writes in a batch, 1 or less disables batching
+     */
+    public void enableWriteBatching(long windowMillis, int maxBatchSize) {
+        writer.enableWriteBatching(windowMillis, maxBatchSize);
+    }
+
+    @Override
+    public void doStart() throws Exception {
+        super.doStart();
+
+        writer.start(new WriteListener());
+
+        if (expiryPartitions > 0) {
+            List<SessionExpiryIndex> indexes = new ArrayList<>();
+            for (Bucket shard : store.getBuckets()) {
+                SessionExpiryIndex index = new SessionExpiryIndex(shard,
+                        keyPrefix + EXPIRY_KEY_PREFIX,
+                        expiryBucketSeconds,
+                        expiryPartitions,
+                        expiryNodeIndex,
+                        expiryNodeCount,
+                        EXPIRY_BATCH_SIZE,
+                        shard.environment().kvTimeout(),
+                        this::expireSessions);
+                index.start();
+                indexes.add(index);
             }
+            expiryIndexes = indexes;
         }
     }
 
     @Override
-    public AbstractSession getSession(String idInCluster) {
-        String key = getKey(idInCluster);
-        if (LOG.isDebugEnabled()) {
-            LOG.debug("Get session {}", key);
+    public void doStop() throws Exception {
+        try {
+            List<SessionExpiryIndex> indexes = expiryIndexes;
+            if (indexes != null) {
+                expiryIndexes = null;
+                for (SessionExpiryIndex index : indexes) {
+                    index.stop(store.getKvTimeout() * 2);
+                }
+            }
+
+            writer.stop(store.getKvTimeout() * 2);
+        } finally {
+            super.doStop();
         }
+    }
 
-        try {
-            RawJsonDocument doc = bucket.getAndTouch(key, getMaxInactiveInterval(), RawJsonDocument.class);
+    /**
+     * Write a session whose attributes were changed in at most deltaThreshold places as a sub-document mutation of
+     * just those attributes, plus lastSaved, rather than serializing and rewriting the whole document. Sessions with
+     * more changes are written in full. The threshold is capped at 14 by the sub-document api.
+     *
+     * Only applies to writes made on the request thread, writes that go through the write queue are always written
+     * in full.
+     *
+     * @param deltaThreshold The max number of changed attributes to write as a delta, 0 always writes in full
+     */
+    public void setDeltaThreshold(int deltaThreshold) {
+        writer.setDeltaThreshold(deltaThreshold);
+    }
 
-            if (doc == null) {
-                return null;
-            }
+    /**
+     * Deserialize session attributes lazily. When a session is read its attributes are only skipped over to find where
+     * each one is in the document, and are deserialized from there the first time they're asked for with getAttribute.
+     * Attributes that are never asked for are written back as they were read when the session is saved.
+     *
+     * Note that getAttributeMap() then returns the stored form of any attribute that hasn't been asked for yet.
+     *
+     * @param lazyAttributes Whether or not to deserialize attributes lazily
+     */
+    public void setLazyAttributes(boolean lazyAttributes) {
+        this.lazyAttributes = lazyAttributes;
+    }
 
-            try {
-                return deserialize(doc.content(), doc.cas());
-            } catch (IOException ex) {
-                throw new RuntimeException("Failed to deserialize session " + key, ex);
-            }
-        } catch (CouchbaseException ex) {
-            LOG.warn("Read failed to master, attempting read from replica for {}", key);
+    /**
+     * Skip writing a session whose attributes were set but didn't actually change. The stored form of an attribute is
+     * fingerprinted before the application can change it, the first time it's read or set in a writable session, and
+     * again when the request completes. A session whose changed attributes all have their original fingerprints isn't
+     * written, and only the attributes that did change are written as a delta.
+     *
+     * Fingerprinting costs a serialization of each attribute that's read or set in a writable session, which pays off
+     * when a large share of writes would otherwise write back identical documents. Attributes read while the session
+     * wasn't writable yet can't be fingerprinted reliably, so a session like that is always written.
+     *
+     * @param skipUnchangedWrites Whether or not to skip writing sessions whose attributes didn't change
+     */
+    public void setSkipUnchangedWrites(boolean skipUnchangedWrites) {
+        this.skipUnchangedWrites = skipUnchangedWrites;
+    }
 
-            if (LOG.isDebugEnabled()) {
-                LOG.debug("Read failed to master, attempting read from replica for " + key, ex);
-            }
+    /**
+     * Create new sessions lazily. A new session then stays local to the request that created it, without a document
+     * or a cookie, until an attribute is first set or removed. The cookie is issued then, and the session is inserted
+     * when the request completes, with a single write. Requests that get a session but never write it, such as those
+     * of crawlers and health checks, cost no write and no stored document.
+     *
+     * The first write has to happen before the response is committed, or the session can't be given its cookie.
+     *
+     * @param lazyCreation Whether or not to create new sessions lazily
+     */
+    public void setLazyCreation(boolean lazyCreation) {
+        this.lazyCreation = lazyCreation;
+    }
+
+    /**
+     * Leave an alias under the old id of a session whose id is renewed, so that requests still carrying the old
+     * cookie that were already in flight during a login are served the renewed session rather than losing it. The
+     * alias expires after graceSeconds.
+     *
+     * Renewing the id on login is what protects against session fixation, and the alias re-opens that window for the
+     * grace period: a request that started before the renewal with the old id is served the authenticated session. To
+     * keep the window as small as that, only requests that started before the renewal, by the clock of the node that
+     * serves them, follow the alias, and they aren't given the new cookie. Any later request with the old id gets no
+     * session. Keep the grace period short, a few seconds is enough for requests in flight, and keep the clocks of the
+     * nodes in sync.
+     *
+     * @param graceSeconds The number of seconds the old id keeps resolving to the renewed session, 0 disables aliases
+     */
+    public void setRenewalGracePeriod(int graceSeconds) {
+        this.renewalGraceSeconds = graceSeconds;
+    }
 
-            //We should only read from a replica if there was a failure reading from the primary master.  This typically
-            //should only occur when there's a network issue or during an auto-failover (outage).
-            RawJsonDocument replicaDoc
-                    = bucket.getFromReplica(key, ReplicaMode.FIRST, RawJsonDocument.class).get(0);
+    /**
+     * Merge a write that fails because the session was written by another request since it was read, instead of
+     * failing it. The latest state of the session is read, the attributes this request changed are applied to it, and
+     * the write is retried after a short randomized backoff, up to maxRetries times.
+     *
+     * The stored form of each attribute is fingerprinted before the application can change it, as with
+     * setSkipUnchangedWrites(). An attribute that the other write didn't change takes the value this request set, one
+     * that both changed is resolved by the resolver. Attributes read before the session was made writable can't be
+     * fingerprinted reliably and are always resolved by the resolver.
+     *
+     * Only writes made on the request thread are merged, writes that go through the write queue fail as before.
+     *
+     * @param resolver Resolves attributes changed by both writes, null disables merging
+     * @param maxRetries The max number of times to merge and retry a write
+     * @param backoffMillis The max number of msec to wait before the first retry, doubling with each retry
+     */
+    public void enableConflictMerge(SessionConflictResolver resolver, int maxRetries, long backoffMillis) {
+        this.maxMergeRetries = maxRetries;
+        this.mergeBackoffMillis = backoffMillis;
+        this.conflictResolver = resolver;
+    }
 
-            if (replicaDoc == null) {
-                return null;
-            }
+    /**
+     * @return Whether or not attributes are fingerprinted before they can be changed
+     */
+    private boolean isFingerprinting() {
+        return skipUnchangedWrites || conflictResolver != null;
+    }
 
-            try {
-                return deserialize(replicaDoc.content(), replicaDoc.cas());
-            } catch (IOException replicaEx) {
-                throw new RuntimeException("Failed to deserialize replica session " + key, replicaEx);
-            }
+    /**
+     * Choose the format sessions are written in, and optionally compress sessions that are larger than a threshold.
+     * Sessions are always read in whatever format they were written in, so the format can be changed on a live system.
+     *
+     * Only uncompressed JSON sessions can be touched, revalidated or updated with sub-document operations. Binary
+     * sessions are touched with getAndTouch, aren't revalidated in the near cache, which then only serves them while
+     * they're fresh, and are always written in full.
+     *
+     * @param format The format to write sessions in
+     * @param compressionThreshold The size in bytes above which encoded sessions are compressed, 0 never compresses
+     */
+    public void setSessionFormat(SessionFormat format, int compressionThreshold) {
+        writer.setSessionFormat(format, compressionThreshold);
+    }
+
+    /**
+     * Hedge reads of sessions: if the active node hasn't returned a session within the given percentile of recent
+     * read latencies, but at least minDelayMillis, the session is read from all replicas as well, and whichever
+     * answers first is used. When several replicas answer at about the same time the copy with the highest CAS is
+     * used. A read that fails on the active node goes to the replicas right away rather than only after the replica
+     * fallback.
+     *
+     * This bounds the latency of reads during a failover or while a node stalls. A session read from a replica may be
+     * slightly behind, and its expiry isn't extended, so it's read again from the active node as soon as it's made
+     * writable. A session that can't be found on any replica is always looked up on the active node.
+     *
+     * @param percentile The percentile of recent read latencies after which reads are hedged, between 0 and 1, 0
+     * disables hedging
+     * @param minDelayMillis The min number of msec after which reads are hedged
+     */
+    public void enableHedgedReads(double percentile, long minDelayMillis) {
+        store.enableHedgedReads(percentile, minDelayMillis);
+    }
+
+    /**
+     * Time out calls to couchbase after a multiple of the given percentile of their recent latency, instead of always
+     * after the kv timeout of the environment. Reads, writes and replica reads are tracked separately, and so is each
+     * shard. The timeout never exceeds the kv timeout of the environment.
+     *
+     * @param percentile The percentile of recent latencies to base timeouts on, between 0 and 1, 0 disables adaptive
+     * timeouts
+     * @param multiplier The multiple of the percentile after which calls time out
+     * @param minTimeoutMillis The min number of msec after which calls time out
+     */
+    public void enableAdaptiveTimeouts(double percentile, double multiplier, long minTimeoutMillis) {
+        store.enableAdaptiveTimeouts(percentile, multiplier, minTimeoutMillis);
+    }
+
+    /**
+     * Stop calling couchbase once too many calls fail. Once at least minCalls calls have been made within windowMillis
+     * and failureRate of them failed, either timing out or with an error that says something about the health of the
+     * cluster, reads and writes fail fast with a SessionStoreUnavailableException for openMillis. Then a single call
+     * is let through, and the circuit closes again if it succeeds.
+     *
+     * While the circuit is open a session is served from the near cache, without revalidating it, or else read from
+     * the replicas, which aren't guarded by the circuit. Writes are handled according to setDegradedWritePolicy().
+     *
+     * Each shard has a circuit of its own, so that a struggling cluster doesn't stop calls to the others.
+     *
+     * @param failureRate The share of calls that have to fail for the circuit to open, between 0 and 1, 0 disables
+     * the circuit breaker
+     * @param minCalls The min number of calls within the window before the circuit can open
+     * @param windowMillis The number of msec over which calls are counted
+     * @param openMillis The number of msec the circuit stays open before a call is let through again
+     */
+    public void enableCircuitBreaker(double failureRate, int minCalls, long windowMillis, long openMillis) {
+        store.enableCircuitBreaker(failureRate, minCalls, windowMillis, openMillis, writer::flushDeferredWrites);
+    }
+
+    /**
+     * Set what happens to a session write, or a new session, while the circuit breaker is open. FAIL by default.
+     *
+     * @param policy What to do with a write while the circuit is open
+     * @param maxDeferredWrites The max number of sessions kept in memory by DEFER, writes beyond that are dropped
+     */
+    public void setDegradedWritePolicy(DegradedWritePolicy policy, int maxDeferredWrites) {
+        writer.setDegradedWritePolicy(policy, maxDeferredWrites);
+    }
+
+    /**
+     * Keep sessions whose sealed state fits into maxCookieBytes in a cookie instead of couchbase, so that requests
+     * with such sessions only read a small record from couchbase and never write to it. The state is encrypted and
+     * authenticated with a key derived from secret, which all nodes have to share. A session that grows too big is
+     * moved into couchbase, and back into the cookie once it's small enough again. The cookie is set like the session
+     * cookie and re-issued whenever a touch is due, see setTouchThreshold().
+     *
+     * The state cookie has to be set before the response is committed. HttpSessionCookieFilter writes the session
+     * when the response is about to be committed, a change made to a session in a cookie after that is dropped. The
+     * same goes for sessions of async requests, which are written once the request completes.
+     *
+     * A state cookie can't be taken back from a client, so couchbase keeps a small record of the lowest generation of
+     * state cookies still accepted for a session, see SessionCookieSealer. Each request served from a state cookie
+     * reads that record, and a cookie that isn't current, or can't be checked because couchbase failed, is ignored in
+     * favour of couchbase. Invalidating a session records it as revoked for its max inactive interval, and renewing
+     * its id revokes the old id, so a copy of an earlier cookie can't be replayed. A session moved into couchbase
+     * outdates the cookies issued before, and its document is removed before it's moved back into a cookie. A state
+     * cookie is also only accepted for maxLifetimeSeconds after the session was created, however often it's touched.
+     *
+     * @param cookieName The name of the cookie the state of the session is kept in
+     * @param secret The secret shared by all nodes, at least 16 random bytes
+     * @param maxCookieBytes The max length of the cookie value, up to around 4000 for browsers to keep it
+     * @param maxLifetimeSeconds The max number of seconds after a session was created that it's served from its state
+     * cookie
+     */
+    public void enableCookieSessions(String cookieName, byte[] secret, int maxCookieBytes, int maxLifetimeSeconds) {
+        if (maxLifetimeSeconds <= 0) {
+            throw new IllegalArgumentException("The max lifetime of cookie sessions must be positive");
         }
+
+        this.cookieMaxLifetimeMillis = TimeUnit.SECONDS.toMillis(maxLifetimeSeconds);
+        this.cookieSealer = new SessionCookieSealer(cookieName, secret, maxCookieBytes);
     }
 
-    @Override
-    protected void invalidateSessions() throws Exception {
-        if (LOG.isDebugEnabled()) {
-            LOG.debug("invalidateSessions()");
+    /**
+     * Keep an attribute cold, in a document of its own next to the session document rather than in the session
+     * document. A cold attribute is only read the first time getAttribute asks for it during a request, so reads of
+     * the session don't move it, and it's only written when it's set or removed. It expires ttlSeconds after it was
+     * last set regardless of the session, after which getAttribute returns null for it.
+     *
+     * Cold attributes aren't listed by getAttributeNames() until they've been asked for. Declare them before any
+     * session holds them, a value already in a session document is only moved once it's set again.
+     *
+     * The session document records which cold attributes the session holds, so setting one for the first time or
+     * removing one also writes the session document. When the session id is renewed only those are moved.
+     *
+     * @param name The name of the attribute
+     * @param ttlSeconds The number of seconds the attribute is kept for after it was last set
+     */
+    public void setColdAttribute(String name, int ttlSeconds) {
+        if (ttlSeconds <= 0) {
+            throw new IllegalArgumentException("The ttl of a cold attribute must be positive");
+        }
+        coldAttributes.put(name, ttlSeconds);
+    }
+
+    /**
+     * Check the size of sessions against a budget whenever they're written. A session over either limit is reported to
+     * the listener, with the size of each of its attributes, and counted in the metrics. A session over the hard
+     * limit is also logged, and written or not according to the policy.
+     *
+     * Sizes are those of the session document, in bytes for binary documents and chars for JSON. A session written
+     * in full is measured as the document that's written, so checking it costs nothing more than the write. A session
+     * whose changed attributes are written on their own is estimated from the size of its document and of the changed
+     * attributes, and only encoded in full if that's over the soft limit. The attributes of a session over a limit are
+     * each measured in the format of the document, scaled by how well it compressed if it's compressed, and a
+     * truncated session is encoded again once the sizes of the dropped attributes say it fits. Cold attributes don't
+     * count, see setColdAttribute().
+     *
+     * @param softLimit The size over which a session is reported, 0 disables the budget
+     * @param hardLimit The size over which the policy applies
+     * @param policy What to do with a session over the hard limit
+     * @param listener Told about sessions over either limit, or null to only count and log them
+     */
+    public void enableSizeBudget(int softLimit, int hardLimit, OversizedSessionPolicy policy,
+            SessionSizeListener listener) {
+        if (hardLimit < softLimit) {
+            throw new IllegalArgumentException("The hard size limit must be at least the soft limit");
         }
 
-        //Do nothing on shutdown.  We'll let couchbase TTL them for us.
+        writer.enableSizeBudget(softLimit, hardLimit, policy, listener);
     }
 
-    @Override
-    public void renewSessionId(String oldClusterId, String oldNodeId, String newClusterId, String newNodeId) {
-        String oldKey = getKey(oldClusterId);
-        String newKey = getKey(newClusterId);
+    /**
+     * Fire the events of sessions that time out: HttpSessionListeners are told the session was destroyed and attributes
+     * that are HttpSessionBindingListeners are unbound, as when a session is invalidated. Without this sessions just
+     * expire in couchbase and no listener is ever called for them.
+     *
+     * Every write or touch of a session is noted in an expiry index, see SessionExpiryIndex, with the CAS it left the
+     * session document with. The index is kept in couchbase, in each shard, and appended to in the background. A
+     * scheduler thread scans the index for sessions that should have expired and reads them in batches. A session
+     * whose document still has the CAS it was indexed with hasn't been used since, so it expired without any read
+     * having to record when it was used. It's removed conditionally on that CAS before its events are fired, so only
+     * the node that removed a session fires its events.
+     *
+     * Sessions are spread across the given number of partitions, each held by one node at a time with a lease. A node
+     * takes the partitions p where p % nodeCount == nodeIndex, and the partitions of a node that's down once its lease
+     * expired, until that node is back and claims them. Every node should be given the same number of partitions and
+     * nodes, and its own index, but partitions are still scanned if they aren't.
+     *
+     * Session documents are kept in couchbase for a grace period past their expiry, a few buckets and a lease, so that
+     * they can still be read when they're scanned. With touches throttled a session that's still in couchbase past
+     * its expiry is treated as missing, otherwise a read within the grace period keeps the session and no event is
+     * fired for it.
+     *
+     * Events are only fired for sessions written while this is enabled, and not for sessions kept in their state
+     * cookie or stored in a binary format, which still just expire in couchbase. Events are fired on the scheduler
+     * thread, with no request, so listeners should be quick and must not expect one.
+     *
+     * Must be called before the session manager is started.
+     *
+     * @param bucketSeconds The number of seconds of expiry times each document of the index covers, which is also
+     * about how late events may be fired
+     * @param partitions The number of partitions of the index, 0 disables expiry events
+     * @param nodeIndex The index of this node, from 0 to nodeCount - 1
+     * @param nodeCount The number of nodes the partitions are assigned to
+     */
+    public void enableExpiryEvents(int bucketSeconds, int partitions, int nodeIndex, int nodeCount) {
+        this.expiryBucketSeconds = bucketSeconds;
+        this.expiryPartitions = partitions;
+        this.expiryNodeIndex = nodeIndex;
+        this.expiryNodeCount = nodeCount;
+    }
 
-        if (LOG.isDebugEnabled()) {
-            LOG.debug("renewSessionId() oldKey={}, oldNodeId={}, newKey={}, newNodeId={}", oldKey,
-                    oldNodeId, newKey, newNodeId);
+    /**
+     * @return The number of seconds session documents are kept in couchbase for after they were last used
+     */
+    private int getExpiry() {
+        List<SessionExpiryIndex> indexes = expiryIndexes;
+        return indexes == null
+                ? getMaxInactiveInterval()
+                : getMaxInactiveInterval() + indexes.get(0).getGraceSeconds();
+    }
+
+    /**
+     * @param json The state of a session
+     * @param now The current time in msec since the epoch
+     * @return Whether or not the session expired, though it may still be in couchbase for the grace period of the
+     * expiry index
+     */
+    private boolean isExpired(SessionJson json, long now) {
+        return expiryIndexes != null && json.getLastTouched() + json.getMaxInactiveInterval() * 1000L <= now;
+    }
+
+    /**
+     * Note a write or touch of a session in the expiry index of its shard, if expiry events are enabled
+     *
+     * @param key The key of the session document
+     * @param maxInactiveInterval The max inactive interval of the session in seconds
+     * @param cas The CAS the write or touch left the document with
+     */
+    private void trackExpiry(String key, int maxInactiveInterval, long cas) {
+        List<SessionExpiryIndex> indexes = expiryIndexes;
+        if (indexes != null) {
+            long expiresAt = System.currentTimeMillis() + maxInactiveInterval * 1000L;
+            indexes.get(store.getShard(key)).track(getId(key), cas, expiresAt);
+        }
+    }
+
+    /**
+     * Record metrics of session operations into the given registry, see SessionMetrics for what's recorded. The
+     * metrics are registered under the name of this class, so session managers sharing a registry share metrics.
+     *
+     * @param registry The registry to record metrics into, null disables metrics
+     */
+    public void enableMetrics(MetricRegistry registry) {
+        this.metrics = registry != null ? new SessionMetrics(registry) : null;
+        writer.setMetrics(metrics);
+    }
+
+    private Timer.Context startTimer(Function<SessionMetrics, Timer> timer) {
+        SessionMetrics sessionMetrics = metrics;
+        return sessionMetrics == null ? null : timer.apply(sessionMetrics).time();
+    }
+
+    private static void stopTimer(Timer.Context context) {
+        if (context != null) {
+            context.stop();
+        }
+    }
+
+    private void mark(Function<SessionMetrics, Meter> meter) {
+        SessionMetrics sessionMetrics = metrics;
+        if (sessionMetrics != null) {
+            meter.apply(sessionMetrics).mark();
+        }
+    }
+
+    private boolean isTouchDue(long lastTouched, long now) {
+        double threshold = touchThreshold;
+        return threshold <= 0 || now - lastTouched >= threshold * getMaxInactiveInterval() * 1000L;
+    }
+
+    private void invalidateNearCache(String key) {
+        SessionNearCache cache = nearCache;
+        if (cache != null) {
+            cache.invalidate(key);
+        }
+    }
+
+    private void putNearCache(String key, SessionJson json, Object content, long cas) {
+        SessionNearCache cache = nearCache;
+        if (cache != null) {
+            cache.put(key, cache.newEntry(json, content, cas, getMaxInactiveInterval(), System.currentTimeMillis()));
+        }
+    }
+
+    @Override
+    protected void addSession(AbstractSession session) {
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Add session {}", session);
+        }
+
+        if (isRunning()) {
+            CouchbaseHttpSession couchbaseHttpSession = (CouchbaseHttpSession) session;
+            if (lazyCreation) {
+                //Inserted once it's first written, see updateSession()
+                couchbaseHttpSession.setInsertPending(true);
+                return;
+            }
+
+            Timer.Context timer = startTimer(SessionMetrics::getAddSession);
+            try {
+                insert(getKey(session.getClusterId()), couchbaseHttpSession);
+            } catch (IOException ex) {
+                throw new RuntimeException("Failed serialize session " + session, ex);
+            } finally {
+                stopTimer(timer);
+            }
+        }
+    }
+
+    /**
+     * Insert a new session
+     *
+     * @param key The key of the session document
+     * @param session The session
+     * @throws IOException
+     */
+    private void insert(String key, CouchbaseHttpSession session) throws IOException {
+        session.setLastTouched(System.currentTimeMillis());
+        EncodedSession encoded = encodeWithinBudget(key, session, false);
+
+        SessionCookieSealer sealer = cookieSealer;
+        if (sealer != null && writeStateCookie(sealer, key, session, encoded.getContent(), false)) {
+            return;
+        }
+
+        SessionJson json = encoded.getJson();
+        Object content = encoded.getContent();
+        session.setStored(content);
+
+        Document<?> doc;
+        try {
+            doc = writer.insert(key, json, content);
+        } catch (SessionStoreUnavailableException ex) {
+            writeDegraded(key, json, content, 0, ex);
+            return;
+        }
+        session.setCas(doc.cas());
+        putNearCache(key, json, content, doc.cas());
+        trackExpiry(key, session.getMaxInactiveInterval(), doc.cas());
+    }
+
+    @Override
+    public AbstractSession getSession(String idInCluster) {
+        Request request = getCurrentRequest();
+        if (request != null) {
+            request.setAttribute(LOOKED_UP_ATTRIBUTE, Boolean.TRUE);
+        }
+
+        Timer.Context timer = startTimer(SessionMetrics::getGetSession);
+        try {
+            return findSession(getKey(idInCluster));
+        } finally {
+            stopTimer(timer);
+        }
+    }
+
+    /**
+     * Find a session, waiting for it to be looked up.
+     *
+     * @param key The key of the session document
+     * @return The session or null if it doesn't exist
+     */
+    private CouchbaseHttpSession findSession(String key) {
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Get session {}", key);
+        }
+
+        return lookup(key).toBlocking().singleOrDefault(null);
+    }
+
+    /**
+     * Look a session up wherever its most recent state is: a current state cookie of the request, a pending or
+     * deferred write, the near cache, its shard, the previous set of shards or the session the alias under a renewed
+     * id leads to, falling back to the first replica when its shard can't be read. getSession() waits for the lookup
+     * and getSessionAsync() doesn't, which is the only difference between them.
+     *
+     * What the lookup needs from the request being handled on this thread is taken when it's created, so it may run
+     * on any thread.
+     *
+     * @param key The key of the session document
+     * @return The session, or nothing if it doesn't exist
+     */
+    private Observable<CouchbaseHttpSession> lookup(String key) {
+        long requestStart = getRequestStart();
+        SessionCookieSealer sealer = cookieSealer;
+        CouchbaseHttpSession cookieSession = sealer == null ? null : readStateCookie(sealer, key);
+        return Observable.defer(() -> cookieSession == null
+                ? Observable.<CouchbaseHttpSession>empty()
+                : checkStateCookie(key, cookieSession))
+                .switchIfEmpty(Observable.defer(() -> findLocalSession(key)))
+                .switchIfEmpty(Observable.defer(() -> loadStored(key, requestStart)));
+    }
+
+    /**
+     * @return The request being handled on this thread, or null if there is none
+     */
+    private static Request getCurrentRequest() {
+        HttpConnection connection = HttpConnection.getCurrentConnection();
+        return connection == null ? null : connection.getHttpChannel().getRequest();
+    }
+
+    /**
+     * Read a session from the state cookie of the request being handled on this thread
+     *
+     * @param sealer Opens the state cookie
+     * @param key The key of the session document
+     * @return The session, or null if the request doesn't carry a valid state cookie for it or the session expired or
+     * outlived the max lifetime of cookie sessions
+     */
+    private CouchbaseHttpSession readStateCookie(SessionCookieSealer sealer, String key) {
+        Request request = getCurrentRequest();
+        Cookie[] cookies = request == null ? null : request.getCookies();
+        if (cookies == null) {
+            return null;
+        }
+
+        for (Cookie cookie : cookies) {
+            if (!sealer.getCookieName().equals(cookie.getName())) {
+                continue;
+            }
+
+            SessionCookieSealer.State state = sealer.open(cookie.getValue(), getId(key));
+            if (state == null) {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Ignoring state cookie that isn't the sealed state of session {}", key);
+                }
+                continue;
+            }
+
+            try {
+                Object content = state.getContent();
+                SessionJson json = readJson(content);
+                long now = System.currentTimeMillis();
+                if (json.getLastTouched() + json.getMaxInactiveInterval() * 1000L < now
+                        || json.getCreationTime() + cookieMaxLifetimeMillis < now) {
+                    return null;
+                }
+
+                CouchbaseHttpSession session = restore(json, content, 0);
+                session.setCookieStored(true);
+                session.setCookieGeneration(state.getGeneration());
+                return session;
+            } catch (IOException ex) {
+                throw new RuntimeException("Failed to deserialize session " + key, ex);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Read a session from the state cookie of the request being handled on this thread if the cookie is still current
+     *
+     * @param sealer Opens the state cookie
+     * @param key The key of the session document
+     * @return The session, or null if it isn't to be served from a state cookie
+     */
+    private CouchbaseHttpSession readCurrentStateCookie(SessionCookieSealer sealer, String key) {
+        CouchbaseHttpSession session = readStateCookie(sealer, key);
+        return session == null ? null : checkStateCookie(key, session).toBlocking().singleOrDefault(null);
+    }
+
+    /**
+     * Check that the state cookie a session was read from is still current, ignoring it if that can't be checked.
+     *
+     * @param key The key of the session document
+     * @param session The session read from the state cookie
+     * @return The session, or nothing if it isn't to be served from its state cookie
+     */
+    private Observable<CouchbaseHttpSession> checkStateCookie(String key, CouchbaseHttpSession session) {
+        return store.readCookieGeneration(key)
+                .flatMap(recorded -> {
+                    if (!SessionCookieSealer.isCurrent(session.getCookieGeneration(), recorded)) {
+                        if (LOG.isDebugEnabled()) {
+                            LOG.debug("Ignoring state cookie of session {} of generation {}, {} is current", key,
+                                    session.getCookieGeneration(), recorded);
+                        }
+                        return Observable.<CouchbaseHttpSession>empty();
+                    }
+
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug("Serving session {} from its state cookie", key);
+                    }
+                    return Observable.just(session);
+                })
+                .onErrorResumeNext(error -> {
+                    if (!SessionStore.isStoreFailure(error)) {
+                        return Observable.error(error);
+                    }
+                    LOG.warn("Failed to check the state cookie of session {}, ignoring it", key, error);
+                    return Observable.empty();
+                });
+    }
+
+    /**
+     * Write a session into its state cookie if it fits. A session that was in couchbase is removed from there first,
+     * one that was in the cookie and no longer fits is moved into couchbase, outdating the cookies issued before.
+     *
+     * @param sealer Seals the state cookie
+     * @param key The key of the session document
+     * @param session The session
+     * @param content The encoded session, which is written to couchbase as is if it doesn't fit in the cookie
+     * @param stored Whether or not the session may be stored in couchbase
+     * @return Whether or not the write was handled, false if the session is to be written to couchbase
+     */
+    private boolean writeStateCookie(SessionCookieSealer sealer, String key, CouchbaseHttpSession session,
+            Object content, boolean stored) {
+        //Measured before sealing, a session too big for the cookie isn't sealed at all
+        if (sealer.fits(content) && canSetStateCookie()) {
+            if (stored && !session.isCookieStored() && !removeForStateCookie(key, session)) {
+                return false;
+            }
+            setStateCookie(sealer, sealer.seal(content, session.getClusterId(), session.getCookieGeneration()));
+            session.setCookieStored(true);
+
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Wrote session {} into its state cookie", key);
+            }
+            return true;
+        }
+
+        if (!session.isCookieStored()) {
+            return false;
+        }
+
+        if (!canSetStateCookie()) {
+            LOG.warn("Dropped write of session {}, its state cookie can't be set once the response is committed", key);
+            return true;
+        }
+
+        //Too big for the cookie, moved into couchbase as a new document that no cookie issued so far is accepted over
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Moving session {} out of its state cookie", key);
+        }
+        long generation = session.getCookieGeneration() + 1;
+        store.recordCookieGeneration(key, generation, session.getMaxInactiveInterval());
+        setStateCookie(sealer, null);
+        session.setCookieGeneration(generation);
+        session.setCookieStored(false);
+        session.setCas(0);
+        session.changedAttributes = null;
+        return false;
+    }
+
+    /**
+     * Remove the document of a session that's moving into its state cookie, so that a document and a cookie are never
+     * both accepted for it, and take on the generation of state cookies accepted for it
+     *
+     * @param key The key of the session document
+     * @param session The session
+     * @return Whether or not the session can move into its cookie, false if it's to stay in couchbase because it was
+     * written since it was read, was invalidated or couchbase failed
+     */
+    private boolean removeForStateCookie(String key, CouchbaseHttpSession session) {
+        try {
+            long recorded = store.readCookieGeneration(key).toBlocking().single();
+            if (recorded == SessionCookieSealer.REVOKED) {
+                return false;
+            }
+
+            try {
+                store.call(key, StoreOperation.WRITE, timeout -> store.bucket(key).remove(
+                        RawJsonDocument.create(key, null, session.getCas()), timeout, TimeUnit.MICROSECONDS));
+            } catch (DocumentDoesNotExistException ex) {
+                //Not written yet or expired
+            }
+            session.setCookieGeneration(Math.max(session.getCookieGeneration(), recorded));
+        } catch (CASMismatchException ex) {
+            return false;
+        } catch (RuntimeException ex) {
+            if (!SessionStore.isStoreFailure(ex)) {
+                throw ex;
+            }
+            LOG.warn("Failed to move session {} into its state cookie, keeping it in couchbase", key, ex);
+            return false;
+        } finally {
+            invalidateNearCache(key);
+        }
+
+        writer.removeDeferredWrite(key);
+        return true;
+    }
+
+    /**
+     * Extend the expiry of a session kept in a state cookie by issuing the cookie again, if a touch is due and the
+     * response isn't committed yet
+     *
+     * @param session The session
+     */
+    private void touchStateCookie(CouchbaseHttpSession session) {
+        SessionCookieSealer sealer = cookieSealer;
+        long now = System.currentTimeMillis();
+        if (sealer == null || !isTouchDue(session.getLastTouched(), now)) {
+            return;
+        }
+
+        long lastTouched = session.getLastTouched();
+        session.setLastTouched(now);
+        try {
+            Object content = writer.getCodec().encode(toJson(session));
+            if (!sealer.fits(content) || !setStateCookie(sealer, sealer.seal(content, session.getClusterId(),
+                    session.getCookieGeneration()))) {
+                session.setLastTouched(lastTouched);
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException("Failed serialize session " + session, ex);
+        }
+    }
+
+    /**
+     * @return Whether or not a state cookie can be set on the response being handled on this thread, which it can't
+     * once the response is committed
+     */
+    private static boolean canSetStateCookie() {
+        Request request = getCurrentRequest();
+        return request != null && !request.getResponse().isCommitted();
+    }
+
+    /**
+     * Set the state cookie on the response being handled on this thread, like the session cookie
+     *
+     * @param sealer Names the state cookie
+     * @param sealed The sealed state of the session, or null to remove the cookie
+     * @return Whether or not the cookie was set, which it can't be once the response is committed
+     */
+    private boolean setStateCookie(SessionCookieSealer sealer, String sealed) {
+        if (!canSetStateCookie()) {
+            return false;
+        }
+
+        Request request = getCurrentRequest();
+        String path = getSessionPath();
+        if (path == null) {
+            path = request.getContextPath() == null || request.getContextPath().isEmpty()
+                    ? "/"
+                    : request.getContextPath();
+        }
+        request.getResponse().addCookie(new HttpCookie(sealer.getCookieName(),
+                sealed == null ? "" : sealed,
+                getSessionDomain(),
+                path,
+                sealed == null ? 0 : getMaxCookieAge(),
+                getHttpOnly(),
+                request.isSecure()));
+        return true;
+    }
+
+    /**
+     * Find a session whose most recent state is in memory, in a pending or deferred write or the near cache.
+     *
+     * @param key The key of the session document
+     * @return The session, or nothing if it has to be read from couchbase
+     */
+    private Observable<CouchbaseHttpSession> findLocalSession(String key) {
+        SessionWriteQueue queue = writer.getWriteQueue();
+        if (queue != null) {
+            SessionWriteQueue.PendingWrite pending = queue.getPending(key);
+            if (pending != null) {
+                return Observable.just(getPendingSession(pending));
+            }
+        }
+
+        DeferredWrite deferred = writer.getDeferredWrite(key);
+        if (deferred != null) {
+            return Observable.just(getDeferredSession(key, deferred));
+        }
+
+        SessionNearCache cache = nearCache;
+        return cache != null ? getCachedSession(cache, key) : Observable.empty();
+    }
+
+    /**
+     * Get a session without blocking the calling thread on couchbase. It's looked up the same way getSession() looks
+     * it up, on the async bucket api.
+     *
+     * The returned stage may complete on a couchbase client thread, so dependent stages that block should be run on
+     * an executor of their own.
+     *
+     * @param idInCluster The id of the session
+     * @return Completes with the session, or null if it doesn't exist
+     */
+    public CompletionStage<CouchbaseHttpSession> getSessionAsync(String idInCluster) {
+        String key = getKey(idInCluster);
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Get session {} asynchronously", key);
+        }
+
+        Timer.Context timer = startTimer(SessionMetrics::getGetSession);
+        CompletableFuture<CouchbaseHttpSession> future = new CompletableFuture<>();
+        try {
+            lookup(key).subscribe(future::complete, future::completeExceptionally, () -> future.complete(null));
+        } catch (RuntimeException ex) {
+            future.completeExceptionally(ex);
+        }
+        return future.whenComplete((session, error) -> stopTimer(timer));
+    }
+
+    /**
+     * Look up the session a request asked for without blocking on couchbase, unless it was looked up during the
+     * request already, and hand it to the request the way the session handler does.
+     *
+     * @param request The request, or a wrapper of it
+     * @return Completes with the session, or null if it doesn't exist. Null if the request isn't handled by a
+     * CouchbaseSessionManager, doesn't ask for a session or was given its session already.
+     */
+    static CompletionStage<CouchbaseHttpSession> getRequestedSessionAsync(HttpServletRequest request) {
+        Request base = request instanceof Request ? (Request) request : getCurrentRequest();
+        if (base == null || !(base.getSessionManager() instanceof CouchbaseSessionManager)) {
+            return null;
+        }
+
+        String requested = base.getRequestedSessionId();
+        if (requested == null || base.getAttribute(LOOKED_UP_ATTRIBUTE) != null || base.getSession(false) != null) {
+            return null;
+        }
+        base.setAttribute(LOOKED_UP_ATTRIBUTE, Boolean.TRUE);
+
+        CouchbaseSessionManager manager = (CouchbaseSessionManager) base.getSessionManager();
+        return manager.getSessionAsync(manager.getSessionIdManager().getClusterId(requested)).thenApply(session -> {
+            if (session != null) {
+                HttpCookie cookie = manager.access(session, base.isSecure());
+                if (cookie != null) {
+                    base.getResponse().addCookie(cookie);
+                }
+                //Completed by the session handler once the request is, as the session it resolves itself
+                base.setSession(session);
+            }
+            return session;
+        });
+    }
+
+    /**
+     * Read a session from its shard, moving it from the previous set of shards or following its alias if it isn't
+     * there, or from the first replica if its shard can't be read.
+     *
+     * @param key The key of the session document
+     * @param requestStart The time in msec since the epoch the request the session is read for started at
+     * @return The session, or nothing if it doesn't exist
+     */
+    private Observable<CouchbaseHttpSession> loadStored(String key, long requestStart) {
+        Observable<CouchbaseHttpSession> current = Observable.defer(() -> read(key));
+        return current
+                .switchIfEmpty(Observable.defer(() -> {
+                    invalidateNearCache(key);
+                    return migrate(key, current);
+                }))
+                .switchIfEmpty(Observable.defer(() -> renewalGraceSeconds > 0
+                        ? followAlias(key, requestStart)
+                        : Observable.empty()))
+                .onErrorResumeNext(error -> {
+                    if (!SessionStore.isStoreFailure(error)) {
+                        return Observable.error(error);
+                    }
+
+                    if (error instanceof SessionStoreUnavailableException) {
+                        if (LOG.isDebugEnabled()) {
+                            LOG.debug("Circuit is open, reading from replica for {}", key);
+                        }
+                    } else {
+                        LOG.warn("Read failed to master, attempting read from replica for {}", key);
+                    }
+
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug("Read failed to master, attempting read from replica for " + key, error);
+                    }
+
+                    //We should only read from a replica if there was a failure reading from the primary master.  This
+                    //typically should only occur when there's a network issue or during an auto-failover (outage).
+                    return store.readReplica(key).map(read -> restoreRead(key, read));
+                });
+    }
+
+    /**
+     * Read a session from its shard, touching it only when a touch is due if touches are throttled.
+     *
+     * @param key The key of the session document
+     * @return The session, or nothing if it doesn't exist
+     */
+    private Observable<CouchbaseHttpSession> read(String key) {
+        return touchThreshold > 0 ? readThrottled(key) : readTouched(key);
+    }
+
+    /**
+     * Read a session from the active node, extending its expiry.
+     *
+     * @param key The key of the session document
+     * @return The session, or nothing if it doesn't exist
+     */
+    private Observable<CouchbaseHttpSession> readTouched(String key) {
+        return store.read(key, true).map(read -> restoreRead(key, read));
+    }
+
+    /**
+     * Restore a session from a document read asynchronously
+     *
+     * @param key The key of the session document
+     * @param read The document and where it was read from
+     * @return The session
+     */
+    private CouchbaseHttpSession restoreRead(String key, Read read) {
+        try {
+            return restore(key, read);
+        } catch (IOException ex) {
+            throw new RuntimeException("Failed to deserialize session " + key, ex);
+        }
+    }
+
+    /**
+     * Restore a session from a document read with getAndTouch, or from a replica
+     *
+     * @param key The key of the session document
+     * @param read The document and where it was read from
+     * @return The session
+     * @throws IOException
+     */
+    private CouchbaseHttpSession restore(String key, Read read) throws IOException {
+        Document<?> doc = read.getDoc();
+        SessionJson json = readJson(doc.content());
+        if (read.isFromReplica()) {
+            mark(SessionMetrics::getReplicaFallbacks);
+            CouchbaseHttpSession session = restore(json, doc.content(), doc.cas());
+            session.setRefreshOnWrite(true);
+            return session;
+        }
+
+        json.setLastTouched(System.currentTimeMillis());
+        putNearCache(key, json, doc.content(), doc.cas());
+        trackExpiry(key, json.getMaxInactiveInterval(), doc.cas());
+
+        return restore(json, doc.content(), doc.cas());
+    }
+
+    /**
+     * Read a session with a plain get, optionally from a replica, and only extend its expiry if a touch is due.
+     *
+     * @param key The key of the session document
+     * @return The session, or nothing if it doesn't exist
+     */
+    private Observable<CouchbaseHttpSession> readThrottled(String key) {
+        Observable<Read> active = Observable.defer(() -> store.read(key, false).doOnNext(read -> {
+            if (read.isFromReplica()) {
+                //Only a hedged read is answered by a replica
+                mark(SessionMetrics::getReplicaFallbacks);
+            }
+        }));
+        if (!replicaReads) {
+            return active.flatMap(read -> touchIfDue(key, read));
+        }
+
+        return store.readReplica(key)
+                .onErrorResumeNext(error -> {
+                    if (!SessionStore.isStoreFailure(error)) {
+                        return Observable.error(error);
+                    }
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug("Read failed to replica, reading from master for " + key, error);
+                    }
+                    return Observable.empty();
+                })
+                .switchIfEmpty(active)
+                .flatMap(read -> touchIfDue(key, read));
+    }
+
+    /**
+     * Serve a session read with a plain get, extending its expiry first if a touch is due.
+     *
+     * @param key The key of the session document
+     * @param read The document and where it was read from
+     * @return The session, or nothing if it expired or no longer exists
+     */
+    private Observable<CouchbaseHttpSession> touchIfDue(String key, Read read) {
+        Object content = read.getDoc().content();
+        SessionJson json;
+        try {
+            json = readJson(content);
+        } catch (IOException ex) {
+            return Observable.error(new RuntimeException("Failed to deserialize session " + key, ex));
+        }
+
+        long now = System.currentTimeMillis();
+        if (SessionCodec.isJson(content) && isExpired(json, now)) {
+            //The replica may be behind, otherwise it's left for the expiry index to fire its events
+            return read.isFromReplica()
+                    ? store.readActive(key, false).flatMap(current -> touchIfDue(key, current))
+                    : Observable.empty();
+        }
+
+        if (!isTouchDue(json.getLastTouched(), now)) {
+            CouchbaseHttpSession session = restore(json, content, read.getDoc().cas());
+            if (read.isFromReplica()) {
+                session.setRefreshOnWrite(true);
+            } else {
+                putNearCache(key, json, content, read.getDoc().cas());
+            }
+            return Observable.just(session);
+        }
+
+        if (!SessionCodec.isJson(content)) {
+            //Binary documents can't be touched conditionally
+            return readTouched(key);
+        }
+
+        return store.touch(key, read.getDoc().cas(), now)
+                .map(cas -> {
+                    //The CAS matched the active copy so even a replica read was current
+                    json.setLastTouched(now);
+                    putNearCache(key, json, content, cas);
+                    trackExpiry(key, json.getMaxInactiveInterval(), cas);
+                    return restore(json, content, cas);
+                })
+                .onErrorResumeNext(error -> {
+                    if (error instanceof CASMismatchException) {
+                        //Either the session changed since it was read or the replica was behind
+                        return readTouched(key);
+                    }
+                    return error instanceof DocumentDoesNotExistException
+                            ? Observable.empty()
+                            : Observable.error(error);
+                });
+    }
+
+    /**
+     * Move a session that isn't on its shard yet from the shard the previous set of shards maps it to.
+     *
+     * @param key The key of the session document
+     * @param current Reads the session from its shard, for when a concurrent request moved it first
+     * @return The session, or nothing if there is no previous set of shards or the session isn't there either
+     */
+    private Observable<CouchbaseHttpSession> migrate(String key, Observable<CouchbaseHttpSession> current) {
+        return store.migrate(key)
+                .map(read -> restoreRead(key, read))
+                .onErrorResumeNext(error -> error instanceof DocumentAlreadyExistsException
+                        //Moved by a concurrent request
+                        ? current
+                        : Observable.error(error));
+    }
+
+    /**
+     * Serve a session whose id was renewed during the grace period from its alias under the old id, to a request that
+     * started before the renewal. The request keeps its old cookie, it isn't issued the new one.
+     *
+     * @param key The key of the session document under the old id
+     * @param requestStart The time in msec since the epoch the request the session is read for started at
+     * @return The session, or nothing if there is no alias, the request started after the renewal or the renewed
+     * session doesn't exist
+     */
+    private Observable<CouchbaseHttpSession> followAlias(String key, long requestStart) {
+        return store.followAlias(key, requestStart).flatMap(this::read);
+    }
+
+    /**
+     * @return The time in msec since the epoch the request being handled on this thread started at, or Long.MAX_VALUE
+     * if there is none
+     */
+    private static long getRequestStart() {
+        Request request = getCurrentRequest();
+        return request == null ? Long.MAX_VALUE : request.getTimeStamp();
+    }
+
+    /**
+     * Serve a session from a write that hasn't reached couchbase yet. Parse it again rather than sharing the state of
+     * the session it was written from, since that may have been modified in place.
+     *
+     * @param pending The most recent pending write of the session
+     * @return The session
+     */
+    private CouchbaseHttpSession getPendingSession(SessionWriteQueue.PendingWrite pending) {
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Serving session {} from pending write", pending.getKey());
+        }
+
+        try {
+            SessionJson json = readJson(pending.getContent());
+            CouchbaseHttpSession session = restore(json, pending.getContent(), 0);
+            session.setPendingWrite(pending);
+            return session;
+        } catch (IOException ex) {
+            throw new RuntimeException("Failed to deserialize pending session " + pending.getKey(), ex);
+        }
+    }
+
+    /**
+     * Serve a session from a write deferred while the circuit was open.
+     *
+     * @param key The key of the session document
+     * @param deferred The deferred write
+     * @return The session
+     */
+    private CouchbaseHttpSession getDeferredSession(String key, DeferredWrite deferred) {
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Serving session {} from deferred write", key);
+        }
+
+        try {
+            return restore(readJson(deferred.getContent()), deferred.getContent(), deferred.getCas());
+        } catch (IOException ex) {
+            throw new RuntimeException("Failed to deserialize deferred session " + key, ex);
+        }
+    }
+
+    /**
+     * Handle a write that was rejected because the circuit is open, see SessionWriter.writeDegraded(). The near cache
+     * no longer holds the latest state of the session either way.
+     *
+     * @param key The key of the session document
+     * @param json The session state
+     * @param content The serialized session state
+     * @param cas The CAS the write has to be made with, 0 for a new session
+     * @param ex Why the write was rejected
+     */
+    private void writeDegraded(String key, SessionJson json, Object content, long cas,
+            SessionStoreUnavailableException ex) {
+        invalidateNearCache(key);
+        writer.writeDegraded(key, json, content, cas, ex);
+    }
+
+    /**
+     * Serve a session from the near cache, revalidating the cached copy first if it's no longer fresh.
+     *
+     * @param cache The near cache
+     * @param key The key of the session document
+     * @return The session, or nothing if it isn't cached or the cached copy is out of date
+     */
+    private Observable<CouchbaseHttpSession> getCachedSession(SessionNearCache cache, String key) {
+        long now = System.currentTimeMillis();
+        SessionNearCache.Entry entry = cache.get(key, now);
+        if (entry == null) {
+            return Observable.empty();
+        }
+        if (entry.isFresh(now)) {
+            return Observable.just(restoreCached(key, entry, false));
+        }
+
+        //The same entry comes back when it couldn't be revalidated because the circuit is open
+        return revalidate(cache, key, entry, now).map(current -> restoreCached(key, current, current != entry));
+    }
+
+    /**
+     * @param key The key of the session document
+     * @param entry The cached copy of the session
+     * @param revalidated Whether or not the cached copy was revalidated for this request
+     * @return The session
+     */
+    private CouchbaseHttpSession restoreCached(String key, SessionNearCache.Entry entry, boolean revalidated) {
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Serving session {} from near cache", key);
+        }
+
+        //Decode a copy of the cached state rather than handing out its attribute instances, so that an attribute
+        //changed in place can't leak into the near cache and every later request served from it
+        SessionJson json;
+        try {
+            json = readJson(entry.getContent());
+        } catch (IOException ex) {
+            throw new RuntimeException("Failed to deserialize cached session " + key, ex);
+        }
+
+        CouchbaseHttpSession session = restore(json, entry.getContent(), entry.getCas());
+        session.setLastTouched(entry.getLastTouched());
+        session.setNearCacheEntry(entry);
+        session.setRevalidated(revalidated);
+        session.setRefreshOnWrite(true);
+        return session;
+    }
+
+    /**
+     * Revalidate a cached session by extending the expiry of the stored document only if its CAS still matches the
+     * cached one. This both proves that the cached copy is current and keeps the session alive, without transferring
+     * or parsing the document. When touches are throttled and no touch is due only the CAS is looked up. Binary
+     * documents can't be revalidated this way so they're fetched again instead.
+     *
+     * @param cache The near cache
+     * @param key The key of the session document
+     * @param entry The cached copy to revalidate
+     * @param now The current time in msec since the epoch
+     * @return The revalidated entry, or nothing if the document changed, no longer exists or couldn't be reached
+     */
+    private Observable<SessionNearCache.Entry> revalidate(SessionNearCache cache, String key,
+            SessionNearCache.Entry entry, long now) {
+        if (!SessionCodec.isJson(entry.getContent())) {
+            cache.invalidate(key);
+            return Observable.empty();
+        }
+
+        Observable<SessionNearCache.Entry> revalidated;
+        if (isTouchDue(entry.getLastTouched(), now)) {
+            revalidated = store.touch(key, entry.getCas(), now)
+                    .map(cas -> {
+                        trackExpiry(key, getMaxInactiveInterval(), cas);
+                        return entry.revalidated(cas, now, getMaxInactiveInterval(), now);
+                    });
+        } else {
+            revalidated = store.readCas(key)
+                    .map(cas -> {
+                        if (cas != entry.getCas()) {
+                            throw new CASMismatchException("Session " + key + " changed since it was cached");
+                        }
+                        return entry.revalidated(cas, entry.getLastTouched(), getMaxInactiveInterval(), now);
+                    });
+        }
+
+        return revalidated
+                .doOnNext(current -> cache.put(key, current))
+                .onErrorResumeNext(error -> {
+                    if (error instanceof SessionStoreUnavailableException) {
+                        //Serve the cached copy, however stale, rather than nothing until the circuit closes
+                        return Observable.just(entry);
+                    }
+                    if (!SessionStore.isStoreFailure(error)) {
+                        return Observable.error(error);
+                    }
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug("Near cache entry for " + key + " is out of date", error);
+                    }
+
+                    cache.invalidate(key);
+                    return Observable.empty();
+                });
+    }
+
+    /**
+     * A session served from the near cache or a replica is about to be written to. Make sure the state it was served
+     * with is still current, fetching the document again if it isn't, and give the session its own copy of every
+     * attribute so that in place modifications can't leak into the near cache. A cached copy that was already
+     * revalidated during this request isn't revalidated again.
+     *
+     * @param session The session served from the near cache or a replica
+     */
+    private void refreshForWrite(CouchbaseHttpSession session) {
+        SessionNearCache.Entry entry = session.getNearCacheEntry();
+        boolean revalidated = session.isRevalidated();
+        session.setNearCacheEntry(null);
+        session.setRevalidated(false);
+        session.setRefreshOnWrite(false);
+
+        String key = getKey(session.getClusterId());
+        SessionNearCache cache = nearCache;
+        long now = System.currentTimeMillis();
+        SessionNearCache.Entry current;
+        if (cache == null || entry == null) {
+            current = null;
+        } else {
+            current = revalidated ? entry : revalidate(cache, key, entry, now).toBlocking().singleOrDefault(null);
+        }
+
+        try {
+            Object content;
+            long cas;
+            long touched;
+            if (current != null) {
+                content = current.getContent();
+                cas = current.getCas();
+                touched = current.getLastTouched();
+            } else {
+                Document<?> doc = store.getAndTouchDocument(key);
+                if (doc == null) {
+                    //The session is gone, leave it as it is and let the write fail
+                    return;
+                }
+
+                content = doc.content();
+                cas = doc.cas();
+                touched = now;
+            }
+
+            SessionJson json = readJson(content);
+            json.setLastTouched(touched);
+            if (current == null) {
+                putNearCache(key, json, content, cas);
+            }
+
+            session.getAttributeMap().clear();
+            session.addAttributes(json.getAttributes());
+            session.setCas(cas);
+            session.setLastSaved(json.getLastSaved());
+            session.setLastTouched(touched);
+            session.setStored(content);
+        } catch (IOException ex) {
+            throw new RuntimeException("Failed to deserialize session " + key, ex);
+        }
+    }
+
+    @Override
+    protected void invalidateSessions() throws Exception {
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("invalidateSessions()");
+        }
+
+        //Do nothing on shutdown.  We'll let couchbase TTL them for us, or the expiry index fire their events.
+    }
+
+    /**
+     * Fire the events of the sessions of a batch of the expiry index that expired, see enableExpiryEvents(). The
+     * sessions are read at once, and those whose document still has a CAS they were indexed with in the bucket scanned
+     * haven't been written or touched since, so they expired. They're removed conditionally on that CAS, so that a
+     * session used in the meantime is kept and only the node that removed a session fires its events. The sessions
+     * that were used since are in the index again with their new CAS.
+     *
+     * Runs on the scheduler thread of an expiry index.
+     *
+     * @param sessions The ids of sessions that may have expired, mapped to the CAS values they were indexed with
+     */
+    private void expireSessions(Map<String, Set<Long>> sessions) {
+        long timeoutMillis = store.getKvTimeout();
+        List<Document<?>> docs = Observable.from(sessions.keySet())
+                .flatMap(sessionId -> store.getDocumentAsync(getKey(sessionId)))
+                .toList()
+                .timeout(timeoutMillis, TimeUnit.MILLISECONDS)
+                .toBlocking()
+                .single();
+
+        List<SimpleImmutableEntry<Document<?>, SessionJson>> expired = new ArrayList<>();
+        for (Document<?> doc : docs) {
+            if (!SessionCodec.isJson(doc.content())) {
+                //Left to expire in couchbase
+                continue;
+            }
+
+            try {
+                SessionJson json = readJson(doc.content());
+                Set<Long> indexed = sessions.get(json.getSessionId());
+                if (indexed != null && indexed.contains(doc.cas())) {
+                    expired.add(new SimpleImmutableEntry<>(doc, json));
+                }
+            } catch (IOException ex) {
+                LOG.warn("Failed to deserialize expiring session {}", doc.id(), ex);
+            }
+        }
+
+        List<SimpleImmutableEntry<Document<?>, SessionJson>> removed = Observable.from(expired)
+                .flatMap(entry -> store.callAsync(entry.getKey().id(), StoreOperation.WRITE,
+                        timeout -> SessionStore.widen(store.bucket(entry.getKey().id()).async().remove(entry.getKey())))
+                        .map(doc -> entry)
+                        .onErrorResumeNext(error -> {
+                            if (!(error instanceof CASMismatchException
+                                    || error instanceof DocumentDoesNotExistException)) {
+                                LOG.warn("Failed to remove expired session {}", entry.getKey().id(), error);
+                                //Tried again once the bucket the session is indexed in now has passed
+                                trackExpiry(entry.getKey().id(), 0, entry.getKey().cas());
+                            }
+                            return Observable.empty();
+                        }))
+                .toList()
+                .timeout(timeoutMillis * 2, TimeUnit.MILLISECONDS)
+                .toBlocking()
+                .single();
+
+        for (SimpleImmutableEntry<Document<?>, SessionJson> entry : removed) {
+            String key = entry.getKey().id();
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Session {} expired", key);
+            }
+
+            invalidateNearCache(key);
+            fireSessionExpired(restore(entry.getValue(), entry.getKey().content(), 0));
+            for (String name : coldAttributes.keySet()) {
+                store.removeInBackground(key, getColdKey(key, name));
+            }
+            mark(SessionMetrics::getExpiredSessions);
+        }
+    }
+
+    /**
+     * Tell the session listeners that an expired session was destroyed and unbind its attributes, as jetty does when a
+     * session is invalidated
+     *
+     * @param session The expired session, which has been removed from couchbase
+     */
+    private void fireSessionExpired(CouchbaseHttpSession session) {
+        Thread thread = Thread.currentThread();
+        ClassLoader loader = thread.getContextClassLoader();
+        if (_loader != null) {
+            thread.setContextClassLoader(_loader);
+        }
+
+        try {
+            //Read the cold attributes while their documents are still there, so that they're unbound as well
+            for (String name : coldAttributes.keySet()) {
+                session.getAttribute(name);
+            }
+
+            HttpSessionEvent event = new HttpSessionEvent(session);
+            for (int i = _sessionListeners.size() - 1; i >= 0; i--) {
+                _sessionListeners.get(i).sessionDestroyed(event);
+            }
+            session.clearAttributes();
+        } catch (RuntimeException ex) {
+            LOG.warn("Failed to fire the events of expired session {}", session.getClusterId(), ex);
+        } finally {
+            thread.setContextClassLoader(loader);
+        }
+    }
+
+    @Override
+    public void renewSessionId(String oldClusterId, String oldNodeId, String newClusterId, String newNodeId) {
+        String oldKey = getKey(oldClusterId);
+        String newKey = getKey(newClusterId);
+
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("renewSessionId() oldKey={}, oldNodeId={}, newKey={}, newNodeId={}", oldKey,
+                    oldNodeId, newKey, newNodeId);
+        }
+
+        Timer.Context timer = startTimer(SessionMetrics::getRenewSessionId);
+        //The session of the request being handled is renewed as it is in memory, any other is read first
+        Request request = getCurrentRequest();
+        HttpSession current = request == null ? null : request.getSession(false);
+        CouchbaseHttpSession inMemory = current instanceof CouchbaseHttpSession
+                && oldClusterId.equals(((CouchbaseHttpSession) current).getClusterId())
+                ? (CouchbaseHttpSession) current
+                : null;
+        if (inMemory != null && inMemory.isInsertPending()) {
+            //Created lazily and not written yet, there is nothing stored to move
+            inMemory.setClusterId(newClusterId);
+            if (!inMemory.isCookiePending()) {
+                inMemory.issueCookie();
+            }
+            stopTimer(timer);
+            return;
+        }
+
+        writer.awaitPendingWrite(oldKey);
+
+        try {
+            SessionCookieSealer sealer = cookieSealer;
+            CouchbaseHttpSession cookieSession = sealer == null
+                    ? null
+                    : inMemory != null && inMemory.isCookieStored() ? inMemory : readCurrentStateCookie(sealer, oldKey);
+            if (cookieSession != null) {
+                moveColdAttributes(oldKey, newKey, cookieSession).toBlocking().lastOrDefault(null);
+                //Sealed again for the new id, the cookies of the old id are revoked so they can't be replayed
+                store.recordCookieGeneration(oldKey, SessionCookieSealer.REVOKED,
+                        cookieSession.getMaxInactiveInterval());
+                cookieSession.setClusterId(newClusterId);
+                Object content = writer.getCodec().encode(toJson(cookieSession));
+                if (writeStateCookie(sealer, newKey, cookieSession, content, false)) {
+                    if (cookieSession == inMemory) {
+                        inMemory.issueCookie();
+                    }
+                    return;
+                }
+            }
+
+            CouchbaseHttpSession session = inMemory;
+            if (session == null) {
+                Document<?> doc = store.getDocument(oldKey);
+                if (doc == null) {
+                    throw new RuntimeException("Desired session to renew does not exist");
+                }
+                session = deserialize(doc.content(), doc.cas());
+            }
+
+            assertWritableSession(session, "renewSessionId");
+
+            invalidateNearCache(oldKey);
+
+            session.setClusterId(newClusterId);
+
+            SessionJson json = toJson(session);
+            Object content = writer.getCodec().encode(json);
+
+            //The session is inserted under its new id and aliased under its old id, and its cold attributes are moved,
+            //all at the same time. The old document is only removed once the new one exists, so there's no window in
+            //which the session can't be found.
+            Observable<Document<?>> coldMoved = moveColdAttributes(oldKey, newKey, session);
+            Observable<Document<?>> inserted = writer.insertAsync(newKey, json, content);
+            int graceSeconds = renewalGraceSeconds;
+            Observable<Document<?>> aliased = graceSeconds <= 0
+                    ? Observable.empty()
+                    : store.writeAlias(oldKey, newClusterId, graceSeconds);
+            Document<?> doc = Observable.merge(inserted, aliased, coldMoved)
+                    .filter(written -> newKey.equals(written.id()))
+                    .toBlocking()
+                    .single();
+
+            session.setCas(doc.cas());
+            session.setStored(content);
+            putNearCache(newKey, json, content, doc.cas());
+            trackExpiry(newKey, session.getMaxInactiveInterval(), doc.cas());
+            store.removeInBackground(oldKey, oldKey);
+
+            if (session == inMemory) {
+                session.issueCookie();
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException("Failed to renew session " + oldKey, ex);
+        } finally {
+            stopTimer(timer);
+        }
+    }
+
+    @Override
+    protected AbstractSession newSession(HttpServletRequest request) {
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("newSession() request={}", request.getRequestURL());
+        }
+
+        return new CouchbaseHttpSession(request);
+    }
+
+    /**
+     * Record the session cookie on the request it's issued for, so that HttpSessionCookieFilter knows about it without
+     * looking through the response headers.
+     */
+    @Override
+    public HttpCookie getSessionCookie(HttpSession session, String contextPath, boolean requestIsSecure) {
+        if (session instanceof CouchbaseHttpSession && ((CouchbaseHttpSession) session).isCookiePending()) {
+            //Created lazily and not written yet, the cookie is issued once it is
+            return null;
+        }
+
+        HttpCookie cookie = super.getSessionCookie(session, contextPath, requestIsSecure);
+        HttpConnection connection = HttpConnection.getCurrentConnection();
+        if (cookie != null && connection != null) {
+            connection.getHttpChannel().getRequest().setAttribute(HttpSessionCookieFilter.ISSUED_COOKIE, cookie);
+        }
+        return cookie;
+    }
+
+    @Override
+    protected boolean removeSession(String clusterId) {
+        String key = getKey(clusterId);
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("removeSession() key={}", key);
+        }
+
+        Timer.Context timer = startTimer(SessionMetrics::getRemoveSession);
+        writer.awaitPendingWrite(key);
+        invalidateNearCache(key);
+        writer.removeDeferredWrite(key);
+
+        Bucket previous = store.getPreviousBucket(key);
+        if (previous != null) {
+            //Or it would be moved back on the next request
+            store.removeInBackground(previous, key);
+        }
+
+        for (String name : coldAttributes.keySet()) {
+            store.removeInBackground(key, getColdKey(key, name));
+        }
+
+        try {
+            SessionCookieSealer sealer = cookieSealer;
+            if (sealer != null) {
+                //Revoked whether it's in a cookie now or not, an earlier cookie of it could still be replayed
+                CouchbaseHttpSession cookieSession = readStateCookie(sealer, key);
+                store.recordCookieGeneration(key, SessionCookieSealer.REVOKED, cookieSession == null
+                        ? getMaxInactiveInterval()
+                        : cookieSession.getMaxInactiveInterval());
+                if (cookieSession != null) {
+                    //Kept in its state cookie rather than couchbase
+                    setStateCookie(sealer, null);
+                    return true;
+                }
+            }
+
+            //We are not using CAS when removing because 1) it's not available and 2) since we're removing the session
+            //we don't care about consistency because the update will fail by any other thread anyways because the
+            //session won't exist which will create the behavior we want and 3) this removeSession api isn't really
+            //called in our use.
+            Bucket current = store.bucket(key);
+            store.call(key, StoreOperation.WRITE, timeout -> current.remove(key, RawJsonDocument.class, timeout,
+                    TimeUnit.MICROSECONDS));
+
+            return true;
+        } catch (DocumentDoesNotExistException ex) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Failed to remove key {} because it did not exist", key);
+            }
+            return false;
+        } catch (Exception ex) {
+            LOG.warn("Failed to remove session", ex);
+            return false;
+        } finally {
+            stopTimer(timer);
+        }
+    }
+
+    /**
+     * Update data on an existing persisted session.
+     *
+     * @param session
+     */
+    protected void updateSession(CouchbaseHttpSession session) {
+        if (session == null) {
+            return;
+        }
+
+        assertWritableSession(session, "updateSession");
+        
+        String key = getKey(session.getClusterId());
+        Timer.Context timer = startTimer(SessionMetrics::getUpdateSession);
+        try {
+            Observable<RawJsonDocument> cold = writeColdAttributes(key, session);
+            if (cold != null) {
+                cold.toBlocking().lastOrDefault(null);
+                if (session.getChangedAttributes().isEmpty() && !session.isInsertPending()
+                        && !session.isHeldColdAttributesChanged()) {
+                    //Only cold attributes changed
+                    return;
+                }
+            }
+
+            if (session.isInsertPending()) {
+                //Created lazily, this is its first write
+                session.setLastSaved(System.currentTimeMillis());
+                insert(key, session);
+                session.setInsertPending(false);
+                return;
+            }
+            long now = System.currentTimeMillis();
+            session.setLastSaved(now);
+            session.setLastTouched(now);
+
+            SessionCookieSealer sealer = cookieSealer;
+            SessionWriteQueue queue = writer.getWriteQueue();
+            boolean delta = sealer == null && queue == null && writer.isDeltaWrite(session);
+            EncodedSession encoded = encodeWithinBudget(key, session, delta);
+
+            if (sealer != null
+                    && writeStateCookie(sealer, key, session, encoded.getContent(), !session.isCookieStored())) {
+                return;
+            }
+
+            if (queue != null && store.isCircuitOpen(key)) {
+                writeDegraded(key, encoded.getJson(), encoded.getContent(), session.getCas(),
+                        new SessionStoreUnavailableException("Couchbase session store circuit is open"));
+                return;
+            }
+
+            if (queue != null) {
+                writer.writeQueued(queue, key, encoded, session.getCas(), session.getPendingWrite());
+            } else {
+                writeMerging(key, session, now, encoded);
+            }
+            writer.removeDeferredWrite(key);
+        } catch (SessionStoreUnavailableException ex) {
+            try {
+                SessionJson json = toJson(session);
+                writeDegraded(key, json, writer.getCodec().encode(json), session.getCas(), ex);
+                return;
+            } catch (IOException serializeEx) {
+                throw new RuntimeException("Failed serialize session " + session, serializeEx);
+            }
+        } catch (CouchbaseException ex) {
+            invalidateNearCache(key);
+            throw ex;
+        } catch (IOException ex) {
+            throw new RuntimeException("Failed serialize session " + session, ex);
+        } finally {
+            stopTimer(timer);
+        }
+
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Updated session " + session);
+        }
+    }
+
+    /**
+     * Write a session without blocking the calling thread on couchbase. The whole session is written with an upsert on
+     * the async bucket api, or handed to the write queue if writes are queued. While the circuit is open the write is
+     * handled according to the degraded write policy. A write that conflicts with another write fails, it isn't
+     * merged.
+     *
+     * The state of the session is captured before this returns, but its CAS is only updated once the returned stage
+     * completes, so the session mustn't be written again before then.
+     *
+     * @param session The session
+     * @return Completes once the session is written
+     */
+    public CompletionStage<Void> saveAsync(CouchbaseHttpSession session) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        if (writer.getWriteQueue() != null || session.isInsertPending()) {
+            try {
+                updateSession(session);
+                future.complete(null);
+            } catch (RuntimeException ex) {
+                future.completeExceptionally(ex);
+            }
+            return future;
+        }
+
+        assertWritableSession(session, "saveAsync");
+
+        String key = getKey(session.getClusterId());
+        Timer.Context timer = startTimer(SessionMetrics::getUpdateSession);
+        try {
+            Observable<RawJsonDocument> cold = writeColdAttributes(key, session);
+            if (cold != null && session.getChangedAttributes().isEmpty() && !session.isHeldColdAttributesChanged()) {
+                //Only cold attributes changed
+                cold.subscribe(doc -> { }, future::completeExceptionally, () -> future.complete(null));
+                return future.whenComplete((result, error) -> stopTimer(timer));
+            }
+            long now = System.currentTimeMillis();
+            session.setLastSaved(now);
+            session.setLastTouched(now);
+            EncodedSession encoded = encodeWithinBudget(key, session, false);
+
+            SessionCookieSealer sealer = cookieSealer;
+            if (sealer != null
+                    && writeStateCookie(sealer, key, session, encoded.getContent(), !session.isCookieStored())) {
+                if (cold == null) {
+                    future.complete(null);
+                } else {
+                    cold.subscribe(doc -> { }, future::completeExceptionally, () -> future.complete(null));
+                }
+                return future.whenComplete((result, error) -> stopTimer(timer));
+            }
+
+            SessionJson json = encoded.getJson();
+            Object content = encoded.getContent();
+            long cas = session.getCas();
+            Observable<RawJsonDocument> coldWritten = cold == null
+                    ? Observable.just(null)
+                    : cold.lastOrDefault(null);
+            coldWritten.flatMap(written -> writer.upsertAsync(key, json, content, cas))
+                    .subscribe(doc -> {
+                        session.setCas(doc.cas());
+                        putNearCache(key, json, content, doc.cas());
+                        trackExpiry(key, session.getMaxInactiveInterval(), doc.cas());
+                        writer.removeDeferredWrite(key);
+                        future.complete(null);
+                    }, error -> {
+                        try {
+                            if (error instanceof SessionStoreUnavailableException) {
+                                writeDegraded(key, json, content, cas, (SessionStoreUnavailableException) error);
+                                future.complete(null);
+                                return;
+                            }
+                        } catch (RuntimeException ex) {
+                            future.completeExceptionally(ex);
+                            return;
+                        }
+
+                        if (error instanceof CASMismatchException) {
+                            mark(SessionMetrics::getCasConflicts);
+                        }
+                        invalidateNearCache(key);
+                        future.completeExceptionally(error);
+                    });
+        } catch (IOException ex) {
+            future.completeExceptionally(new RuntimeException("Failed serialize session " + session, ex));
+        } catch (RuntimeException ex) {
+            future.completeExceptionally(ex);
+        }
+        return future.whenComplete((result, error) -> stopTimer(timer));
+    }
+
+    /**
+     * Write a session on the request thread, merging it onto the latest state of the session and retrying if it
+     * conflicts with another write and merging is enabled.
+     *
+     * @param key The key of the session document
+     * @param session The session
+     * @param now The current time in msec since the epoch
+     * @param encoded The encoded session, or null if only its changed attributes are to be written
+     * @throws IOException
+     */
+    private void writeMerging(String key, CouchbaseHttpSession session, long now, EncodedSession encoded)
+            throws IOException {
+        SessionConflictResolver resolver = conflictResolver;
+        for (int attempt = 0;; attempt++) {
+            try {
+                //Once merged the session is encoded again
+                write(key, session, now, attempt == 0 ? encoded : null);
+                return;
+            } catch (CASMismatchException ex) {
+                mark(SessionMetrics::getCasConflicts);
+                if (resolver == null || attempt >= maxMergeRetries) {
+                    throw ex;
+                }
+
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Merging session {} after conflicting write, attempt {}", key, attempt + 1);
+                }
+                backOff(attempt, ex);
+                mergeLatest(key, session, resolver);
+            }
+        }
+    }
+
+    /**
+     * Write a session on the request thread, just its changed attributes if there are few enough of them and it
+     * wasn't encoded already
+     *
+     * @param key The key of the session document
+     * @param session The session
+     * @param now The current time in msec since the epoch
+     * @param encoded The encoded session, or null to encode it here if it's written in full
+     * @throws IOException
+     */
+    private void write(String key, CouchbaseHttpSession session, long now, EncodedSession encoded)
+            throws IOException {
+        Map<String, Boolean> changes = session.getChangedAttributes();
+        if (encoded == null && writer.isDeltaWrite(session)) {
+            long cas = writer.updateAttributes(key, session, changes, now);
+            session.setCas(cas);
+            trackExpiry(key, session.getMaxInactiveInterval(), cas);
+            if (nearCache != null) {
+                //Cached as a whole, the next request is served the document the delta produced
+                SessionJson json = toJson(session);
+                putNearCache(key, json, writer.getCodec().encode(json), cas);
+            }
+
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Updated attributes {} of session {}", changes.keySet(), session);
+            }
+            return;
+        }
+
+        SessionJson json = encoded == null ? toJson(session) : encoded.getJson();
+        Object content = encoded == null ? writer.getCodec().encode(json) : encoded.getContent();
+        Document<?> doc = writer.upsert(key, json, content, session.getCas());
+        session.setCas(doc.cas());
+        session.setStored(content);
+        putNearCache(key, json, content, doc.cas());
+        trackExpiry(key, session.getMaxInactiveInterval(), doc.cas());
+    }
+
+    /**
+     * Wait a random while before retrying a conflicting write, so that requests that keep conflicting spread out
+     *
+     * @param attempt The number of retries made so far
+     * @param conflict The conflict, thrown if the wait is interrupted
+     */
+    private void backOff(int attempt, CASMismatchException conflict) {
+        long maxMillis = mergeBackoffMillis << Math.min(attempt, 10);
+        if (maxMillis <= 0) {
+            return;
         }
 
         try {
-            //We are not using CAS when removing because 1) it's not available and 2) since we're removing the session
-            //we don't care about consistency because the update will fail by any other thread anyways because the
-            //session won't exist which will create the behavior we want and 3) this renewSessionId api isn't really
-            //called in our use.
-            RawJsonDocument doc = bucket.get(oldKey, RawJsonDocument.class);
-            if (doc == null) {
-                throw new RuntimeException("Desired session to renew does not exist");
-            }
-
-            CouchbaseHttpSession session = deserialize(doc.content(), doc.cas());
+            Thread.sleep(ThreadLocalRandom.current().nextLong(maxMillis / 2, maxMillis + 1));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw conflict;
+        }
+    }
 
-            assertWritableSession(session, "renewSessionId");
+    /**
+     * Apply the attributes a session changed to the latest stored state of the session, resolving attributes that
+     * were changed by another write since the session was read.
+     *
+     * @param key The key of the session document
+     * @param session The session that failed to be written
+     * @param resolver Resolves attributes changed by both writes
+     * @throws IOException
+     */
+    private void mergeLatest(String key, CouchbaseHttpSession session, SessionConflictResolver resolver)
+            throws IOException {
+        Document<?> doc = store.getDocument(key);
+        if (doc == null) {
+            throw new DocumentDoesNotExistException("Session " + key + " no longer exists");
+        }
 
-            session.setClusterId(newClusterId);
+        SessionJson latest = readJson(doc.content());
+        Map<String, Object> merged = latest.getAttributes() == null
+                ? new HashMap<>()
+                : new HashMap<>(latest.getAttributes());
+        Map<String, Object> attributes = session.getAttributeMap();
+        SessionMerge.merge(merged, attributes, session.getChangedAttributes(), session::getOriginalFingerprint,
+                writer.getCodec()::fingerprint, resolver, mapper);
+
+        for (String name : coldAttributes.keySet()) {
+            Object cold = attributes.get(name);
+            if (cold != null) {
+                //Kept in documents of their own, not merged
+                merged.put(name, cold);
+            }
+        }
+        Set<String> held = session.getHeldColdAttributes();
+        if (held != null && latest.getColdAttributes() != null) {
+            held.addAll(latest.getColdAttributes());
+        }
 
-            doc = RawJsonDocument.create(newKey,
-                    getMaxInactiveInterval(),
-                    serialize(session));
+        attributes.clear();
+        session.addAttributes(merged);
+        session.setCas(doc.cas());
+        session.setStored(doc.content());
+    }
 
-            bucket.insert(doc);
-            bucket.remove(oldKey);
-        } catch (JsonProcessingException ex) {
-            throw new RuntimeException("Failed to process JSON", ex);
-        } catch (IOException ex) {
-            throw new RuntimeException("Failed to deserialize old session " + oldKey, ex);
+    /**
+     * Encode a session about to be written and check its size against the size budget, see
+     * SessionWriter.encodeWithinBudget(). A session whose changed attributes are about to be written on their own
+     * isn't encoded unless its estimated size is over the soft limit.
+     *
+     * @param key The key of the session document
+     * @param session The session
+     * @param delta Whether or not only the changed attributes of the session are about to be written
+     * @return The encoded session to write, or null if it wasn't encoded because only its changed attributes are to be
+     * written
+     * @throws IOException
+     * @throws SessionTooLargeException If the session is over the hard limit and writes like that are rejected
+     */
+    private EncodedSession encodeWithinBudget(String key, CouchbaseHttpSession session, boolean delta)
+            throws IOException {
+        if (delta && writer.isDeltaWithinBudget(session)) {
+            return null;
         }
+        return writer.encodeWithinBudget(key, session, toJson(session));
     }
 
-    @Override
-    protected AbstractSession newSession(HttpServletRequest request) {
+    /**
+     * @param key The key of a session document
+     * @param name The name of a cold attribute
+     * @return The key of the document the cold attribute of the session is kept in
+     */
+    private static String getColdKey(String key, String name) {
+        return key + COLD_KEY_SEPARATOR + name;
+    }
+
+    /**
+     * Read a cold attribute of a session from its document
+     *
+     * @param key The key of the session document
+     * @param name The name of the attribute
+     * @return The attribute, or null if it isn't set or has expired
+     */
+    private Object readColdAttribute(String key, String name) {
+        String coldKey = getColdKey(key, name);
         if (LOG.isDebugEnabled()) {
-            LOG.debug("newSession() request={}", request.getRequestURL());
+            LOG.debug("Get cold attribute {}", coldKey);
         }
 
-        return new CouchbaseHttpSession(request);
+        Bucket from = store.bucket(key);
+        RawJsonDocument doc = store.call(key, StoreOperation.READ, timeout -> from.get(coldKey, RawJsonDocument.class,
+                timeout, TimeUnit.MICROSECONDS));
+        if (doc == null) {
+            return null;
+        }
+
+        try {
+            return mapper.readValue(doc.content(), Object.class);
+        } catch (IOException ex) {
+            mark(SessionMetrics::getDeserializationFailures);
+            throw new RuntimeException("Failed to deserialize session attribute " + name, ex);
+        }
     }
 
-    @Override
-    protected boolean removeSession(String clusterId) {
-        String key = getKey(clusterId);
-        if (LOG.isDebugEnabled()) {
-            LOG.debug("removeSession() key={}", key);
+    /**
+     * Write the cold attributes a session changed into their own documents, after which they're no longer changes to
+     * the session document
+     *
+     * @param key The key of the session document
+     * @param session The session
+     * @return The writes, or null if no cold attribute changed
+     */
+    private Observable<RawJsonDocument> writeColdAttributes(String key, CouchbaseHttpSession session) {
+        if (coldAttributes.isEmpty() || session.getChangedAttributes().isEmpty()) {
+            return null;
         }
 
-        try {
-            //We are not using CAS when removing because 1) it's not available and 2) since we're removing the session
-            //we don't care about consistency because the update will fail by any other thread anyways because the
-            //session won't exist which will create the behavior we want and 3) this removeSession api isn't really
-            //called in our use.
-            bucket.remove(key, RawJsonDocument.class);
+        AsyncBucket async = store.bucket(key).async();
+        Map<String, Object> attributes = session.getAttributeMap();
+        List<Observable<RawJsonDocument>> writes = new ArrayList<>();
+        Iterator<String> names = session.getChangedAttributes().keySet().iterator();
+        while (names.hasNext()) {
+            String name = names.next();
+            Integer ttl = coldAttributes.get(name);
+            if (ttl == null) {
+                continue;
+            }
 
-            return true;
-        } catch (DocumentDoesNotExistException ex) {
-            if (LOG.isDebugEnabled()) {
-                LOG.debug("Failed to remove key {} because it did not exist", key);
+            names.remove();
+            String coldKey = getColdKey(key, name);
+            Object value = attributes.get(name);
+            session.recordColdAttribute(name, value != null);
+            if (value == null) {
+                writes.add(store.callAsync(key, StoreOperation.WRITE,
+                        timeout -> async.remove(coldKey, RawJsonDocument.class))
+                        .onErrorResumeNext(error -> error instanceof DocumentDoesNotExistException
+                                ? Observable.empty()
+                                : Observable.error(error)));
+            } else {
+                RawJsonDocument doc = RawJsonDocument.create(coldKey, ttl, toAttributeJson(name, value));
+                writes.add(store.callAsync(key, StoreOperation.WRITE, timeout -> async.upsert(doc)));
             }
-            return false;
-        } catch (Exception ex) {
-            LOG.warn("Failed to remove session", ex);
-            return false;
         }
+
+        if (writes.isEmpty()) {
+            return null;
+        }
+
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Writing {} cold attributes of session {}", writes.size(), key);
+        }
+        return Observable.merge(writes);
     }
 
     /**
-     * Update data on an existing persisted session.
+     * Copy the cold attributes a session holds to documents under its new id, when its id changes. Those that were
+     * read or set during this request are written from memory, the others are read from their documents first. The
+     * old documents are removed in the background once copied.
      *
-     * @param session
+     * @param oldKey The key of the session document under the old id
+     * @param newKey The key of the session document under the new id
+     * @param session The session
+     * @return The copies, which are made once subscribed to
      */
-    protected void updateSession(CouchbaseHttpSession session) {
-        if (session == null) {
-            return;
+    private Observable<Document<?>> moveColdAttributes(String oldKey, String newKey, CouchbaseHttpSession session) {
+        if (coldAttributes.isEmpty()) {
+            return Observable.empty();
         }
 
-        assertWritableSession(session, "updateSession");
-        
-        try {
-            session.setLastSaved(System.currentTimeMillis());
-            RawJsonDocument doc = RawJsonDocument.create(getKey(session.getClusterId()),
-                    getMaxInactiveInterval(),
-                    serialize(session),
-                    session.getCas());
+        //Sessions written before held cold attributes were recorded may hold any of them
+        Set<String> held = session.getHeldColdAttributes();
+        AsyncBucket from = store.bucket(oldKey).async();
+        AsyncBucket to = store.bucket(newKey).async();
+        List<Observable<Document<?>>> moves = new ArrayList<>();
+        for (String name : held != null ? held : coldAttributes.keySet()) {
+            Integer ttl = coldAttributes.get(name);
+            if (ttl == null) {
+                continue;
+            }
+
+            String oldColdKey = getColdKey(oldKey, name);
+            String newColdKey = getColdKey(newKey, name);
+            Observable<String> content;
+            if (session.isColdAttributeLoaded(name)) {
+                Object value = session.getAttributeMap().get(name);
+                if (value == null) {
+                    //Removed during this request
+                    store.removeInBackground(oldKey, oldColdKey);
+                    continue;
+                }
+                content = Observable.just(toAttributeJson(name, value));
+            } else {
+                content = store.callAsync(oldKey, StoreOperation.READ,
+                        timeout -> from.get(oldColdKey, RawJsonDocument.class))
+                        .map(RawJsonDocument::content);
+            }
 
-            bucket.upsert(doc);
-        } catch (JsonProcessingException ex) {
-            throw new RuntimeException("Failed serialize session to JSON " + session, ex);
+            moves.add(content
+                    .flatMap(json -> store.callAsync(newKey, StoreOperation.WRITE,
+                            timeout -> SessionStore.widen(to.upsert(RawJsonDocument.create(newColdKey, ttl, json)))))
+                    .doOnNext(moved -> store.removeInBackground(oldKey, oldColdKey)));
         }
 
-        if (LOG.isDebugEnabled()) {
-            LOG.debug("Updated session " + session);
+        if (LOG.isDebugEnabled() && !moves.isEmpty()) {
+            LOG.debug("Moving {} cold attributes of session {} to {}", moves.size(), oldKey, newKey);
+        }
+        return Observable.merge(moves);
+    }
+
+    /**
+     * @param name The name of an attribute
+     * @param value The attribute
+     * @return The JSON the configured mapper serializes the attribute to as a value of the attribute map
+     */
+    private String toAttributeJson(String name, Object value) {
+        try {
+            return mapper.writerWithType(Object.class).writeValueAsString(value);
+        } catch (IOException ex) {
+            throw new RuntimeException("Failed serialize session attribute to JSON " + name, ex);
         }
     }
 
-    private String serialize(CouchbaseHttpSession session) throws JsonProcessingException {
+    private Object serialize(CouchbaseHttpSession session) throws IOException {
+        return writer.getCodec().encode(toJson(session));
+    }
+
+    private SessionJson toJson(CouchbaseHttpSession session) {
         SessionJson json = new SessionJson();
-        json.setAttributes(session.getAttributeMap());
+        //The near cache holds on to the json once it's been written so give it its own copy of the attributes
+        Map<String, Object> attributes = nearCache == null && coldAttributes.isEmpty()
+                ? session.getAttributeMap()
+                : new HashMap<>(session.getAttributeMap());
+        //Cold attributes are kept in documents of their own
+        attributes.keySet().removeAll(coldAttributes.keySet());
+        json.setAttributes(attributes);
+        Set<String> held = session.getHeldColdAttributes();
+        json.setColdAttributes(coldAttributes.isEmpty() || held == null ? null : new HashSet<>(held));
         json.setLastSaved(session.getLastSaved());
+        json.setLastTouched(session.getLastTouched());
         json.setCreationTime(session.getCreationTime());
         json.setSessionId(session.getClusterId());
         json.setMaxInactiveInterval(session.getMaxInactiveInterval());
 
-        return mapper.writeValueAsString(json);
+        return json;
+    }
+
+    private CouchbaseHttpSession deserialize(Object content, long cas) throws IOException {
+        return restore(readJson(content), content, cas);
     }
 
-    private CouchbaseHttpSession deserialize(String content, long cas) throws IOException {
-        SessionJson json = mapper.readValue(content, SessionJson.class);
+    private SessionJson readJson(Object content) throws IOException {
+        try {
+            return writer.getCodec().decode(content, lazyAttributes);
+        } catch (IOException ex) {
+            mark(SessionMetrics::getDeserializationFailures);
+            throw ex;
+        }
+    }
 
+    private CouchbaseHttpSession restore(SessionJson json, Object content, long cas) {
         CouchbaseHttpSession session = new CouchbaseHttpSession(json.getSessionId(),
                 json.creationTime,
                 System.currentTimeMillis(),
@@ -251,7 +2481,11 @@ public final class CouchbaseSessionManager extends AbstractSessionManager {
 
         session.setCas(cas);
         session.setLastSaved(json.getLastSaved());
+        session.setLastTouched(json.getLastTouched());
+        session.setStored(content);
         session.addAttributes(json.getAttributes());
+        Set<String> held = json.getColdAttributes();
+        session.setHeldColdAttributes(held == null ? null : new HashSet<>(held));
 
         return session;
     }
@@ -273,11 +2507,34 @@ public final class CouchbaseSessionManager extends AbstractSessionManager {
         }
     }
     
+    /**
+     * Keeps the near cache in step with writes made behind
+     */
+    private final class WriteListener implements SessionWriteQueue.Listener {
+
+        @Override
+        public void written(SessionWriteQueue.PendingWrite write, long cas) {
+            putNearCache(write.getKey(), write.getJson(), write.getContent(), cas);
+            trackExpiry(write.getKey(), write.getJson().getMaxInactiveInterval(), cas);
+            //Counted towards the failure rate, but only a probe closes the circuit
+            store.recordCall(write.getKey(), null);
+        }
+
+        @Override
+        public void failed(SessionWriteQueue.PendingWrite write, Throwable error) {
+            if (error instanceof CASMismatchException) {
+                mark(SessionMetrics::getCasConflicts);
+            }
+            invalidateNearCache(write.getKey());
+            store.recordCall(write.getKey(), error);
+        }
+    }
+
     /**
      * A simple container class that allows us to specify exactly what data type we want to serialize to/from JSON
      * without mucking with the parent class and/or fancy serialization techniques in Jackson
      */
-    private static class SessionJson {
+    static class SessionJson {
 
         private Map<String, Object> attributes;
 
@@ -287,8 +2544,12 @@ public final class CouchbaseSessionManager extends AbstractSessionManager {
 
         private long lastSaved;
 
+        private long lastTouched;
+
         private int maxInactiveInterval;
 
+        private Set<String> coldAttributes;
+
         /**
          * Get the value of maxInactiveInterval
          *
@@ -299,102 +2560,262 @@ public final class CouchbaseSessionManager extends AbstractSessionManager {
         }
 
         /**
-         * Set the value of maxInactiveInterval
-         *
-         * @param maxInactiveInterval new value of maxInactiveInterval
+         * Set the value of maxInactiveInterval
+         *
+         * @param maxInactiveInterval new value of maxInactiveInterval
+         */
+        public void setMaxInactiveInterval(int maxInactiveInterval) {
+            this.maxInactiveInterval = maxInactiveInterval;
+        }
+
+        /**
+         * Get the value of lastSaved
+         *
+         * @return the value of lastSaved
+         */
+        public long getLastSaved() {
+            return lastSaved;
+        }
+
+        /**
+         * Set the value of lastSaved
+         *
+         * @param lastSaved new value of lastSaved
+         */
+        public void setLastSaved(long lastSaved) {
+            this.lastSaved = lastSaved;
+        }
+
+        /**
+         * Get the value of lastTouched
+         *
+         * @return the value of lastTouched
+         */
+        public long getLastTouched() {
+            return lastTouched;
+        }
+
+        /**
+         * Set the value of lastTouched
+         *
+         * @param lastTouched new value of lastTouched
+         */
+        public void setLastTouched(long lastTouched) {
+            this.lastTouched = lastTouched;
+        }
+
+        /**
+         * Get the value of sessionId
+         *
+         * @return the value of sessionId
+         */
+        public String getSessionId() {
+            return sessionId;
+        }
+
+        /**
+         * Set the value of sessionId
+         *
+         * @param sessionId new value of sessionId
+         */
+        public void setSessionId(String sessionId) {
+            this.sessionId = sessionId;
+        }
+
+        /**
+         * Get the value of creationTime
+         *
+         * @return the value of creationTime
+         */
+        public long getCreationTime() {
+            return creationTime;
+        }
+
+        /**
+         * Set the value of creationTime
+         *
+         * @param createdTime new value of creationTime
+         */
+        public void setCreationTime(long createdTime) {
+            this.creationTime = createdTime;
+        }
+
+        /**
+         * Get the value of attributes
+         *
+         * @return the value of attributes
+         */
+        public Map<String, Object> getAttributes() {
+            return attributes;
+        }
+
+        /**
+         * Set the value of attributes
+         *
+         * @param attributes new value of attributes
+         */
+        public void setAttributes(Map<String, Object> attributes) {
+            this.attributes = attributes;
+        }
+
+        /**
+         * Get the names of the cold attributes the session has documents for
+         *
+         * @return the names, or null if they weren't recorded
+         */
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        public Set<String> getColdAttributes() {
+            return coldAttributes;
+        }
+
+        /**
+         * Set the names of the cold attributes the session has documents for
+         *
+         * @param coldAttributes new value of coldAttributes
+         */
+        public void setColdAttributes(Set<String> coldAttributes) {
+            this.coldAttributes = coldAttributes;
+        }
+
+    }
+
+    /**
+     * A SessionJson whose attributes are read as LazyAttributes
+     */
+    static final class LazySessionJson extends SessionJson {
+
+        @Override
+        @JsonDeserialize(contentUsing = LazyAttribute.Deserializer.class)
+        public void setAttributes(Map<String, Object> attributes) {
+            super.setAttributes(attributes);
+        }
+    }
+
+    /**
+     * CouchbaseHttpSession is the real instance of a session that's managed by Jetty
+     */
+    public final class CouchbaseHttpSession extends AbstractSession {
+
+        /**
+         * If dirty, session needs to be (re)persisted
+         */
+        private boolean dirty = false;
+
+        /**
+         * Time in msec since the epoch that the session was last persisted
+         */
+        private long lastSaved;
+
+        /**
+         * Time in msec since the epoch that the expiry of the persisted session was last extended
+         */
+        private long lastTouched;
+
+        /**
+         * The near cache entry this session was served from, if it was served from memory rather than read from
+         * couchbase during this request
+         */
+        private SessionNearCache.Entry nearCacheEntry;
+
+        /**
+         * Set when the near cache entry this session was served from was revalidated during this request, so it's
+         * known to be current when the session is made writable
+         */
+        private boolean revalidated;
+
+        /**
+         * The pending write this session was served from, if it was served from the write behind queue
+         */
+        private SessionWriteQueue.PendingWrite pendingWrite;
+
+        /**
+         * The attributes set or removed during this request, mapped to whether they existed when the session was
+         * loaded. Created on the first change.
+         */
+        private Map<String, Boolean> changedAttributes;
+
+        /**
+         * The fingerprints of the attributes read or set during this request, taken before they could have been
+         * changed, when unchanged writes are skipped. Created on first use.
+         */
+        private Map<String, Long> fingerprints;
+
+        /**
+         * Set when an attribute was handed out before this session was writable, and could have been changed before
+         * it was fingerprinted
+         */
+        private boolean exposedBeforeWrite;
+
+        /**
+         * Set when this session wasn't read from the active node during this request, so its state has to be
+         * verified before it can be written to
+         */
+        private boolean refreshOnWrite;
+
+        /**
+         * Whether or not the persisted session is a JSON document, which attributes can be updated in place in
          */
-        public void setMaxInactiveInterval(int maxInactiveInterval) {
-            this.maxInactiveInterval = maxInactiveInterval;
-        }
+        private boolean storedAsJson = true;
 
         /**
-         * Get the value of lastSaved
-         *
-         * @return the value of lastSaved
+         * The size of the persisted session document, an upper bound on it once only changed attributes were written,
+         * or -1 if it isn't known
          */
-        public long getLastSaved() {
-            return lastSaved;
-        }
+        private int storedSize = -1;
 
         /**
-         * Set the value of lastSaved
-         *
-         * @param lastSaved new value of lastSaved
+         * Whether or not the session is kept in its state cookie rather than couchbase
          */
-        public void setLastSaved(long lastSaved) {
-            this.lastSaved = lastSaved;
-        }
+        private boolean cookieStored;
 
         /**
-         * Get the value of sessionId
-         *
-         * @return the value of sessionId
+         * The generation of the state cookie the session was read from or is to be sealed into, see
+         * SessionCookieSealer
          */
-        public String getSessionId() {
-            return sessionId;
-        }
+        private long cookieGeneration;
 
         /**
-         * Set the value of sessionId
-         *
-         * @param sessionId new value of sessionId
+         * Set when the session was written, or its state cookie issued, before the response was committed during
+         * this request
          */
-        public void setSessionId(String sessionId) {
-            this.sessionId = sessionId;
-        }
+        private boolean persistedBeforeCommit;
 
         /**
-         * Get the value of creationTime
-         *
-         * @return the value of creationTime
+         * Set when changes to the session were written before the response was committed during this request
          */
-        public long getCreationTime() {
-            return creationTime;
-        }
+        private boolean writtenBeforeCommit;
 
         /**
-         * Set the value of creationTime
-         *
-         * @param createdTime new value of creationTime
+         * Set while a lazily created session hasn't been inserted yet
          */
-        public void setCreationTime(long createdTime) {
-            this.creationTime = createdTime;
-        }
+        private boolean insertPending;
 
         /**
-         * Get the value of attributes
-         *
-         * @return the value of attributes
+         * Set while a lazily created session hasn't been written yet and has no cookie
          */
-        public Map<String, Object> getAttributes() {
-            return attributes;
-        }
+        private boolean cookiePending;
 
         /**
-         * Set the value of attributes
-         *
-         * @param attributes new value of attributes
+         * The request a lazily created session was created for, until its cookie is issued
          */
-        public void setAttributes(Map<String, Object> attributes) {
-            this.attributes = attributes;
-        }
-
-    }
+        private Request creatingRequest;
 
-    /**
-     * CouchbaseHttpSession is the real instance of a session that's managed by Jetty
-     */
-    public final class CouchbaseHttpSession extends AbstractSession {
+        /**
+         * The names of the cold attributes that have been read from their documents, or set, in this instance
+         */
+        private Set<String> loadedColdAttributes;
 
         /**
-         * If dirty, session needs to be (re)persisted
+         * The names of the cold attributes the session has documents for, or null if they aren't known because the
+         * session was written before they were recorded
          */
-        private boolean dirty = false;
+        private Set<String> heldColdAttributes;
 
         /**
-         * Time in msec since the epoch that the session was last persisted
+         * Set when a cold attribute was set or removed during this request, so the session document has to be
+         * written to record it
          */
-        private long lastSaved;
+        private boolean heldColdAttributesChanged;
 
         /**
          * Do NOT serialize this into couchbase as it will become incorrect as soon as it's saved. This should be
@@ -423,6 +2844,9 @@ public final class CouchbaseSessionManager extends AbstractSessionManager {
          * @param write new value of write
          */
         public void setWrite(boolean write) {
+            if (write && refreshOnWrite) {
+                refreshForWrite(this);
+            }
             this.write = write;
         }
 
@@ -461,6 +2885,10 @@ public final class CouchbaseSessionManager extends AbstractSessionManager {
          */
         protected CouchbaseHttpSession(HttpServletRequest request) {
             super(CouchbaseSessionManager.this, request);
+            if (request instanceof Request) {
+                creatingRequest = (Request) request;
+            }
+            heldColdAttributes = new HashSet<>();
         }
 
         /**
@@ -483,19 +2911,324 @@ public final class CouchbaseSessionManager extends AbstractSessionManager {
             lastSaved = time;
         }
 
+        public long getLastTouched() {
+            return lastTouched;
+        }
+
+        public void setLastTouched(long time) {
+            lastTouched = time;
+        }
+
+        boolean isStoredAsJson() {
+            return storedAsJson;
+        }
+
+        int getStoredSize() {
+            return storedSize;
+        }
+
+        void setStoredSize(int storedSize) {
+            this.storedSize = storedSize;
+        }
+
+        /**
+         * @param content The content of the session document as it was read or written, or null if it isn't known
+         */
+        private void setStored(Object content) {
+            this.storedAsJson = SessionCodec.isJson(content);
+            this.storedSize = content == null ? -1 : SessionCodec.size(content);
+        }
+
+        private boolean isInsertPending() {
+            return insertPending;
+        }
+
+        /**
+         * @param insertPending Whether or not the session is created lazily and hasn't been inserted yet. Setting it
+         * also holds back the cookie of the session until it's written.
+         */
+        private void setInsertPending(boolean insertPending) {
+            this.insertPending = insertPending;
+            if (insertPending) {
+                cookiePending = true;
+            } else {
+                creatingRequest = null;
+            }
+        }
+
+        private boolean isCookiePending() {
+            return cookiePending;
+        }
+
+        /**
+         * Issue the cookie of a lazily created or renewed session, on the response to the request it was created for
+         * or the request being handled
+         */
+        private void issueCookie() {
+            Request request = creatingRequest != null ? creatingRequest : getCurrentRequest();
+            cookiePending = false;
+            creatingRequest = null;
+            if (request == null || request.getResponse().isCommitted()) {
+                LOG.warn("Session {} can't be given its cookie, its response is already committed", getClusterId());
+                return;
+            }
+
+            HttpCookie cookie = CouchbaseSessionManager.this.getSessionCookie(this, request.getContextPath(),
+                    request.isSecure());
+            if (cookie != null) {
+                request.getResponse().addCookie(cookie);
+            }
+        }
+
+        private boolean isCookieStored() {
+            return cookieStored;
+        }
+
+        private void setCookieStored(boolean cookieStored) {
+            this.cookieStored = cookieStored;
+        }
+
+        private long getCookieGeneration() {
+            return cookieGeneration;
+        }
+
+        private void setCookieGeneration(long cookieGeneration) {
+            this.cookieGeneration = cookieGeneration;
+        }
+
+        private SessionNearCache.Entry getNearCacheEntry() {
+            return nearCacheEntry;
+        }
+
+        private void setNearCacheEntry(SessionNearCache.Entry entry) {
+            nearCacheEntry = entry;
+        }
+
+        private boolean isRevalidated() {
+            return revalidated;
+        }
+
+        private void setRevalidated(boolean revalidated) {
+            this.revalidated = revalidated;
+        }
+
+        private SessionWriteQueue.PendingWrite getPendingWrite() {
+            return pendingWrite;
+        }
+
+        private void setPendingWrite(SessionWriteQueue.PendingWrite pendingWrite) {
+            this.pendingWrite = pendingWrite;
+        }
+
+        Map<String, Boolean> getChangedAttributes() {
+            return changedAttributes == null ? Collections.<String, Boolean>emptyMap() : changedAttributes;
+        }
+
+        private void recordChange(String name, boolean existed) {
+            if (changedAttributes == null) {
+                changedAttributes = new LinkedHashMap<>();
+            }
+            changedAttributes.putIfAbsent(name, existed);
+        }
+
+        private void setRefreshOnWrite(boolean refreshOnWrite) {
+            this.refreshOnWrite = refreshOnWrite;
+        }
+
+        @Override
+        public Object getAttribute(String name) {
+            if (coldAttributes.containsKey(name) && !isNew() && markColdAttributeLoaded(name)) {
+                Object cold = readColdAttribute(getKey(getClusterId()), name);
+                if (cold != null) {
+                    synchronized (this) {
+                        //Unless it has been set in the meantime, this isn't a change to the session
+                        getAttributeMap().putIfAbsent(name, cold);
+                    }
+                }
+            }
+
+            Object value = super.getAttribute(name);
+            if (isFingerprinting()) {
+                if (write) {
+                    captureFingerprint(name, value);
+                } else {
+                    exposedBeforeWrite = true;
+                }
+            }
+            return value instanceof LazyAttribute ? materialize(name, (LazyAttribute) value) : value;
+        }
+
+        /**
+         * @param name The name of a cold attribute
+         * @return Whether or not the attribute still had to be read from its document
+         */
+        private boolean markColdAttributeLoaded(String name) {
+            if (loadedColdAttributes == null) {
+                loadedColdAttributes = new HashSet<>();
+            }
+            return loadedColdAttributes.add(name);
+        }
+
+        /**
+         * @param name The name of a cold attribute
+         * @return Whether or not the attribute has been read from its document, or set, in this instance
+         */
+        private boolean isColdAttributeLoaded(String name) {
+            return loadedColdAttributes != null && loadedColdAttributes.contains(name);
+        }
+
+        private Set<String> getHeldColdAttributes() {
+            return heldColdAttributes;
+        }
+
+        private void setHeldColdAttributes(Set<String> heldColdAttributes) {
+            this.heldColdAttributes = heldColdAttributes;
+        }
+
+        /**
+         * @param name The name of a cold attribute that's about to be written
+         * @param held Whether it's written to its document or removed
+         */
+        private void recordColdAttribute(String name, boolean held) {
+            if (heldColdAttributes != null && (held ? heldColdAttributes.add(name) : heldColdAttributes.remove(name))) {
+                heldColdAttributesChanged = true;
+            }
+        }
+
+        boolean isHeldColdAttributesChanged() {
+            return heldColdAttributesChanged;
+        }
+
+        /**
+         * Make sure attribute listeners are never handed the stored form of a replaced or removed attribute
+         */
+        @Override
+        protected Object doPutOrRemove(String name, Object value) {
+            Object old = super.doPutOrRemove(name, value);
+            return old instanceof LazyAttribute ? materialize(name, (LazyAttribute) old) : old;
+        }
+
+        /**
+         * Deserialize a lazy attribute and, unless it has been replaced in the meantime, keep the result in place of
+         * the lazy attribute. This isn't a change to the session.
+         *
+         * @param name The name of the attribute
+         * @param lazy The stored form of the attribute
+         * @return The attribute
+         */
+        private Object materialize(String name, LazyAttribute lazy) {
+            Object value;
+            try {
+                value = lazy.materialize(mapper);
+            } catch (IOException ex) {
+                mark(SessionMetrics::getDeserializationFailures);
+                throw new RuntimeException("Failed to deserialize session attribute " + name, ex);
+            }
+
+            synchronized (this) {
+                Map<String, Object> attributes = getAttributeMap();
+                if (attributes.get(name) == lazy) {
+                    attributes.put(name, value);
+                }
+            }
+            return value;
+        }
+
+        /**
+         * Fingerprint an attribute unless it has already been fingerprinted during this request
+         *
+         * @param name The name of the attribute
+         * @param value The attribute as it is in the attribute map, or null if it isn't set
+         */
+        private void captureFingerprint(String name, Object value) {
+            if (fingerprints == null) {
+                fingerprints = new HashMap<>();
+            } else if (fingerprints.containsKey(name)) {
+                return;
+            }
+            fingerprints.put(name, fingerprint(name, value));
+        }
+
+        /**
+         * @param name The name of an attribute
+         * @param value The attribute, or null if it isn't set
+         * @return The fingerprint of the attribute, or null if it couldn't be serialized
+         */
+        private Long fingerprint(String name, Object value) {
+            try {
+                return writer.getCodec().fingerprint(name, value);
+            } catch (IOException ex) {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Failed to fingerprint session attribute " + name, ex);
+                }
+                return null;
+            }
+        }
+
+        /**
+         * @param name The name of an attribute
+         * @return The fingerprint the attribute had before this request could have changed it, or null if it isn't
+         * known
+         */
+        private Long getOriginalFingerprint(String name) {
+            return fingerprints == null || exposedBeforeWrite ? null : fingerprints.get(name);
+        }
+
+        /**
+         * Forget about changed attributes that ended up with the fingerprint they had before they were changed
+         *
+         * @return Whether or not any attribute actually changed
+         */
+        private boolean dropUnchangedAttributes() {
+            Iterator<Map.Entry<String, Boolean>> changes = changedAttributes.entrySet().iterator();
+            while (changes.hasNext()) {
+                String name = changes.next().getKey();
+                Long original = fingerprints.get(name);
+                if (original != null && original.equals(fingerprint(name, getAttributeMap().get(name)))) {
+                    changes.remove();
+                }
+            }
+            return !changedAttributes.isEmpty();
+        }
+
         @Override
         public void setAttribute(String name, Object value) {
             assertWritableSession(this, "setAttribute");
 
-            dirty = (updateAttribute(name, value) || dirty);
+            if (coldAttributes.containsKey(name)) {
+                //Replaced without being read
+                markColdAttributeLoaded(name);
+            }
+
+            if (isFingerprinting()) {
+                captureFingerprint(name, getAttributeMap().get(name));
+            }
+
+            boolean existed = getAttributeMap().containsKey(name);
+            boolean changed = updateAttribute(name, value);
+            if (changed) {
+                recordChange(name, existed);
+            }
+            dirty = (changed || dirty);
+            if (dirty && cookiePending) {
+                issueCookie();
+            }
         }
 
         @Override
         public void removeAttribute(String name) {
             assertWritableSession(this, "removeAttribute");
 
+            if (coldAttributes.containsKey(name)) {
+                markColdAttributeLoaded(name);
+            }
+
+            recordChange(name, getAttributeMap().containsKey(name));
             super.removeAttribute(name);
             dirty = true;
+            if (cookiePending) {
+                issueCookie();
+            }
         }
 
         @Override
@@ -525,20 +3258,150 @@ public final class CouchbaseSessionManager extends AbstractSessionManager {
         @Override
         protected void complete() {
             super.complete();
+
+            HttpServletRequest request = getAsyncRequest();
+            if (request != null) {
+                //Jetty completes the session every time the request is dispatched, write it once the request
+                //completes. The listener is registered on the first dispatch only, it registers itself again
+                //whenever the request is made async again.
+                if (request.getAttribute(ASYNC_COMPLETION_ATTRIBUTE) == null) {
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug("Deferring write of session {} until its async request completes", getClusterId());
+                    }
+                    request.setAttribute(ASYNC_COMPLETION_ATTRIBUTE, Boolean.TRUE);
+                    request.getAsyncContext().addListener(new AsyncCompletion());
+                }
+                return;
+            }
+            persist(false);
+        }
+
+        /**
+         * @return The request this session is being completed for, if it's an async request that is still running
+         */
+        private HttpServletRequest getAsyncRequest() {
+            HttpConnection connection = HttpConnection.getCurrentConnection();
+            if (connection == null) {
+                return null;
+            }
+
+            HttpServletRequest request = connection.getHttpChannel().getRequest();
+            return request != null && request.isAsyncStarted() && request.getSession(false) == this ? request : null;
+        }
+
+        /**
+         * Write this session if it changed
+         *
+         * @param async Whether to write it without blocking on couchbase, or on the calling thread
+         */
+        private void persist(boolean async) {
             try {
                 if (isValid()) {
+                    boolean unchanged = dirty && skipUnchangedWrites && fingerprints != null && !exposedBeforeWrite
+                            && changedAttributes != null && !dropUnchangedAttributes();
+                    if (unchanged) {
+                        if (LOG.isDebugEnabled()) {
+                            LOG.debug("Skipping write of unchanged session {}", getClusterId());
+                        }
+                        dirty = false;
+                    }
+
+                    SessionMetrics sessionMetrics = metrics;
+                    if (sessionMetrics != null) {
+                        sessionMetrics.recordComplete(dirty || writtenBeforeCommit, unchanged);
+                    }
+
                     if (dirty) {
-                        //The session attributes have changed, write to the db, ensuring
-                        //http passivation/activation listeners called
-                        willPassivate();
-                        updateSession(this);
-                        didActivate();
+                        write(async);
+                    } else if (cookieStored && !persistedBeforeCommit) {
+                        touchStateCookie(this);
                     }
                 }
             } catch (Exception e) {
                 LOG.error("Problem persisting changed session data id=" + getId(), e);
             } finally {
                 dirty = false;
+                changedAttributes = null;
+                heldColdAttributesChanged = false;
+                fingerprints = null;
+                exposedBeforeWrite = false;
+                persistedBeforeCommit = false;
+                writtenBeforeCommit = false;
+            }
+        }
+
+        /**
+         * Write this session, or issue its state cookie again, right before the response is committed, while cookies
+         * can still be set. Only does anything if sessions are kept in cookies. Called by HttpSessionCookieFilter.
+         */
+        void persistBeforeCommit() {
+            if (cookieSealer == null || persistedBeforeCommit || !isValid()) {
+                return;
+            }
+
+            try {
+                if (dirty) {
+                    write(false);
+                    writtenBeforeCommit = true;
+                } else if (cookieStored) {
+                    touchStateCookie(this);
+                }
+            } catch (Exception e) {
+                LOG.error("Problem persisting changed session data id=" + getId(), e);
+            } finally {
+                dirty = false;
+                changedAttributes = null;
+                heldColdAttributesChanged = false;
+                fingerprints = null;
+                exposedBeforeWrite = false;
+                persistedBeforeCommit = true;
+            }
+        }
+
+        /**
+         * @param async Whether to write without blocking on couchbase, or on the calling thread
+         */
+        private void write(boolean async) {
+            //The session attributes have changed, write to the db, ensuring
+            //http passivation/activation listeners called
+            willPassivate();
+            if (async) {
+                saveAsync(this).whenComplete((result, error) -> {
+                    if (error != null) {
+                        LOG.error("Problem persisting changed session data id=" + getId(), error);
+                    }
+                });
+            } else {
+                updateSession(this);
+            }
+            didActivate();
+        }
+
+        /**
+         * Writes the session once the async request it was used by completes, which happens after any timeout or
+         * error is handled
+         */
+        private final class AsyncCompletion implements AsyncListener {
+
+            @Override
+            public void onComplete(AsyncEvent event) {
+                persist(true);
+            }
+
+            @Override
+            public void onTimeout(AsyncEvent event) {
+                //nop
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+                //nop
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+                //Listeners are dropped when the request is made async again
+                event.getAsyncContext().addListener(this);
             }
         }
 
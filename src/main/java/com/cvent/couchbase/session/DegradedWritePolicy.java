@@ -0,0 +1,27 @@
+package com.cvent.couchbase.session;
+
+/**
+ * What to do with a session write while the circuit breaker of the session manager is open.
+ *
+ * @see CouchbaseSessionManager#setDegradedWritePolicy(DegradedWritePolicy, int)
+ */
+public enum DegradedWritePolicy {
+
+    /**
+     * Fail the write right away with a SessionStoreUnavailableException
+     */
+    FAIL,
+
+    /**
+     * Drop the write. The session keeps the state it had before the circuit opened, and a new session is only usable
+     * for the request it was created in.
+     */
+    DROP,
+
+    /**
+     * Keep the latest state of the session in memory, serve it to later requests on this node, and write it once the
+     * circuit closes. New sessions are kept the same way. The write is dropped if the session changed in couchbase in
+     * the meantime, or if too many sessions are already waiting to be written.
+     */
+    DEFER
+}
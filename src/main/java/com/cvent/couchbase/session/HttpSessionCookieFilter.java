@@ -1,52 +1,67 @@
 package com.cvent.couchbase.session;
 
+import com.cvent.couchbase.session.CouchbaseSessionManager.CouchbaseHttpSession;
 import java.io.IOException;
+import java.io.PrintWriter;
 
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
 import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
+import javax.servlet.ServletOutputStream;
 import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import org.eclipse.jetty.http.HttpFields;
-import org.eclipse.jetty.http.HttpHeader;
+import javax.servlet.http.HttpServletResponseWrapper;
+import org.eclipse.jetty.http.HttpCookie;
 import org.eclipse.jetty.server.HttpConnection;
 
 import org.slf4j.LoggerFactory;
 
 /**
- * This filter acts as a bridge between jetty and jersey so that we can extract the cookie that was created by jetty
- * and pass it along through the jersey response.
+ * This filter acts as a bridge between jetty and jersey so that the session cookie created by jetty always makes it
+ * into the response.
+ *
+ * Jetty adds the session cookie straight to its own response when the session manager issues it, and the session
+ * manager records the cookie on the request. The cookie is only added again if the response was reset after the
+ * cookie was issued, which drops it. Requests that didn't create or renew a session cost nothing more than a request
+ * attribute lookup, and a cookie is never sent twice.
+ *
+ * When sessions are kept in cookies, the session is written right before the response is committed, so that its
+ * state cookie can still be set.
  */
 public class HttpSessionCookieFilter implements Filter {
 
     private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(HttpSessionCookieFilter.class);
 
+    /**
+     * The request attribute the session cookie issued during the request is recorded in
+     */
+    static final String ISSUED_COOKIE = HttpSessionCookieFilter.class.getName() + ".issuedCookie";
+
     @Override
     public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException,
             ServletException {
 
-        chain.doFilter(request, response);
+        if (!(response instanceof HttpServletResponse)) {
+            chain.doFilter(request, response);
+            return;
+        }
 
-        if (response instanceof HttpServletResponse) {
-            HttpServletResponse httpServletResponse = (HttpServletResponse) response;
+        ResetTrackingResponse trackingResponse = new ResetTrackingResponse(request, (HttpServletResponse) response);
+        chain.doFilter(request, trackingResponse);
 
-            HttpFields fields = HttpConnection.getCurrentConnection()
+        Object cookie = request.getAttribute(ISSUED_COOKIE);
+        if (cookie != null && cookie == trackingResponse.droppedCookie && !response.isCommitted()) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Adding session cookie dropped by a reset of the response {}", cookie);
+            }
+
+            HttpConnection.getCurrentConnection()
                     .getHttpChannel()
                     .getResponse()
-                    .getHttpFields();
-            
-            if (fields.containsKey(HttpHeader.SET_COOKIE.asString())) {
-
-                String cookie = fields.get(HttpHeader.SET_COOKIE.asString());
-
-                if (LOG.isDebugEnabled()) {
-                    LOG.debug("Adding session cookie to response for subsequent requests {}", cookie);
-                }
-
-                httpServletResponse.addHeader(HttpHeader.SET_COOKIE.asString(), cookie);
-            }
+                    .addCookie((HttpCookie) cookie);
         }
     }
 
@@ -60,4 +75,76 @@ public class HttpSessionCookieFilter implements Filter {
         // nop
     }
 
+    /**
+     * Notes which issued session cookie, if any, a reset of the response dropped, and lets the session be written
+     * before the response is committed
+     */
+    private static final class ResetTrackingResponse extends HttpServletResponseWrapper {
+
+        private final ServletRequest request;
+
+        private Object droppedCookie;
+
+        private boolean committing;
+
+        private ResetTrackingResponse(ServletRequest request, HttpServletResponse response) {
+            super(response);
+            this.request = request;
+        }
+
+        @Override
+        public void reset() {
+            super.reset();
+            droppedCookie = request.getAttribute(ISSUED_COOKIE);
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            beforeCommit();
+            return super.getOutputStream();
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            beforeCommit();
+            return super.getWriter();
+        }
+
+        @Override
+        public void flushBuffer() throws IOException {
+            beforeCommit();
+            super.flushBuffer();
+        }
+
+        @Override
+        public void sendError(int sc) throws IOException {
+            beforeCommit();
+            super.sendError(sc);
+        }
+
+        @Override
+        public void sendError(int sc, String msg) throws IOException {
+            beforeCommit();
+            super.sendError(sc, msg);
+        }
+
+        @Override
+        public void sendRedirect(String location) throws IOException {
+            beforeCommit();
+            super.sendRedirect(location);
+        }
+
+        private void beforeCommit() {
+            if (committing || !(request instanceof HttpServletRequest)) {
+                return;
+            }
+
+            committing = true;
+            Object session = ((HttpServletRequest) request).getSession(false);
+            if (session instanceof CouchbaseHttpSession) {
+                ((CouchbaseHttpSession) session).persistBeforeCommit();
+            }
+        }
+    }
+
 }
@@ -0,0 +1,68 @@
+package com.cvent.couchbase.session;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks a percentile of the most recent latencies of an operation. Latencies are recorded into a fixed size ring
+ * without locking and the percentile is only recomputed every so often, so recording is cheap enough for every call.
+ * A latency that's overwritten while the percentile is being recomputed may be missed, which doesn't matter for an
+ * estimate.
+ */
+final class LatencyTracker {
+
+    private static final int SAMPLES = 1024;
+
+    private static final int RECOMPUTE_INTERVAL = 128;
+
+    private final long[] samples = new long[SAMPLES];
+
+    private final AtomicLong recorded = new AtomicLong();
+
+    private final double percentile;
+
+    private volatile long value;
+
+    /**
+     * Create a new tracker
+     *
+     * @param percentile The percentile to track, between 0 and 1
+     * @param initialMicros The value of the percentile until enough latencies have been recorded
+     */
+    LatencyTracker(double percentile, long initialMicros) {
+        this.percentile = percentile;
+        this.value = initialMicros;
+    }
+
+    /**
+     * @param micros The latency in usec of a call
+     */
+    void record(long micros) {
+        long count = recorded.getAndIncrement();
+        samples[(int) (count % SAMPLES)] = micros;
+        if ((count + 1) % RECOMPUTE_INTERVAL == 0) {
+            recompute((int) Math.min(count + 1, SAMPLES));
+        }
+    }
+
+    /**
+     * @return The tracked percentile of recent latencies in usec
+     */
+    long getValue() {
+        return value;
+    }
+
+    private void recompute(int filled) {
+        long[] sorted = Arrays.copyOf(samples, filled);
+        Arrays.sort(sorted);
+        value = sorted[(int) Math.max(0, Math.ceil(percentile * filled) - 1)];
+    }
+
+    /**
+     * @param startNanos The value of System.nanoTime() when a call was started
+     * @return The number of usec since then
+     */
+    static long elapsedMicros(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1000;
+    }
+}
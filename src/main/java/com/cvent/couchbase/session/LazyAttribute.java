@@ -0,0 +1,162 @@
+package com.cvent.couchbase.session;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonLocation;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.json.JsonGeneratorImpl;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JsonSerializable;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.deser.std.StdDeserializer;
+import com.fasterxml.jackson.databind.jsontype.TypeDeserializer;
+import com.fasterxml.jackson.databind.jsontype.TypeSerializer;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The stored form of a session attribute that hasn't been deserialized yet. It's the slice of the session document the
+ * attribute was read from, including any type information the configured mapper wrote, so that it can be parsed and
+ * deserialized on first use, or written back exactly as it was read without ever being parsed again.
+ *
+ * Reading a session with lazy attributes only skips over the value of each attribute to find where it ends, nothing is
+ * copied or deserialized. A slice of a JSON document is written back into a JSON document as raw text, into anything
+ * else it's transcoded.
+ */
+final class LazyAttribute implements JsonSerializable {
+
+    private final Source source;
+
+    private final int start;
+
+    private final int end;
+
+    private LazyAttribute(Source source, int start, int end) {
+        this.source = source;
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * Deserialize the attribute the same way it would have been deserialized as a value of the attribute map. Every
+     * call returns a new instance, so one lazy attribute may be shared between sessions.
+     *
+     * @param mapper The mapper used for serialization/deserialization of session objects
+     * @return The attribute
+     * @throws IOException
+     */
+    Object materialize(ObjectMapper mapper) throws IOException {
+        try (JsonParser parser = createParser()) {
+            return mapper.readValue(parser, Object.class);
+        }
+    }
+
+    @Override
+    public void serialize(JsonGenerator jgen, SerializerProvider provider) throws IOException {
+        if (source.json && jgen instanceof JsonGeneratorImpl) {
+            jgen.writeRawValue(source.text != null
+                    ? source.text.substring(start, end)
+                    : new String(source.bytes, start, end - start, StandardCharsets.UTF_8));
+            return;
+        }
+
+        try (JsonParser parser = createParser()) {
+            parser.nextToken();
+            jgen.copyCurrentStructure(parser);
+        }
+    }
+
+    @Override
+    public void serializeWithType(JsonGenerator jgen, SerializerProvider provider, TypeSerializer typeSer)
+            throws IOException {
+        //The slice already includes whatever type information was written originally
+        serialize(jgen, provider);
+    }
+
+    private JsonParser createParser() throws IOException {
+        return source.text != null
+                ? source.factory.createParser(source.text.substring(start, end))
+                : source.factory.createParser(source.bytes, start, end - start);
+    }
+
+    /**
+     * The content a session is decoded from, which its lazy attributes are slices of. It's handed to the Deserializer
+     * as an attribute of the DeserializationContext keyed by this class.
+     */
+    static final class Source {
+
+        private final JsonFactory factory;
+
+        private final boolean json;
+
+        private final String text;
+
+        private final byte[] bytes;
+
+        private final long delta;
+
+        /**
+         * @param factory Creates parsers for single attributes of the content, which must not need anything from the
+         * rest of the content, such as a header or earlier names
+         * @param json Whether or not the content is JSON
+         * @param text The content if it's a String, or null
+         * @param bytes The content if it's a byte array, or null. It must not be modified while the session is in use.
+         * @param delta What to add to the offsets the parser reports to get the index into text or bytes
+         */
+        Source(JsonFactory factory, boolean json, String text, byte[] bytes, long delta) {
+            this.factory = factory;
+            this.json = json;
+            this.text = text;
+            this.bytes = bytes;
+            this.delta = delta;
+        }
+
+        /**
+         * @param location A location reported by a parser of the content
+         * @return The index into the content
+         */
+        private int index(JsonLocation location) {
+            return (int) ((text != null ? location.getCharOffset() : location.getByteOffset()) + delta);
+        }
+    }
+
+    /**
+     * Deserializes attribute map values into lazy attributes. Values are only skipped, to find where they end. Without
+     * a Source in the context values are deserialized right away.
+     */
+    static final class Deserializer extends StdDeserializer<Object> {
+
+        public Deserializer() {
+            super(Object.class);
+        }
+
+        @Override
+        public Object deserialize(JsonParser jp, DeserializationContext ctxt) throws IOException {
+            Source source = (Source) ctxt.getAttribute(Source.class);
+            if (source == null) {
+                return ctxt.findRootValueDeserializer(ctxt.constructType(Object.class)).deserialize(jp, ctxt);
+            }
+
+            int start = source.index(jp.getTokenLocation());
+            JsonToken token = jp.getCurrentToken();
+            if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) {
+                jp.skipChildren();
+            } else if (token == JsonToken.VALUE_STRING) {
+                //Strings are only read as far as their start until they're asked for, without allocating them
+                jp.getTextLength();
+            } else if (token.isNumeric()) {
+                jp.getNumberType();
+            }
+            return new LazyAttribute(source, start, source.index(jp.getCurrentLocation()));
+        }
+
+        @Override
+        public Object deserializeWithType(JsonParser jp, DeserializationContext ctxt,
+                TypeDeserializer typeDeserializer) throws IOException {
+            //Type information is kept in the slice and only resolved when the attribute is materialized
+            return deserialize(jp, ctxt);
+        }
+    }
+}
@@ -13,7 +13,7 @@ import org.slf4j.LoggerFactory;
  * AbstractSessionManager from jetty but most of these features are not needed when using Couchbase or other nosql
  * solutions that provide these features natively and with high performance.
  */
-public final class NoOpSessionIdManager extends AbstractSessionIdManager {
+public class NoOpSessionIdManager extends AbstractSessionIdManager {
 
     private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(NoOpSessionIdManager.class);
 
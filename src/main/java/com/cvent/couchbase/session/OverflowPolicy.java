@@ -0,0 +1,25 @@
+package com.cvent.couchbase.session;
+
+/**
+ * What to do with a session write when the write behind queue is full.
+ *
+ * @see CouchbaseSessionManager#enableWriteBehind(int, OverflowPolicy)
+ */
+public enum OverflowPolicy {
+
+    /**
+     * Block the request thread until there's room in the queue
+     */
+    BLOCK,
+
+    /**
+     * Drop the oldest write that hasn't been sent to couchbase yet to make room. Its changes are lost unless a later
+     * write of the same session was based on it.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Write the session synchronously on the request thread, as if write behind were disabled
+     */
+    SYNC
+}
@@ -0,0 +1,25 @@
+package com.cvent.couchbase.session;
+
+/**
+ * What to do with a session write when the session is over its hard size limit.
+ *
+ * @see CouchbaseSessionManager#enableSizeBudget(int, int, OversizedSessionPolicy, SessionSizeListener)
+ */
+public enum OversizedSessionPolicy {
+
+    /**
+     * Write the session anyway, it's only reported
+     */
+    WRITE,
+
+    /**
+     * Fail the write with a SessionTooLargeException. The session keeps the state it had before.
+     */
+    REJECT,
+
+    /**
+     * Drop the largest attributes from the session document until it fits, and write what's left. The session keeps
+     * them for the rest of the request, they're gone from the next one.
+     */
+    TRUNCATE
+}
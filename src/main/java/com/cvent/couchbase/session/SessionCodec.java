@@ -0,0 +1,599 @@
+package com.cvent.couchbase.session;
+
+import com.couchbase.client.java.document.ByteArrayDocument;
+import com.couchbase.client.java.document.Document;
+import com.couchbase.client.java.document.RawJsonDocument;
+import com.cvent.couchbase.session.CouchbaseSessionManager.LazySessionJson;
+import com.cvent.couchbase.session.CouchbaseSessionManager.SessionJson;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonLocation;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileGenerator;
+import com.fasterxml.jackson.dataformat.smile.SmileParser;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Encodes sessions into the content of the documents they're stored as and decodes them from it.
+ *
+ * Uncompressed JSON is stored as a RawJsonDocument exactly as it always has been, so it can still be updated with the
+ * sub-document api. Everything else is stored as a ByteArrayDocument whose first byte marks how the rest of it is
+ * encoded, so that documents written in any format, compressed or not, can be read whatever the current format is.
+ *
+ * The content of a session document is passed around as an Object: a String for a JSON document and a byte[] for a
+ * binary one.
+ *
+ * Readers and writers are resolved once, when the codec is created, and content of any format is encoded, compressed
+ * and decompressed in buffers that are reused by each thread, so that the only allocation that scales with the size of
+ * a session is the content itself. Deflaters and inflaters hold native memory, so rather than being kept by each thread
+ * they're shared through a bounded pool and ended once they don't fit in it.
+ */
+final class SessionCodec {
+
+    private static final byte SMILE = 1;
+
+    private static final byte DEFLATED_JSON = 2;
+
+    private static final byte DEFLATED_SMILE = 3;
+
+    /**
+     * The length of the header Smile content starts with, whose last byte holds its flags
+     */
+    private static final int SMILE_HEADER_LENGTH = 4;
+
+    /**
+     * The flags of the Smile header that say names or string values may be written as references to earlier ones
+     */
+    private static final int SMILE_SHARED_REFERENCES = 0x03;
+
+    /**
+     * Buffers that have grown beyond this many bytes aren't kept for reuse
+     */
+    private static final int MAX_RETAINED_BUFFER = 64 * 1024;
+
+    /**
+     * The fingerprint of an attribute that isn't set
+     */
+    static final long ABSENT = Fingerprint.OFFSET_BASIS;
+
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    /**
+     * The max number of idle deflaters and inflaters each kept for reuse
+     */
+    private static final int MAX_POOLED_ZLIB = Runtime.getRuntime().availableProcessors() * 2;
+
+    private static final BlockingQueue<Deflater> DEFLATERS = new ArrayBlockingQueue<>(MAX_POOLED_ZLIB);
+
+    private static final BlockingQueue<Inflater> INFLATERS = new ArrayBlockingQueue<>(MAX_POOLED_ZLIB);
+
+    private final SessionFormat format;
+
+    private final int compressionThreshold;
+
+    private final JsonFactory jsonFactory;
+
+    private final JsonFactory smileFactory;
+
+    /**
+     * Reads single attributes of Smile content, which have no header
+     */
+    private final JsonFactory smileSliceFactory;
+
+    private final ObjectWriter writer;
+
+    private final ObjectReader reader;
+
+    private final ObjectReader lazyReader;
+
+    private final ObjectWriter attributeWriter;
+
+    /**
+     * Create a new codec. The mapper must be fully configured, since its configuration is captured here.
+     *
+     * @param mapper The mapper used for serialization/deserialization of session objects
+     * @param format The format to write sessions in
+     * @param compressionThreshold The size in bytes above which encoded sessions are compressed, 0 never compresses
+     */
+    SessionCodec(ObjectMapper mapper, SessionFormat format, int compressionThreshold) {
+        this.format = format;
+        this.compressionThreshold = compressionThreshold;
+        this.jsonFactory = mapper.getFactory();
+        //Every attribute can then be read on its own, see LazyAttribute
+        this.smileFactory = new SmileFactory(mapper).configure(SmileGenerator.Feature.CHECK_SHARED_NAMES, false);
+        this.smileSliceFactory = new SmileFactory(mapper).configure(SmileParser.Feature.REQUIRE_HEADER, false);
+        this.writer = mapper.writerWithType(SessionJson.class);
+        this.reader = mapper.reader(SessionJson.class);
+        this.lazyReader = mapper.reader(LazySessionJson.class);
+        this.attributeWriter = mapper.writerWithType(
+                mapper.getTypeFactory().constructMapType(Map.class, String.class, Object.class));
+    }
+
+    /**
+     * @return The type of document sessions are most likely stored as
+     */
+    Class<? extends Document<?>> getDocumentType() {
+        return format == SessionFormat.JSON ? RawJsonDocument.class : ByteArrayDocument.class;
+    }
+
+    /**
+     * @return The type of document to read a session as when it couldn't be read as getDocumentType()
+     */
+    Class<? extends Document<?>> getAlternateDocumentType() {
+        return format == SessionFormat.JSON ? ByteArrayDocument.class : RawJsonDocument.class;
+    }
+
+    /**
+     * @param json The session state
+     * @return The content of the document to store the session as
+     * @throws IOException
+     */
+    Object encode(SessionJson json) throws IOException {
+        Scratch scratch = SCRATCH.get();
+        Buffer out = scratch.encoded;
+        try {
+            int offset;
+            byte marker;
+            if (format == SessionFormat.JSON) {
+                writer.writeValue(out, json);
+                offset = 0;
+                marker = DEFLATED_JSON;
+            } else {
+                out.write(SMILE);
+                try (JsonGenerator generator = smileFactory.createGenerator(out)) {
+                    writer.writeValue(generator, json);
+                }
+                offset = 1;
+                marker = DEFLATED_SMILE;
+            }
+
+            int size = out.size() - offset;
+            if (isCompressed(size)) {
+                return scratch.deflate(marker, out.array(), offset, size);
+            }
+            return offset == 0 ? new String(out.array(), 0, size, StandardCharsets.UTF_8) : out.toByteArray();
+        } finally {
+            out.recycle();
+        }
+    }
+
+    /**
+     * @param content The content of a session document, in any format
+     * @param lazyAttributes Whether or not to read attributes as LazyAttributes
+     * @return The session state
+     * @throws IOException
+     */
+    SessionJson decode(Object content, boolean lazyAttributes) throws IOException {
+        if (content instanceof String) {
+            String text = (String) content;
+            return lazyAttributes ? readLazy(jsonFactory, text, null, 0, text.length()) : reader.readValue(text);
+        }
+
+        byte[] bytes = (byte[]) content;
+        if (bytes.length == 0) {
+            throw new IOException("Empty session document");
+        }
+
+        switch (bytes[0]) {
+            case SMILE:
+                return readSmile(bytes, 1, bytes.length - 1, lazyAttributes);
+            case DEFLATED_JSON:
+            case DEFLATED_SMILE:
+                Scratch scratch = SCRATCH.get();
+                Buffer inflated = scratch.inflate(bytes);
+                try {
+                    //Lazy attributes are slices of the content, so they need a copy the scratch buffer can't overwrite
+                    byte[] array = lazyAttributes ? Arrays.copyOf(inflated.array(), inflated.size()) : inflated.array();
+                    if (bytes[0] == DEFLATED_SMILE) {
+                        return readSmile(array, 0, inflated.size(), lazyAttributes);
+                    }
+                    return lazyAttributes
+                            ? readLazy(jsonFactory, null, array, 0, inflated.size())
+                            : reader.readValue(array, 0, inflated.size());
+                } finally {
+                    inflated.recycle();
+                }
+            default:
+                if (bytes[0] == '{') {
+                    //JSON that was stored with binary flags
+                    return lazyAttributes
+                            ? readLazy(jsonFactory, null, bytes, 0, bytes.length)
+                            : reader.readValue(bytes);
+                }
+                throw new IOException("Unknown session format " + bytes[0]);
+        }
+    }
+
+    /**
+     * Fingerprint the stored form of an attribute, so that it can be told whether the attribute changed without
+     * keeping or comparing the stored form itself. The attribute is serialized the same way it is as a value of the
+     * attribute map, so a LazyAttribute has the same fingerprint as the attribute it deserializes to. Maps whose
+     * entries are in a different order have different fingerprints, just as they're stored differently.
+     *
+     * @param name The name of the attribute
+     * @param value The attribute, or null if it isn't set
+     * @return A 64 bit hash of the stored form of the attribute
+     * @throws IOException
+     */
+    long fingerprint(String name, Object value) throws IOException {
+        if (value == null) {
+            return ABSENT;
+        }
+
+        Fingerprint fingerprint = SCRATCH.get().fingerprint;
+        fingerprint.reset();
+        try (JsonGenerator generator = smileFactory.createGenerator(fingerprint)) {
+            attributeWriter.writeValue(generator, Collections.singletonMap(name, value));
+        }
+        return fingerprint.hash;
+    }
+
+    /**
+     * Measure an attribute in the format sessions are written in, uncompressed, the same way it's stored as a value of
+     * the attribute map.
+     *
+     * @param name The name of the attribute
+     * @param value The attribute
+     * @return The number of bytes the attribute encodes to
+     * @throws IOException
+     */
+    int measure(String name, Object value) throws IOException {
+        Counter counter = SCRATCH.get().counter;
+        counter.count = 0;
+        if (format == SessionFormat.JSON) {
+            attributeWriter.writeValue(counter, Collections.singletonMap(name, value));
+        } else {
+            try (JsonGenerator generator = smileFactory.createGenerator(counter)) {
+                attributeWriter.writeValue(generator, Collections.singletonMap(name, value));
+            }
+        }
+        return counter.count;
+    }
+
+    /**
+     * Measure the share of a session document each of its attributes takes. Attributes are measured on their own, and
+     * if the document is compressed, scaled by how well the attributes compressed as a whole.
+     *
+     * @param attributes The attributes of the session
+     * @param content The content of the session document, as returned by encode()
+     * @return The size of each attribute, in the units of size()
+     * @throws IOException
+     */
+    Map<String, Integer> measure(Map<String, Object> attributes, Object content) throws IOException {
+        Map<String, Integer> sizes = new HashMap<>();
+        long total = 0;
+        for (Map.Entry<String, Object> attribute : attributes.entrySet()) {
+            int size = measure(attribute.getKey(), attribute.getValue());
+            sizes.put(attribute.getKey(), size);
+            total += size;
+        }
+
+        byte[] bytes = content instanceof byte[] ? (byte[]) content : null;
+        if (bytes != null && bytes.length > 0 && (bytes[0] == DEFLATED_JSON || bytes[0] == DEFLATED_SMILE)
+                && total > bytes.length) {
+            double ratio = (double) bytes.length / total;
+            sizes.replaceAll((name, size) -> (int) Math.ceil(size * ratio));
+        }
+        return sizes;
+    }
+
+    /**
+     * Drop the largest attributes of a session until its document fits within a limit. Attributes are dropped in the
+     * order given, as many at once as their sizes say are needed, and the session is encoded again to see whether it
+     * fits, until it does or no attribute is left to drop.
+     *
+     * @param json The session state, which is given a copy of its attributes without the dropped ones, so that the
+     * session it was taken from keeps them
+     * @param content The content of the session document, as returned by encode()
+     * @param sizes The size of each attribute, in the units of size() and the order to drop them in
+     * @param limit The size the document has to fit within
+     * @return The content of the session document without the dropped attributes
+     * @throws IOException
+     */
+    Object truncate(SessionJson json, Object content, Map<String, Integer> sizes, int limit) throws IOException {
+        Map<String, Object> attributes = new HashMap<>(json.getAttributes());
+        json.setAttributes(attributes);
+
+        Object truncated = content;
+        int size = size(truncated);
+        Iterator<Map.Entry<String, Integer>> largest = sizes.entrySet().iterator();
+        while (size > limit && largest.hasNext()) {
+            int estimate = size;
+            while (estimate > limit && largest.hasNext()) {
+                Map.Entry<String, Integer> attribute = largest.next();
+                attributes.remove(attribute.getKey());
+                estimate -= attribute.getValue();
+            }
+            truncated = encode(json);
+            size = size(truncated);
+        }
+        return truncated;
+    }
+
+    /**
+     * @param content The content of a session document
+     * @return Whether or not the document is JSON, which sub-document operations can be applied to. Content that
+     * isn't known because the document was only partially written is JSON, since only JSON can be partially written.
+     */
+    static boolean isJson(Object content) {
+        return !(content instanceof byte[]);
+    }
+
+    /**
+     * @param content The content of a session document, in any format
+     * @return The size of the document, in bytes for binary documents and chars for JSON
+     */
+    static int size(Object content) {
+        return content instanceof byte[] ? ((byte[]) content).length : ((String) content).length();
+    }
+
+    /**
+     * @param key The key of the session document
+     * @param expiry The expiry in seconds of the document
+     * @param content The content of the document, as returned by encode()
+     * @param cas The CAS of the document
+     * @return The document
+     */
+    static Document<?> createDocument(String key, int expiry, Object content, long cas) {
+        return content instanceof String
+                ? RawJsonDocument.create(key, expiry, (String) content, cas)
+                : ByteArrayDocument.create(key, expiry, (byte[]) content, cas);
+    }
+
+    private boolean isCompressed(int size) {
+        return compressionThreshold > 0 && size > compressionThreshold;
+    }
+
+    private SessionJson readSmile(byte[] bytes, int offset, int length, boolean lazyAttributes) throws IOException {
+        if (lazyAttributes && !hasSharedReferences(bytes, offset, length)) {
+            return readLazy(smileFactory, null, bytes, offset, length);
+        }
+
+        try (JsonParser parser = smileFactory.createParser(bytes, offset, length)) {
+            return reader.readValue(parser);
+        }
+    }
+
+    /**
+     * @return Whether or not the header of Smile content says it may refer back to names or values written earlier,
+     * which slices of it can't be read without
+     */
+    private static boolean hasSharedReferences(byte[] bytes, int offset, int length) {
+        return length < SMILE_HEADER_LENGTH || bytes[offset] != ':'
+                || (bytes[offset + SMILE_HEADER_LENGTH - 1] & SMILE_SHARED_REFERENCES) != 0;
+    }
+
+    /**
+     * Read a session whose attributes are read as LazyAttributes, slices of the content
+     *
+     * @param factory The factory of the format of the content
+     * @param text The content if it's JSON text, or null
+     * @param bytes The content if it's binary, or null. It's kept by the lazy attributes.
+     * @param offset The offset of the content in bytes
+     * @param length The length of the content in bytes
+     * @return The session state
+     * @throws IOException
+     */
+    private SessionJson readLazy(JsonFactory factory, String text, byte[] bytes, int offset, int length)
+            throws IOException {
+        boolean json = factory == jsonFactory;
+        try (JsonParser parser = text != null
+                ? factory.createParser(text)
+                : factory.createParser(bytes, offset, length)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Session document isn't an object");
+            }
+
+            //Where the session object starts is known, which ties the offsets the parser reports to the content
+            int first = json ? indexOfObject(text, bytes, offset) : offset + SMILE_HEADER_LENGTH;
+            JsonLocation location = parser.getTokenLocation();
+            long reported = text != null ? location.getCharOffset() : location.getByteOffset();
+            LazyAttribute.Source source = new LazyAttribute.Source(json ? jsonFactory : smileSliceFactory, json, text,
+                    bytes, first - reported);
+            return lazyReader.withAttribute(LazyAttribute.Source.class, source).readValue(parser);
+        }
+    }
+
+    /**
+     * @return The index of the start of the JSON object in text, or else bytes from offset
+     */
+    private static int indexOfObject(String text, byte[] bytes, int offset) {
+        if (text != null) {
+            return text.indexOf('{');
+        }
+
+        int index = offset;
+        while (bytes[index] != '{') {
+            index++;
+        }
+        return index;
+    }
+
+    /**
+     * A growable byte buffer whose backing array can be read directly
+     */
+    private static final class Buffer extends ByteArrayOutputStream {
+
+        private Buffer() {
+            super(4096);
+        }
+
+        byte[] array() {
+            return buf;
+        }
+
+        /**
+         * Make room for at least one more byte
+         *
+         * @return The number of bytes that can be written to array() at size() without growing it again
+         */
+        int grow() {
+            if (count == buf.length) {
+                buf = Arrays.copyOf(buf, buf.length * 2);
+            }
+            return buf.length - count;
+        }
+
+        /**
+         * Account for bytes written to array() directly
+         *
+         * @param written The number of bytes written at size()
+         */
+        void advance(int written) {
+            count += written;
+        }
+
+        /**
+         * Empty the buffer for reuse, letting go of its array if it grew too large to keep
+         */
+        void recycle() {
+            reset();
+            if (buf.length > MAX_RETAINED_BUFFER) {
+                buf = new byte[4096];
+            }
+        }
+    }
+
+    /**
+     * Hashes the bytes written to it with 64 bit FNV-1a instead of keeping them
+     */
+    private static final class Fingerprint extends OutputStream {
+
+        private static final long OFFSET_BASIS = 0xcbf29ce484222325L;
+
+        private static final long PRIME = 0x100000001b3L;
+
+        private long hash = OFFSET_BASIS;
+
+        void reset() {
+            hash = OFFSET_BASIS;
+        }
+
+        @Override
+        public void write(int b) {
+            hash = (hash ^ (b & 0xff)) * PRIME;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            long h = hash;
+            for (int i = offset; i < offset + length; i++) {
+                h = (h ^ (bytes[i] & 0xff)) * PRIME;
+            }
+            hash = h;
+        }
+    }
+
+    /**
+     * Counts the bytes written to it instead of keeping them
+     */
+    private static final class Counter extends OutputStream {
+
+        private int count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            count += length;
+        }
+    }
+
+    /**
+     * The buffers a thread reuses across sessions
+     */
+    private static final class Scratch {
+
+        private final Buffer encoded = new Buffer();
+
+        private final Buffer compressed = new Buffer();
+
+        private final Fingerprint fingerprint = new Fingerprint();
+
+        private final Counter counter = new Counter();
+
+        private byte[] deflate(byte marker, byte[] bytes, int offset, int length) {
+            Deflater deflater = DEFLATERS.poll();
+            if (deflater == null) {
+                deflater = new Deflater(Deflater.BEST_SPEED);
+            }
+            deflater.setInput(bytes, offset, length);
+            deflater.finish();
+
+            Buffer out = compressed;
+            try {
+                out.write(marker);
+                while (!deflater.finished()) {
+                    int room = out.grow();
+                    out.advance(deflater.deflate(out.array(), out.size(), room));
+                }
+                return out.toByteArray();
+            } finally {
+                out.recycle();
+                deflater.reset();
+                if (!DEFLATERS.offer(deflater)) {
+                    deflater.end();
+                }
+            }
+        }
+
+        /**
+         * @param bytes Compressed content, following its format marker
+         * @return The decompressed content, which must be recycled once it's been read
+         * @throws IOException
+         */
+        private Buffer inflate(byte[] bytes) throws IOException {
+            Inflater inflater = INFLATERS.poll();
+            if (inflater == null) {
+                inflater = new Inflater();
+            }
+            inflater.setInput(bytes, 1, bytes.length - 1);
+
+            Buffer out = compressed;
+            boolean complete = false;
+            try {
+                while (!inflater.finished()) {
+                    int room = out.grow();
+                    int inflated = inflater.inflate(out.array(), out.size(), room);
+                    if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        throw new IOException("Truncated compressed session");
+                    }
+                    out.advance(inflated);
+                }
+                complete = true;
+                return out;
+            } catch (DataFormatException ex) {
+                throw new IOException("Corrupt compressed session", ex);
+            } finally {
+                if (!complete) {
+                    out.recycle();
+                }
+                inflater.reset();
+                if (!INFLATERS.offer(inflater)) {
+                    inflater.end();
+                }
+            }
+        }
+    }
+}
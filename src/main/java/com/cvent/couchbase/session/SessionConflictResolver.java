@@ -0,0 +1,38 @@
+package com.cvent.couchbase.session;
+
+import com.couchbase.client.java.error.CASMismatchException;
+
+/**
+ * Resolves a session attribute that a request changed while another write changed the same attribute, since the
+ * request read the session. Attributes that only one of them changed are merged without it.
+ *
+ * @see CouchbaseSessionManager#enableConflictMerge(SessionConflictResolver, int, long)
+ */
+@FunctionalInterface
+public interface SessionConflictResolver {
+
+    /**
+     * Keep the value this request set, the last write wins
+     */
+    SessionConflictResolver OURS = (name, ours, theirs) -> ours;
+
+    /**
+     * Keep the value the other write stored
+     */
+    SessionConflictResolver THEIRS = (name, ours, theirs) -> theirs;
+
+    /**
+     * Fail the write of the session, as if merging were disabled
+     */
+    SessionConflictResolver FAIL = (name, ours, theirs) -> {
+        throw new CASMismatchException("Session attribute " + name + " was changed by another write");
+    };
+
+    /**
+     * @param name The name of the attribute
+     * @param ours The value this request set, or null if it removed the attribute
+     * @param theirs The value stored now, or null if the other write removed the attribute
+     * @return The value to write, or null to remove the attribute
+     */
+    Object resolve(String name, Object ours, Object theirs);
+}
@@ -0,0 +1,214 @@
+package com.cvent.couchbase.session;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Seals the state of a session into a cookie value and opens it again. The state is encrypted with AES-GCM under a
+ * key derived from a secret shared by all nodes, which also authenticates it, so a cookie that was tampered with or
+ * sealed with another secret doesn't open. The id of the session is bound to the sealed state as associated data, so
+ * the state of one session can't be replayed as the state of another.
+ *
+ * A sealed state can't be taken back once it's been issued, so each one carries a generation, and the server records
+ * the lowest generation that's still current for a session once older states must no longer be accepted: REVOKED once
+ * the session is invalidated, or one past the generation of the states issued before the session moved into
+ * couchbase. A state is only accepted if its generation is at least the recorded one.
+ */
+final class SessionCookieSealer {
+
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+
+    private static final int IV_BYTES = 12;
+
+    private static final int TAG_BITS = 128;
+
+    /**
+     * The first byte of the sealed state says which form the serialized session is in
+     */
+    private static final byte JSON = 0;
+
+    private static final byte BINARY = 1;
+
+    /**
+     * The format byte and the generation precede the serialized session
+     */
+    private static final int HEADER_BYTES = 1 + Long.BYTES;
+
+    /**
+     * The generation recorded for a session that was invalidated, no sealed state is current against it
+     */
+    static final long REVOKED = Long.MAX_VALUE;
+
+    private final String cookieName;
+
+    private final SecretKeySpec key;
+
+    private final int maxCookieBytes;
+
+    private final SecureRandom random = new SecureRandom();
+
+    /**
+     * @param cookieName The name of the cookie the state is kept in
+     * @param secret The secret shared by all nodes, at least 16 random bytes
+     * @param maxCookieBytes The max length of the cookie value
+     */
+    SessionCookieSealer(String cookieName, byte[] secret, int maxCookieBytes) {
+        if (secret.length < 16) {
+            throw new IllegalArgumentException("The secret must be at least 16 bytes long");
+        }
+
+        this.cookieName = cookieName;
+        this.maxCookieBytes = maxCookieBytes;
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(secret);
+            this.key = new SecretKeySpec(Arrays.copyOf(digest, 16), "AES");
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException("Failed to derive the session cookie key", ex);
+        }
+    }
+
+    String getCookieName() {
+        return cookieName;
+    }
+
+    /**
+     * Tell whether a serialized session fits in the cookie once sealed, without sealing it
+     *
+     * @param content The serialized session, a String for JSON or a byte[]
+     * @return Whether or not the sealed state is at most the max length of the cookie value
+     */
+    boolean fits(Object content) {
+        long serialized = content instanceof String ? utf8Length((String) content) : ((byte[]) content).length;
+        long sealed = IV_BYTES + HEADER_BYTES + serialized + TAG_BITS / 8;
+        //Base64 without padding
+        return (sealed * 4 + 2) / 3 <= maxCookieBytes;
+    }
+
+    /**
+     * @param content The serialized session, a String for JSON or a byte[]
+     * @param sessionId The id of the session
+     * @param generation The generation of the sealed state, at least the one recorded for the session
+     * @return The sealed state, in a form that can be used as a cookie value as is
+     */
+    String seal(Object content, String sessionId, long generation) {
+        boolean json = content instanceof String;
+        byte[] serialized = json ? ((String) content).getBytes(StandardCharsets.UTF_8) : (byte[]) content;
+        byte[] plain = ByteBuffer.allocate(HEADER_BYTES + serialized.length)
+                .put(json ? JSON : BINARY)
+                .putLong(generation)
+                .put(serialized)
+                .array();
+
+        byte[] iv = new byte[IV_BYTES];
+        random.nextBytes(iv);
+        try {
+            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, iv));
+            cipher.updateAAD(sessionId.getBytes(StandardCharsets.UTF_8));
+            byte[] sealed = cipher.doFinal(plain);
+
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(ByteBuffer.allocate(IV_BYTES + sealed.length)
+                    .put(iv)
+                    .put(sealed)
+                    .array());
+        } catch (GeneralSecurityException ex) {
+            throw new RuntimeException("Failed to seal session " + sessionId, ex);
+        }
+    }
+
+    /**
+     * @param value A cookie value
+     * @param sessionId The id of the session the cookie is expected to hold the state of
+     * @return The state, or null if the value isn't the sealed state of that session
+     */
+    State open(String value, String sessionId) {
+        byte[] sealed;
+        try {
+            sealed = Base64.getUrlDecoder().decode(value);
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+
+        if (sealed.length < IV_BYTES + HEADER_BYTES + TAG_BITS / 8) {
+            return null;
+        }
+
+        byte[] plain;
+        try {
+            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, sealed, 0, IV_BYTES));
+            cipher.updateAAD(sessionId.getBytes(StandardCharsets.UTF_8));
+            plain = cipher.doFinal(sealed, IV_BYTES, sealed.length - IV_BYTES);
+        } catch (GeneralSecurityException ex) {
+            //Tampered with, sealed with another secret or the state of another session
+            return null;
+        }
+
+        long generation = ByteBuffer.wrap(plain, 1, Long.BYTES).getLong();
+        return new State(plain[0] == JSON
+                ? new String(plain, HEADER_BYTES, plain.length - HEADER_BYTES, StandardCharsets.UTF_8)
+                : Arrays.copyOfRange(plain, HEADER_BYTES, plain.length), generation);
+    }
+
+    /**
+     * @param generation The generation of an opened state
+     * @param recorded The generation recorded for its session, or 0 if none is
+     * @return Whether or not the state may still be accepted
+     */
+    static boolean isCurrent(long generation, long recorded) {
+        return recorded != REVOKED && generation >= recorded;
+    }
+
+    private static long utf8Length(String value) {
+        long length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c)) {
+                //The pair encodes to 4 bytes
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * The state of a session opened from a cookie
+     */
+    static final class State {
+
+        private final Object content;
+
+        private final long generation;
+
+        private State(Object content, long generation) {
+            this.content = content;
+            this.generation = generation;
+        }
+
+        /**
+         * @return The serialized session, a String for JSON or a byte[]
+         */
+        Object getContent() {
+            return content;
+        }
+
+        long getGeneration() {
+            return generation;
+        }
+    }
+}
@@ -0,0 +1,512 @@
+package com.cvent.couchbase.session;
+
+import com.couchbase.client.core.CouchbaseException;
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.document.StringDocument;
+import com.couchbase.client.java.error.CASMismatchException;
+import com.couchbase.client.java.error.DocumentAlreadyExistsException;
+import com.couchbase.client.java.error.DocumentDoesNotExistException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An index of the times sessions expire at, kept in couchbase so that expired sessions can be found without a view or
+ * a query, and scanned in the background to fire the events of sessions that expired.
+ *
+ * Time is cut into buckets and sessions are spread across a fixed number of partitions by a hash of their id. Every
+ * write or touch of a session is noted with the CAS it left the document with, and the id and CAS of the sessions of
+ * a partition that expire within a bucket are appended to one small document. Request threads only note them in
+ * memory, a single scheduler thread appends them to the index about once a second.
+ *
+ * Once a bucket has passed, the node holding its partition reads its document and hands the sessions to the expirer in
+ * batches, then removes the document. A session whose document still has one of the CAS values it was indexed with in
+ * that bucket hasn't been written or touched since, so it expired. Any other session was used since and is in the
+ * index again at the time it now expires at.
+ *
+ * Each partition is held by one node at a time with a lease, a document that expires unless the node renews it. Nodes
+ * take the partitions assigned to them, p % nodeCount == nodeIndex, and the partitions of a node that's down once its
+ * lease expired. A node that's back claims its partitions and the node holding them lets them go. A node that stalls
+ * past its lease may scan a bucket along with the node that took over, which is harmless since the expirer removes
+ * sessions conditionally on their CAS.
+ *
+ * An index is kept in a single bucket, a manager whose sessions are sharded keeps one in each shard.
+ */
+final class SessionExpiryIndex {
+
+    private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(SessionExpiryIndex.class);
+
+    /**
+     * The number of msec between appends of the noted sessions to the index
+     */
+    private static final long FLUSH_INTERVAL_MILLIS = 1000;
+
+    /**
+     * The number of seconds a node holds a partition for without renewing its lease
+     */
+    private static final int LEASE_SECONDS = 15;
+
+    /**
+     * The number of msec between renewals of the leases a node holds, which are also the attempts to take others
+     */
+    private static final long LEASE_CHECK_MILLIS = 5000;
+
+    /**
+     * Separates the sessions in an index document, it never occurs in a session id
+     */
+    private static final char ID_SEPARATOR = ' ';
+
+    /**
+     * Separates the id of a session from the CAS it was indexed with, the last one in an entry of an index document
+     */
+    private static final char CAS_SEPARATOR = ':';
+
+    private final Bucket bucket;
+
+    private final String keyPrefix;
+
+    private final long bucketMillis;
+
+    private final int partitions;
+
+    private final int nodeIndex;
+
+    private final int nodeCount;
+
+    private final int graceSeconds;
+
+    private final int batchSize;
+
+    private final long timeoutMillis;
+
+    private final Expirer expirer;
+
+    /**
+     * Identifies this node in the leases it holds
+     */
+    private final String owner = UUID.randomUUID().toString();
+
+    /**
+     * When this node starts taking the partitions of other nodes, so that the nodes started with it take their own
+     * first
+     */
+    private final long takeoverStart = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(LEASE_SECONDS);
+
+    /**
+     * The sessions noted since the last append, mapped to the last write or touch of each
+     */
+    private final ConcurrentMap<String, Tracked> noted = new ConcurrentHashMap<>();
+
+    /**
+     * The CAS of the lease this node holds on each partition, or 0 for the partitions it doesn't hold
+     */
+    private final long[] leases;
+
+    /**
+     * The next bucket to scan of each partition, or -1 for the partitions this node doesn't hold
+     */
+    private final long[] nextBuckets;
+
+    /**
+     * When the leases are next renewed, only used by the scheduler thread
+     */
+    private long nextLeaseCheck;
+
+    private volatile ScheduledExecutorService scheduler;
+
+    private volatile boolean stopped;
+
+    /**
+     * Create a new expiry index
+     *
+     * @param bucket The couchbase Bucket api to keep the index documents in
+     * @param keyPrefix The key prefix of the index documents
+     * @param bucketSeconds The number of seconds of expiry times each index document covers
+     * @param partitions The number of partitions, the same on all nodes
+     * @param nodeIndex The index of this node, from 0 to nodeCount - 1
+     * @param nodeCount The number of nodes the partitions are assigned to
+     * @param batchSize The max number of sessions to hand to the expirer at once
+     * @param timeoutMillis The max number of msec to wait for a couchbase call to complete
+     * @param expirer Fires the events of the sessions that expired
+     */
+    SessionExpiryIndex(Bucket bucket, String keyPrefix, int bucketSeconds, int partitions, int nodeIndex,
+            int nodeCount, int batchSize, long timeoutMillis, Expirer expirer) {
+        if (bucketSeconds <= 0 || partitions <= 0 || batchSize <= 0) {
+            throw new IllegalArgumentException("The bucket length, partitions and batch size must be positive");
+        }
+        if (nodeIndex < 0 || nodeIndex >= nodeCount) {
+            throw new IllegalArgumentException("The node index must be from 0 to the number of nodes - 1");
+        }
+
+        this.bucket = bucket;
+        this.keyPrefix = keyPrefix;
+        this.bucketMillis = TimeUnit.SECONDS.toMillis(bucketSeconds);
+        this.partitions = partitions;
+        this.nodeIndex = nodeIndex;
+        this.nodeCount = nodeCount;
+        //A bucket is scanned once the next one has passed as well and the scan itself takes time, and the partitions
+        //of a node that stopped are only taken once its lease expired
+        this.graceSeconds = bucketSeconds * 3 + LEASE_SECONDS
+                + (int) TimeUnit.MILLISECONDS.toSeconds(LEASE_CHECK_MILLIS);
+        this.batchSize = batchSize;
+        this.timeoutMillis = timeoutMillis;
+        this.expirer = expirer;
+        this.leases = new long[partitions];
+        this.nextBuckets = new long[partitions];
+        Arrays.fill(nextBuckets, -1);
+    }
+
+    /**
+     * @return The number of seconds sessions must be kept in couchbase past their expiry, so that they can still be
+     * read when their bucket is scanned
+     */
+    int getGraceSeconds() {
+        return graceSeconds;
+    }
+
+    void start() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "couchbase-session-expiry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> run(System.currentTimeMillis()), FLUSH_INTERVAL_MILLIS,
+                FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop scanning, append the sessions noted so far to the index and let go of the partitions this node holds
+     *
+     * @param timeoutMillis The max number of msec to wait for a scan in progress to stop
+     * @throws InterruptedException
+     */
+    void stop(long timeoutMillis) throws InterruptedException {
+        ScheduledExecutorService executor = scheduler;
+        if (executor == null) {
+            return;
+        }
+
+        scheduler = null;
+        stopped = true;
+        executor.shutdown();
+        if (!executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+            LOG.warn("Timed out waiting for the session expiry scan to stop");
+        }
+        flush(System.currentTimeMillis());
+        for (int partition = 0; partition < partitions; partition++) {
+            if (leases[partition] != 0) {
+                release(partition);
+            }
+        }
+    }
+
+    /**
+     * Note when a session expires after a write or touch, to be appended to the index. Costs no more than a map update.
+     *
+     * @param sessionId The id of the session
+     * @param cas The CAS the write or touch left the session document with
+     * @param expiresAt The time the session expires at in msec since the epoch
+     */
+    void track(String sessionId, long cas, long expiresAt) {
+        noted.merge(sessionId, new Tracked(expiresAt, cas), (earlier, later) ->
+                later.expiresAt >= earlier.expiresAt ? later : earlier);
+    }
+
+    /**
+     * @param partition A partition of the index
+     * @return Whether or not this node holds the partition
+     */
+    boolean isHeld(int partition) {
+        return leases[partition] != 0;
+    }
+
+    /**
+     * Append the noted sessions to the index, renew the leases if it's time to and scan the buckets that passed, as the
+     * scheduler does once a second
+     *
+     * @param now The current time in msec since the epoch
+     */
+    void run(long now) {
+        try {
+            flush(now);
+            if (now >= nextLeaseCheck) {
+                checkLeases(now);
+                nextLeaseCheck = now + LEASE_CHECK_MILLIS;
+            }
+            scan(now);
+        } catch (RuntimeException ex) {
+            //Or the scheduler would stop running
+            LOG.warn("Failed to scan the session expiry index", ex);
+        }
+    }
+
+    /**
+     * Append the noted sessions to the documents of their partitions and buckets
+     */
+    private void flush(long now) {
+        Map<String, StringBuilder> appends = new HashMap<>();
+        Map<String, Long> bucketEnds = new HashMap<>();
+        for (Map.Entry<String, Tracked> entry : noted.entrySet()) {
+            String sessionId = entry.getKey();
+            Tracked tracked = entry.getValue();
+            if (!noted.remove(sessionId, tracked)) {
+                //Noted again since, appended with its later expiry on the next flush
+                continue;
+            }
+
+            //A bucket that has passed may have been scanned already
+            long timeBucket = Math.max(tracked.expiresAt, now) / bucketMillis;
+            String key = getKey(getPartition(sessionId), timeBucket);
+            appends.computeIfAbsent(key, k -> new StringBuilder())
+                    .append(sessionId)
+                    .append(CAS_SEPARATOR)
+                    .append(tracked.cas)
+                    .append(ID_SEPARATOR);
+            bucketEnds.put(key, (timeBucket + 1) * bucketMillis);
+        }
+
+        for (Map.Entry<String, StringBuilder> append : appends.entrySet()) {
+            String key = append.getKey();
+            String entries = append.getValue().toString();
+            int expiry = (int) TimeUnit.MILLISECONDS.toSeconds(bucketEnds.get(key) - now) + graceSeconds;
+            try {
+                append(StringDocument.create(key, expiry, entries));
+            } catch (CouchbaseException ex) {
+                LOG.warn("Failed to append to session expiry index {}, retrying on the next flush", key, ex);
+                track(parse(entries), now);
+            }
+        }
+    }
+
+    /**
+     * Append to an index document, creating it if it doesn't exist yet
+     */
+    private void append(StringDocument doc) {
+        try {
+            bucket.append(doc, timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (DocumentDoesNotExistException ex) {
+            try {
+                bucket.insert(doc, timeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (DocumentAlreadyExistsException raced) {
+                //Created by another node in the meantime
+                bucket.append(doc, timeoutMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Renew the leases this node holds, letting go of the ones claimed back by the node they're assigned to, and take
+     * the partitions no node holds
+     */
+    private void checkLeases(long now) {
+        for (int partition = 0; partition < partitions && !stopped; partition++) {
+            boolean assigned = partition % nodeCount == nodeIndex;
+            try {
+                if (leases[partition] != 0) {
+                    if (!assigned && isClaimed(partition)) {
+                        release(partition);
+                    } else {
+                        renew(partition);
+                    }
+                } else if (assigned || now >= takeoverStart) {
+                    take(partition, assigned, now);
+                }
+            } catch (CouchbaseException ex) {
+                LOG.warn("Failed to check the lease on partition {} of session expiry index {}", partition, keyPrefix,
+                        ex);
+            }
+        }
+    }
+
+    private void take(int partition, boolean assigned, long now) {
+        try {
+            leases[partition] = bucket.insert(StringDocument.create(getLeaseKey(partition), LEASE_SECONDS, owner),
+                    timeoutMillis, TimeUnit.MILLISECONDS).cas();
+        } catch (DocumentAlreadyExistsException ex) {
+            if (assigned) {
+                //Taken while this node was down, the node holding it lets it go once it sees the claim
+                bucket.upsert(StringDocument.create(getClaimKey(partition), LEASE_SECONDS, owner), timeoutMillis,
+                        TimeUnit.MILLISECONDS);
+            }
+            return;
+        }
+
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Took partition {} of session expiry index {}", partition, keyPrefix);
+        }
+
+        //Catch up on the buckets whose sessions may still be in couchbase, in case the node scanning them stopped
+        nextBuckets[partition] = (now - TimeUnit.SECONDS.toMillis(graceSeconds)) / bucketMillis;
+    }
+
+    private void renew(int partition) {
+        try {
+            leases[partition] = bucket.replace(StringDocument.create(getLeaseKey(partition), LEASE_SECONDS, owner,
+                    leases[partition]), timeoutMillis, TimeUnit.MILLISECONDS).cas();
+        } catch (CASMismatchException | DocumentDoesNotExistException ex) {
+            LOG.warn("Lost the lease on partition {} of session expiry index {}, it expired before it was renewed",
+                    partition, keyPrefix);
+            leases[partition] = 0;
+            nextBuckets[partition] = -1;
+        }
+    }
+
+    private void release(int partition) {
+        try {
+            bucket.remove(StringDocument.create(getLeaseKey(partition), 0, null, leases[partition]), timeoutMillis,
+                    TimeUnit.MILLISECONDS);
+        } catch (CASMismatchException | DocumentDoesNotExistException ex) {
+            //Expired already, and possibly taken by another node
+        } catch (CouchbaseException ex) {
+            LOG.warn("Failed to release partition {} of session expiry index {}, left to expire", partition,
+                    keyPrefix, ex);
+        } finally {
+            leases[partition] = 0;
+            nextBuckets[partition] = -1;
+        }
+    }
+
+    /**
+     * @return Whether or not the node a partition is assigned to asked for it back
+     */
+    private boolean isClaimed(int partition) {
+        return bucket.get(getClaimKey(partition), StringDocument.class, timeoutMillis, TimeUnit.MILLISECONDS) != null;
+    }
+
+    /**
+     * Scan the next bucket of each partition this node holds if it has passed, along with the bucket after it. A node
+     * that took over a partition catches up one bucket a second.
+     */
+    private void scan(long now) {
+        long lastDue = now / bucketMillis - 2;
+        for (int partition = 0; partition < partitions && !stopped; partition++) {
+            if (nextBuckets[partition] >= 0 && nextBuckets[partition] <= lastDue) {
+                scan(partition, nextBuckets[partition]);
+                nextBuckets[partition]++;
+            }
+        }
+    }
+
+    private void scan(int partition, long timeBucket) {
+        String key = getKey(partition, timeBucket);
+        StringDocument doc = bucket.get(key, StringDocument.class, timeoutMillis, TimeUnit.MILLISECONDS);
+        if (doc == null) {
+            return;
+        }
+
+        Map<String, Set<Long>> sessions = parse(doc.content());
+        List<String> ids = new ArrayList<>(sessions.keySet());
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Scanning {} sessions in session expiry index {}", ids.size(), key);
+        }
+
+        for (int start = 0; start < ids.size(); start += batchSize) {
+            Map<String, Set<Long>> batch = new LinkedHashMap<>();
+            for (String sessionId : ids.subList(start, Math.min(start + batchSize, ids.size()))) {
+                batch.put(sessionId, sessions.get(sessionId));
+            }
+
+            try {
+                expirer.expire(batch);
+            } catch (RuntimeException ex) {
+                LOG.warn("Failed to expire {} sessions of session expiry index {}, retrying later", batch.size(), key,
+                        ex);
+                track(batch, System.currentTimeMillis());
+            }
+        }
+
+        try {
+            bucket.remove(key, StringDocument.class, timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (DocumentDoesNotExistException ex) {
+            //Expired already
+        }
+    }
+
+    /**
+     * Note sessions again, to be looked at in the current bucket
+     */
+    private void track(Map<String, Set<Long>> sessions, long now) {
+        for (Map.Entry<String, Set<Long>> session : sessions.entrySet()) {
+            for (long cas : session.getValue()) {
+                track(session.getKey(), cas, now);
+            }
+        }
+    }
+
+    private int getPartition(String sessionId) {
+        return (int) Math.floorMod(SessionShards.hash(sessionId), (long) partitions);
+    }
+
+    private String getKey(int partition, long timeBucket) {
+        return keyPrefix + partition + "::" + timeBucket;
+    }
+
+    private String getLeaseKey(int partition) {
+        return keyPrefix + "lease::" + partition;
+    }
+
+    private String getClaimKey(int partition) {
+        return keyPrefix + "claim::" + partition;
+    }
+
+    /**
+     * @param entries The entries of an index document
+     * @return The ids of the sessions in the entries, mapped to the CAS values each was indexed with
+     */
+    private static Map<String, Set<Long>> parse(String entries) {
+        Map<String, Set<Long>> sessions = new LinkedHashMap<>();
+        for (String entry : entries.split(String.valueOf(ID_SEPARATOR))) {
+            int separator = entry.lastIndexOf(CAS_SEPARATOR);
+            if (separator <= 0) {
+                continue;
+            }
+
+            try {
+                long cas = Long.parseLong(entry.substring(separator + 1));
+                sessions.computeIfAbsent(entry.substring(0, separator), id -> new LinkedHashSet<>()).add(cas);
+            } catch (NumberFormatException ex) {
+                LOG.warn("Skipped malformed entry {} of the session expiry index", entry);
+            }
+        }
+        return sessions;
+    }
+
+    /**
+     * The last write or touch of a session noted since the last append
+     */
+    private static final class Tracked {
+
+        private final long expiresAt;
+
+        private final long cas;
+
+        private Tracked(long expiresAt, long cas) {
+            this.expiresAt = expiresAt;
+            this.cas = cas;
+        }
+    }
+
+    /**
+     * Fires the events of the sessions that expired
+     */
+    @FunctionalInterface
+    interface Expirer {
+
+        /**
+         * @param sessions The ids of sessions that may have expired, mapped to the CAS values they were indexed with
+         */
+        void expire(Map<String, Set<Long>> sessions);
+    }
+}
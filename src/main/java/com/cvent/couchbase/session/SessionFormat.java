@@ -0,0 +1,20 @@
+package com.cvent.couchbase.session;
+
+/**
+ * The format sessions are encoded in when they're written to couchbase. Sessions written in any format can always be
+ * read, whatever the current format is.
+ *
+ * @see CouchbaseSessionManager#setSessionFormat(SessionFormat, int)
+ */
+public enum SessionFormat {
+
+    /**
+     * JSON text produced by the configured mapper, stored as a JSON document
+     */
+    JSON,
+
+    /**
+     * Jackson Smile, a binary encoding of JSON that is smaller and faster to parse, stored as a binary document
+     */
+    SMILE
+}
@@ -0,0 +1,74 @@
+package com.cvent.couchbase.session;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Merges the attributes a request changed onto the latest stored attributes of its session, after its write conflicted
+ * with another write. An attribute the other write didn't change since the request read the session takes the value
+ * the request gave it, one both changed is handed to the conflict resolver.
+ *
+ * Whether the other write changed an attribute is told by comparing fingerprints of its stored form, see
+ * SessionCodec.fingerprint(), so the value the request read doesn't have to be kept.
+ */
+final class SessionMerge {
+
+    private SessionMerge() {
+    }
+
+    /**
+     * @param latest The attributes stored now, which the changed attributes are merged into
+     * @param ours The attributes of the session as the request left them
+     * @param changes The names of the attributes the request changed, each of which is set to whether the attribute
+     * exists in latest, which a delta write of the merged session applies to
+     * @param originals The fingerprint of a changed attribute when the request read it, or null if it isn't known
+     * @param fingerprinter Fingerprints the stored form of an attribute
+     * @param resolver Resolves attributes changed by both writes
+     * @param mapper Deserializes stored attributes that are still LazyAttributes before they're resolved
+     * @throws IOException
+     */
+    static void merge(Map<String, Object> latest, Map<String, Object> ours, Map<String, Boolean> changes,
+            Function<String, Long> originals, Fingerprinter fingerprinter, SessionConflictResolver resolver,
+            ObjectMapper mapper) throws IOException {
+        for (Map.Entry<String, Boolean> change : changes.entrySet()) {
+            String name = change.getKey();
+            Object value = ours.get(name);
+            Object theirs = latest.get(name);
+
+            Long original = originals.apply(name);
+            Object resolved;
+            if (original != null && original == fingerprinter.fingerprint(name, theirs)) {
+                //Only this request changed the attribute
+                resolved = value;
+            } else {
+                resolved = resolver.resolve(name, value,
+                        theirs instanceof LazyAttribute ? ((LazyAttribute) theirs).materialize(mapper) : theirs);
+            }
+
+            if (resolved == null) {
+                latest.remove(name);
+            } else {
+                latest.put(name, resolved);
+            }
+            //Whether the attribute exists in the document the delta is applied to
+            change.setValue(theirs != null);
+        }
+    }
+
+    /**
+     * Fingerprints the stored form of an attribute
+     */
+    @FunctionalInterface
+    interface Fingerprinter {
+
+        /**
+         * @param name The name of the attribute
+         * @param value The attribute, or null if it isn't set
+         * @return A hash of the stored form of the attribute
+         * @throws IOException
+         */
+        long fingerprint(String name, Object value) throws IOException;
+    }
+}
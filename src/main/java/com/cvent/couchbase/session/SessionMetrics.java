@@ -0,0 +1,155 @@
+package com.cvent.couchbase.session;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+/**
+ * The metrics of a session manager, registered under the name of the session manager class:
+ * <ul>
+ * <li>get-session, add-session, update-session, remove-session and renew-session-id: Timers of the session manager
+ * operations</li>
+ * <li>replica-fallbacks: Reads served from a replica because the active node failed or was slow</li>
+ * <li>cas-conflicts: Writes rejected because the session changed since it was read</li>
+ * <li>deserialization-failures: Sessions or attributes that couldn't be deserialized</li>
+ * <li>document-size: The size of written session documents, in bytes for binary documents and chars for JSON</li>
+ * <li>attribute-count: The number of attributes of written sessions</li>
+ * <li>size-soft-breaches and size-hard-breaches: Session writes over the soft and hard size limits</li>
+ * <li>expired-sessions: Sessions whose expiry events were fired by this node</li>
+ * <li>complete-clean and complete-dirty: Requests that completed without and with changes to their session</li>
+ * <li>complete-unchanged: Requests whose session was set but ended up unchanged, and wasn't written, which also count
+ * as clean</li>
+ * </ul>
+ */
+final class SessionMetrics {
+
+    private final Timer getSession;
+
+    private final Timer addSession;
+
+    private final Timer updateSession;
+
+    private final Timer removeSession;
+
+    private final Timer renewSessionId;
+
+    private final Meter replicaFallbacks;
+
+    private final Meter casConflicts;
+
+    private final Meter deserializationFailures;
+
+    private final Histogram documentSize;
+
+    private final Histogram attributeCount;
+
+    private final Meter softSizeBreaches;
+
+    private final Meter hardSizeBreaches;
+
+    private final Meter expiredSessions;
+
+    private final Counter cleanCompletes;
+
+    private final Counter dirtyCompletes;
+
+    private final Counter unchangedCompletes;
+
+    /**
+     * Create the metrics, registering them or reusing ones already registered under the same names
+     *
+     * @param registry The registry to register the metrics with
+     */
+    SessionMetrics(MetricRegistry registry) {
+        this.getSession = registry.timer(name("get-session"));
+        this.addSession = registry.timer(name("add-session"));
+        this.updateSession = registry.timer(name("update-session"));
+        this.removeSession = registry.timer(name("remove-session"));
+        this.renewSessionId = registry.timer(name("renew-session-id"));
+        this.replicaFallbacks = registry.meter(name("replica-fallbacks"));
+        this.casConflicts = registry.meter(name("cas-conflicts"));
+        this.deserializationFailures = registry.meter(name("deserialization-failures"));
+        this.documentSize = registry.histogram(name("document-size"));
+        this.attributeCount = registry.histogram(name("attribute-count"));
+        this.softSizeBreaches = registry.meter(name("size-soft-breaches"));
+        this.hardSizeBreaches = registry.meter(name("size-hard-breaches"));
+        this.expiredSessions = registry.meter(name("expired-sessions"));
+        this.cleanCompletes = registry.counter(name("complete-clean"));
+        this.dirtyCompletes = registry.counter(name("complete-dirty"));
+        this.unchangedCompletes = registry.counter(name("complete-unchanged"));
+    }
+
+    private static String name(String name) {
+        return MetricRegistry.name(CouchbaseSessionManager.class, name);
+    }
+
+    Timer getGetSession() {
+        return getSession;
+    }
+
+    Timer getAddSession() {
+        return addSession;
+    }
+
+    Timer getUpdateSession() {
+        return updateSession;
+    }
+
+    Timer getRemoveSession() {
+        return removeSession;
+    }
+
+    Timer getRenewSessionId() {
+        return renewSessionId;
+    }
+
+    Meter getReplicaFallbacks() {
+        return replicaFallbacks;
+    }
+
+    Meter getCasConflicts() {
+        return casConflicts;
+    }
+
+    Meter getDeserializationFailures() {
+        return deserializationFailures;
+    }
+
+    Meter getSoftSizeBreaches() {
+        return softSizeBreaches;
+    }
+
+    Meter getHardSizeBreaches() {
+        return hardSizeBreaches;
+    }
+
+    Meter getExpiredSessions() {
+        return expiredSessions;
+    }
+
+    /**
+     * @param content The content of a written session document, in any format
+     * @param attributes The number of attributes of the session
+     */
+    void recordDocument(Object content, int attributes) {
+        documentSize.update(SessionCodec.size(content));
+        attributeCount.update(attributes);
+    }
+
+    /**
+     * @param dirty Whether or not the session of a completed request changed
+     * @param unchanged Whether or not the session was set, but ended up unchanged
+     */
+    void recordComplete(boolean dirty, boolean unchanged) {
+        if (dirty) {
+            dirtyCompletes.inc();
+        } else {
+            cleanCompletes.inc();
+        }
+        if (unchanged) {
+            unchangedCompletes.inc();
+        }
+    }
+}
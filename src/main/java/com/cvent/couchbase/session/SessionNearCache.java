@@ -0,0 +1,214 @@
+package com.cvent.couchbase.session;
+
+import com.cvent.couchbase.session.CouchbaseSessionManager.SessionJson;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded, in-process cache of recently loaded session documents keyed by their couchbase key.
+ *
+ * Each entry holds the deserialized session state along with the raw document content and the CAS it was read or
+ * written with. Entries are dropped once the document they mirror would have expired in couchbase, based on when its
+ * expiry was last extended. An entry younger than the configured ttl is considered fresh and may be served without
+ * talking to couchbase at all; an older entry has to be revalidated against the CAS of the stored document before it's
+ * used again.
+ *
+ * Reads and writes don't share a lock, request threads only ever contend on the map. Once maxEntries is exceeded
+ * entries are evicted with the CLOCK algorithm, an approximation of least recently used order: reading an entry sets
+ * its referenced bit, and the thread that overfills the cache sweeps the entries, clearing the bits it finds set and
+ * evicting the first entry whose bit is clear. Only one thread sweeps at a time, others just go on, so the cache may
+ * briefly hold a few more than maxEntries entries.
+ */
+final class SessionNearCache {
+
+    private final int maxEntries;
+
+    private final long ttlMillis;
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Held by the thread sweeping the entries
+     */
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+    /**
+     * Where the sweep left off, only used while holding the eviction lock
+     */
+    private Iterator<Map.Entry<String, Entry>> hand;
+
+    /**
+     * Create a new near cache
+     *
+     * @param maxEntries The max number of sessions to hold in memory
+     * @param ttlMillis The number of msec after which an entry has to be revalidated before it can be served again
+     */
+    SessionNearCache(int maxEntries, long ttlMillis) {
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Find the entry for a key.
+     *
+     * @param key The couchbase key of the session
+     * @param now The current time in msec since the epoch
+     * @return The entry or null if the session isn't cached or the document it mirrors has expired since
+     */
+    Entry get(String key, long now) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+
+        if (entry.isExpired(now)) {
+            entries.remove(key, entry);
+            return null;
+        }
+        if (!entry.referenced) {
+            //Only written when it changes, so that reading a hot entry doesn't keep invalidating its cache line
+            entry.referenced = true;
+        }
+        return entry;
+    }
+
+    void put(String key, Entry entry) {
+        entries.put(key, entry);
+        if (entries.size() > maxEntries) {
+            evict(System.currentTimeMillis());
+        }
+    }
+
+    void invalidate(String key) {
+        entries.remove(key);
+    }
+
+    void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Sweep the entries until the cache is back within maxEntries, unless another thread is sweeping already
+     *
+     * @param now The current time in msec since the epoch
+     */
+    private void evict(long now) {
+        if (!evictionLock.tryLock()) {
+            return;
+        }
+
+        try {
+            //Two rounds clear every bit and then evict, unless other threads keep referencing entries
+            int steps = 2 * entries.size();
+            while (entries.size() > maxEntries && steps-- > 0) {
+                if (hand == null || !hand.hasNext()) {
+                    hand = entries.entrySet().iterator();
+                    if (!hand.hasNext()) {
+                        return;
+                    }
+                }
+
+                Map.Entry<String, Entry> candidate = hand.next();
+                Entry entry = candidate.getValue();
+                if (entry.referenced && !entry.isExpired(now)) {
+                    entry.referenced = false;
+                } else {
+                    entries.remove(candidate.getKey(), entry);
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Create an entry for a document that was just read from or written to couchbase.
+     *
+     * @param json The deserialized session state. Must not be modified after it's been handed to the cache.
+     * @param content The raw document content that json was read from or written as, in any format
+     * @param cas The CAS of the stored document
+     * @param expiry The expiry in seconds that was last applied to the stored document
+     * @param now The current time in msec since the epoch
+     * @return The new entry
+     */
+    Entry newEntry(SessionJson json, Object content, long cas, int expiry, long now) {
+        return new Entry(json, content, cas, json.getLastTouched(), now + ttlMillis,
+                json.getLastTouched() + expiry * 1000L);
+    }
+
+    /**
+     * A cached session document. Entries are immutable apart from their referenced bit, revalidating one creates a new
+     * entry.
+     */
+    final class Entry {
+
+        private final SessionJson json;
+
+        private final Object content;
+
+        private final long cas;
+
+        private final long lastTouched;
+
+        private final long freshUntil;
+
+        private final long expiresAt;
+
+        /**
+         * Set when the entry is read, cleared when the eviction sweep passes it
+         */
+        private volatile boolean referenced;
+
+        private Entry(SessionJson json, Object content, long cas, long lastTouched, long freshUntil, long expiresAt) {
+            this.json = json;
+            this.content = content;
+            this.cas = cas;
+            this.lastTouched = lastTouched;
+            this.freshUntil = freshUntil;
+            this.expiresAt = expiresAt;
+        }
+
+        SessionJson getJson() {
+            return json;
+        }
+
+        /**
+         * @return The raw document content
+         */
+        Object getContent() {
+            return content;
+        }
+
+        long getCas() {
+            return cas;
+        }
+
+        /**
+         * @return Time in msec since the epoch that the expiry of the stored document was last extended
+         */
+        long getLastTouched() {
+            return lastTouched;
+        }
+
+        boolean isFresh(long now) {
+            return now < freshUntil;
+        }
+
+        boolean isExpired(long now) {
+            return now >= expiresAt;
+        }
+
+        /**
+         * @param newCas The CAS the stored document has after revalidation
+         * @param touched Time in msec since the epoch that the expiry of the stored document was last extended
+         * @param expiry The expiry in seconds that was last applied to the stored document
+         * @param now The current time in msec since the epoch
+         * @return A copy of this entry that's fresh again
+         */
+        Entry revalidated(long newCas, long touched, int expiry, long now) {
+            return new Entry(json, content, newCas, touched, now + ttlMillis, touched + expiry * 1000L);
+        }
+    }
+}
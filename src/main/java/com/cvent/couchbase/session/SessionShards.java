@@ -0,0 +1,177 @@
+package com.cvent.couchbase.session;
+
+import com.couchbase.client.java.Bucket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The buckets sessions are spread across, possibly on different clusters.
+ *
+ * A session id generated by a ShardedSessionIdManager starts with the tag of the shard the session was created on, and
+ * always maps to that shard. Any other id, such as one issued before sharding was enabled, is mapped with a consistent
+ * hash ring so that adding a shard only moves a share of the sessions.
+ *
+ * While sessions are being moved to a new set of shards, the set they were on can be kept as the previous set, see
+ * setPrevious(). A session that isn't found on its shard is then looked for on the shard the previous set maps it to,
+ * and moved.
+ */
+public final class SessionShards {
+
+    /**
+     * Separates the shard tag from the rest of a session id. Jetty generates ids in base 36, so it never occurs in one.
+     */
+    static final char TAG_SEPARATOR = '_';
+
+    /**
+     * The number of points each shard has on the hash ring, which evens out the share of sessions each one gets
+     */
+    private static final int POINTS_PER_SHARD = 128;
+
+    private final List<Bucket> buckets;
+
+    /**
+     * The points of the hash ring in ascending order, and the shard each of them belongs to
+     */
+    private final long[] points;
+
+    private final int[] pointShards;
+
+    private volatile SessionShards previous;
+
+    /**
+     * Create a new set of shards
+     *
+     * @param buckets The couchbase Bucket api instances of the shards, in a fixed order since the position of a bucket
+     * is its shard tag
+     */
+    public SessionShards(List<Bucket> buckets) {
+        if (buckets.isEmpty()) {
+            throw new IllegalArgumentException("At least one bucket is required");
+        }
+
+        this.buckets = Collections.unmodifiableList(new ArrayList<>(buckets));
+
+        int count = buckets.size() * POINTS_PER_SHARD;
+        long[][] ring = new long[count][];
+        for (int shard = 0; shard < buckets.size(); shard++) {
+            for (int point = 0; point < POINTS_PER_SHARD; point++) {
+                ring[shard * POINTS_PER_SHARD + point] = new long[]{hash("shard-" + shard + "-" + point), shard};
+            }
+        }
+        Arrays.sort(ring, (a, b) -> Long.compare(a[0], b[0]));
+
+        this.points = new long[count];
+        this.pointShards = new int[count];
+        for (int i = 0; i < count; i++) {
+            points[i] = ring[i][0];
+            pointShards[i] = (int) ring[i][1];
+        }
+    }
+
+    /**
+     * Keep the set of shards sessions were on before this one, to find sessions that haven't been moved yet
+     *
+     * @param previous The previous set of shards, or null once all sessions have been moved or have expired
+     */
+    public void setPrevious(SessionShards previous) {
+        this.previous = previous;
+    }
+
+    /**
+     * @return The buckets of the shards
+     */
+    public List<Bucket> getBuckets() {
+        return buckets;
+    }
+
+    /**
+     * @param sessionId The id of a session
+     * @return The shard the session is on
+     */
+    public int getShard(String sessionId) {
+        int tag = getTag(sessionId);
+        return tag >= 0 && tag < buckets.size() ? tag : getRingShard(sessionId);
+    }
+
+    /**
+     * @param sessionId The id of a session
+     * @return The bucket the session is on
+     */
+    Bucket getBucket(String sessionId) {
+        return buckets.get(getShard(sessionId));
+    }
+
+    /**
+     * @param sessionId The id of a session
+     * @return The bucket the session was on before the current set of shards, or null if there is no previous set or
+     * it maps the session to the same bucket
+     */
+    Bucket getPreviousBucket(String sessionId) {
+        SessionShards before = previous;
+        if (before == null) {
+            return null;
+        }
+
+        Bucket bucket = before.getBucket(sessionId);
+        return bucket == getBucket(sessionId) ? null : bucket;
+    }
+
+    /**
+     * Tag a newly generated session id with the shard the hash ring maps it to
+     *
+     * @param sessionId An untagged session id
+     * @return The tagged session id
+     */
+    String tag(String sessionId) {
+        if (getTag(sessionId) >= 0) {
+            return sessionId;
+        }
+        return Integer.toString(getRingShard(sessionId), Character.MAX_RADIX) + TAG_SEPARATOR + sessionId;
+    }
+
+    /**
+     * @param sessionId The id of a session
+     * @return The shard tag of the id, or -1 if it isn't tagged
+     */
+    private static int getTag(String sessionId) {
+        int separator = sessionId.indexOf(TAG_SEPARATOR);
+        if (separator <= 0 || separator > 4) {
+            return -1;
+        }
+
+        try {
+            return Integer.parseInt(sessionId.substring(0, separator), Character.MAX_RADIX);
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    private int getRingShard(String sessionId) {
+        int index = Arrays.binarySearch(points, hash(sessionId));
+        if (index < 0) {
+            //The first point clockwise from the hash
+            index = -index - 1;
+        }
+        return pointShards[index == points.length ? 0 : index];
+    }
+
+    /**
+     * FNV-1a over the chars of a string, finished with the murmur3 mix so that similar ids spread across the ring
+     */
+    static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,23 @@
+package com.cvent.couchbase.session;
+
+import java.util.Map;
+
+/**
+ * Told about sessions that are written while over their size budget, to find out which attributes make them grow.
+ *
+ * @see CouchbaseSessionManager#enableSizeBudget(int, int, OversizedSessionPolicy, SessionSizeListener)
+ */
+@FunctionalInterface
+public interface SessionSizeListener {
+
+    /**
+     * Called on the thread writing the session, before the write is rejected or the session truncated
+     *
+     * @param sessionId The id of the session
+     * @param size The size of the session document, in bytes for binary documents and chars for JSON
+     * @param limit The limit the session is over
+     * @param hardLimit Whether the limit is the hard limit, or the soft one
+     * @param attributeSizes The serialized sizes of the attributes in the session document, largest first
+     */
+    void sizeExceeded(String sessionId, int size, int limit, boolean hardLimit, Map<String, Integer> attributeSizes);
+}
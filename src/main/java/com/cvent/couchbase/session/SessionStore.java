@@ -0,0 +1,808 @@
+package com.cvent.couchbase.session;
+
+import com.couchbase.client.core.CouchbaseException;
+import com.couchbase.client.java.AsyncBucket;
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.ReplicaMode;
+import com.couchbase.client.java.document.Document;
+import com.couchbase.client.java.document.RawJsonDocument;
+import com.couchbase.client.java.document.StringDocument;
+import com.couchbase.client.java.error.DocumentDoesNotExistException;
+import com.couchbase.client.java.error.TranscodingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+import java.util.function.IntSupplier;
+import java.util.function.LongFunction;
+import org.slf4j.LoggerFactory;
+import rx.Observable;
+
+/**
+ * The couchbase side of a session manager: which bucket a session is on, how calls to it are timed out and guarded
+ * by the circuit breaker, and how session documents and the documents that belong to a session are read, touched,
+ * moved between shards and aliased. It works on documents only, turning them into sessions is up to the manager.
+ *
+ * Session documents are read in whichever format they were written in, and their expiry is extended to the expiry
+ * the manager gives, which includes the grace period of the expiry index if there is one.
+ */
+final class SessionStore {
+
+    private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(SessionStore.class);
+
+    /**
+     * Follows the key prefix in the key of the alias a renewal of a session leaves under its old id
+     */
+    private static final String ALIAS_KEY_PREFIX = "renamed::";
+
+    /**
+     * The fields of an alias: the new id of the session and the time in msec since the epoch it was renewed at
+     */
+    private static final String ALIAS_SESSION_ID = "sessionId";
+
+    private static final String ALIAS_RENEWED_AT = "renewedAt";
+
+    /**
+     * Follows the key prefix in the key of the lowest generation of state cookies still accepted for a session
+     */
+    private static final String COOKIE_GENERATION_KEY_PREFIX = "cookiegen::";
+
+    private static final ObjectMapper ALIAS_MAPPER = new ObjectMapper();
+
+    private final String keyPrefix;
+
+    private final Bucket bucket;
+
+    private final SessionShards shards;
+
+    /**
+     * The number of seconds session documents are kept for after they were last used
+     */
+    private final IntSupplier expiry;
+
+    private volatile SessionCodec codec;
+
+    /**
+     * The latency of reads after which they're hedged, per shard
+     */
+    private volatile LatencyTracker[] hedgeLatency;
+
+    private volatile long minHedgeDelayMillis;
+
+    /**
+     * The latency of each kind of call, per shard
+     */
+    private volatile List<Map<StoreOperation, LatencyTracker>> operationLatency;
+
+    private volatile double timeoutMultiplier;
+
+    private volatile long minTimeoutMillis;
+
+    /**
+     * The circuit breaker of each shard
+     */
+    private volatile CircuitBreaker[] circuitBreakers;
+
+    /**
+     * Create a new session store
+     *
+     * @param keyPrefix The key prefix of session documents
+     * @param bucket The bucket sessions are on, or the first shard, whose environment gives the timeouts of calls
+     * @param shards The buckets sessions are spread across, or null if they're all on bucket
+     * @param codec Gives the document types sessions may have been written as
+     * @param expiry Gives the number of seconds session documents are kept for after they were last used
+     */
+    SessionStore(String keyPrefix, Bucket bucket, SessionShards shards, SessionCodec codec, IntSupplier expiry) {
+        this.keyPrefix = keyPrefix;
+        this.bucket = bucket;
+        this.shards = shards;
+        this.codec = codec;
+        this.expiry = expiry;
+    }
+
+    void setCodec(SessionCodec codec) {
+        this.codec = codec;
+    }
+
+    String getKey(String id) {
+        return keyPrefix + id;
+    }
+
+    String getId(String key) {
+        return key.substring(keyPrefix.length());
+    }
+
+    /**
+     * @param key The key of a session document
+     * @return The bucket the session is on
+     */
+    Bucket bucket(String key) {
+        return shards == null ? bucket : shards.getBucket(getId(key));
+    }
+
+    /**
+     * @param key The key of a session document, or of a document that belongs to a session
+     * @return The shard the session is on, 0 if sessions aren't sharded
+     */
+    int getShard(String key) {
+        return shards == null ? 0 : shards.getShard(getId(key));
+    }
+
+    int getShardCount() {
+        return shards == null ? 1 : shards.getBuckets().size();
+    }
+
+    /**
+     * @return The bucket of each shard, in order
+     */
+    List<Bucket> getBuckets() {
+        return shards == null ? Collections.singletonList(bucket) : shards.getBuckets();
+    }
+
+    /**
+     * @param key The key of a session document
+     * @return The bucket the previous set of shards maps the session to if it's no longer there, otherwise null
+     */
+    Bucket getPreviousBucket(String key) {
+        return shards == null ? null : shards.getPreviousBucket(getId(key));
+    }
+
+    /**
+     * @return The number of msec after which calls to couchbase time out at the latest
+     */
+    long getKvTimeout() {
+        return bucket.environment().kvTimeout();
+    }
+
+    /**
+     * Hedge reads with reads from the replicas, see CouchbaseSessionManager.enableHedgedReads()
+     *
+     * @param percentile The percentile of recent read latencies after which reads are hedged, 0 disables hedging
+     * @param minDelayMillis The min number of msec after which reads are hedged
+     */
+    void enableHedgedReads(double percentile, long minDelayMillis) {
+        this.minHedgeDelayMillis = minDelayMillis;
+        if (percentile <= 0) {
+            this.hedgeLatency = null;
+            return;
+        }
+
+        LatencyTracker[] latencies = new LatencyTracker[getShardCount()];
+        for (int shard = 0; shard < latencies.length; shard++) {
+            latencies[shard] = new LatencyTracker(percentile, TimeUnit.MILLISECONDS.toMicros(minDelayMillis));
+        }
+        this.hedgeLatency = latencies;
+    }
+
+    /**
+     * Time calls out after a multiple of their recent latency, see CouchbaseSessionManager.enableAdaptiveTimeouts()
+     *
+     * @param percentile The percentile of recent latencies to base timeouts on, 0 disables adaptive timeouts
+     * @param multiplier The multiple of the percentile after which calls time out
+     * @param minTimeoutMillis The min number of msec after which calls time out
+     */
+    void enableAdaptiveTimeouts(double percentile, double multiplier, long minTimeoutMillis) {
+        this.timeoutMultiplier = multiplier;
+        this.minTimeoutMillis = minTimeoutMillis;
+        if (percentile <= 0) {
+            this.operationLatency = null;
+            return;
+        }
+
+        List<Map<StoreOperation, LatencyTracker>> latencies = new ArrayList<>();
+        for (int shard = 0; shard < getShardCount(); shard++) {
+            Map<StoreOperation, LatencyTracker> shardLatencies = new EnumMap<>(StoreOperation.class);
+            for (StoreOperation operation : StoreOperation.values()) {
+                shardLatencies.put(operation,
+                        new LatencyTracker(percentile, TimeUnit.MILLISECONDS.toMicros(minTimeoutMillis)));
+            }
+            latencies.add(shardLatencies);
+        }
+        this.operationLatency = latencies;
+    }
+
+    /**
+     * Stop calling a shard once too many calls to it fail, see CouchbaseSessionManager.enableCircuitBreaker()
+     *
+     * @param failureRate The share of calls that have to fail for the circuit to open, 0 disables the circuit breaker
+     * @param minCalls The min number of calls within the window before the circuit can open
+     * @param windowMillis The number of msec over which calls are counted
+     * @param openMillis The number of msec the circuit stays open before a call is let through again
+     * @param onClose Called whenever the circuit of a shard closes again
+     */
+    void enableCircuitBreaker(double failureRate, int minCalls, long windowMillis, long openMillis,
+            Runnable onClose) {
+        if (failureRate <= 0) {
+            this.circuitBreakers = null;
+            return;
+        }
+
+        CircuitBreaker[] breakers = new CircuitBreaker[getShardCount()];
+        for (int shard = 0; shard < breakers.length; shard++) {
+            breakers[shard] = new CircuitBreaker(failureRate, minCalls, windowMillis, openMillis, onClose);
+        }
+        this.circuitBreakers = breakers;
+    }
+
+    /**
+     * @param error An error a call to couchbase failed with
+     * @return Whether or not the call failed in couchbase, including timeouts, which the blocking api throws as a
+     * RuntimeException caused by a TimeoutException
+     */
+    static boolean isStoreFailure(Throwable error) {
+        return error instanceof CouchbaseException || CircuitBreaker.isFailure(error);
+    }
+
+    /**
+     * Make a call to couchbase, with an adaptive timeout if enabled and through the circuit breaker for operations it
+     * guards.
+     *
+     * @param key The key of the session the call is made for, which decides the shard whose circuit and latencies
+     * apply
+     * @param operation The kind of operation the call makes
+     * @param call Makes the call given its timeout in usec
+     * @return The result of the call
+     * @throws SessionStoreUnavailableException If the circuit is open
+     */
+    <T> T call(String key, StoreOperation operation, LongFunction<T> call) {
+        int shard = getShard(key);
+        CircuitBreaker breaker = operation.guarded ? getCircuitBreaker(shard) : null;
+        long permit = allowRequest(breaker);
+        if (permit == CircuitBreaker.REJECTED) {
+            throw new SessionStoreUnavailableException("Couchbase session store circuit is open");
+        }
+
+        long start = System.nanoTime();
+        Throwable error = null;
+        try {
+            return call.apply(getTimeoutMicros(shard, operation));
+        } catch (RuntimeException ex) {
+            error = ex;
+            throw ex;
+        } finally {
+            recordCall(shard, operation, breaker, permit, start, error);
+        }
+    }
+
+    /**
+     * Make a call to couchbase on the async bucket api, like call()
+     *
+     * @param key The key of the session the call is made for
+     * @param operation The kind of operation the call makes
+     * @param call Makes the call given its timeout in usec
+     * @return The result of the call, which fails with a SessionStoreUnavailableException if the circuit is open
+     */
+    <T> Observable<T> callAsync(String key, StoreOperation operation, LongFunction<Observable<T>> call) {
+        int shard = getShard(key);
+        CircuitBreaker breaker = operation.guarded ? getCircuitBreaker(shard) : null;
+        long permit = allowRequest(breaker);
+        if (permit == CircuitBreaker.REJECTED) {
+            return Observable.error(new SessionStoreUnavailableException("Couchbase session store circuit is open"));
+        }
+
+        long timeoutMicros = getTimeoutMicros(shard, operation);
+        long start = System.nanoTime();
+        return call.apply(timeoutMicros)
+                .timeout(timeoutMicros, TimeUnit.MICROSECONDS)
+                .doOnCompleted(() -> recordCall(shard, operation, breaker, permit, start, null))
+                .doOnError(error -> recordCall(shard, operation, breaker, permit, start, error));
+    }
+
+    /**
+     * Count a call made outside of call() and callAsync(), by the write queue, towards the failure rate of the circuit
+     * of its shard. Only a probe closes the circuit, which such a call never is.
+     *
+     * @param key The key of the session the call was made for
+     * @param error The error the call failed with, or null if it succeeded
+     */
+    void recordCall(String key, Throwable error) {
+        recordOutcome(getCircuitBreaker(getShard(key)), CircuitBreaker.CLOSED, error);
+    }
+
+    /**
+     * @param shard The shard
+     * @return The circuit breaker of the shard, or null if there is none
+     */
+    private CircuitBreaker getCircuitBreaker(int shard) {
+        CircuitBreaker[] breakers = circuitBreakers;
+        return breakers == null ? null : breakers[shard];
+    }
+
+    /**
+     * @param breaker The circuit breaker guarding a call, or null if there is none
+     * @return The permit to make the call with, CircuitBreaker.REJECTED if it may not be made
+     */
+    private static long allowRequest(CircuitBreaker breaker) {
+        return breaker == null ? CircuitBreaker.CLOSED : breaker.allowRequest(System.currentTimeMillis());
+    }
+
+    /**
+     * @param shard The shard a call was made to
+     * @param operation The kind of operation the call made
+     * @param breaker The circuit breaker guarding the call, or null if there is none
+     * @param permit The permit the call was made with
+     * @param start The time in nsec the call was made at
+     * @param error The error the call failed with, or null if it succeeded
+     */
+    private void recordCall(int shard, StoreOperation operation, CircuitBreaker breaker, long permit, long start,
+            Throwable error) {
+        List<Map<StoreOperation, LatencyTracker>> latencies = operationLatency;
+        if (latencies != null) {
+            latencies.get(shard).get(operation).record(LatencyTracker.elapsedMicros(start));
+        }
+        recordOutcome(breaker, permit, error);
+    }
+
+    /**
+     * @param shard The shard a call is made to
+     * @param operation The kind of operation
+     * @return The number of usec after which a call making the operation times out
+     */
+    private long getTimeoutMicros(int shard, StoreOperation operation) {
+        long maxMicros = TimeUnit.MILLISECONDS.toMicros(getKvTimeout());
+        List<Map<StoreOperation, LatencyTracker>> latencies = operationLatency;
+        if (latencies == null) {
+            return maxMicros;
+        }
+
+        long adaptive = (long) (latencies.get(shard).get(operation).getValue() * timeoutMultiplier);
+        return Math.min(maxMicros, Math.max(TimeUnit.MILLISECONDS.toMicros(minTimeoutMillis), adaptive));
+    }
+
+    /**
+     * @param breaker The circuit breaker, or null if there is none
+     * @param permit The permit the call was made with, CircuitBreaker.CLOSED for calls the breaker doesn't guard
+     * @param error The error the call failed with, or null if it succeeded
+     */
+    private static void recordOutcome(CircuitBreaker breaker, long permit, Throwable error) {
+        if (breaker == null) {
+            return;
+        }
+
+        if (error != null && CircuitBreaker.isFailure(error)) {
+            breaker.recordFailure(permit, System.currentTimeMillis());
+        } else {
+            breaker.recordSuccess(permit, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * @param key The key of a session document
+     * @return Whether or not the circuit of the shard the session is on is open
+     */
+    boolean isCircuitOpen(String key) {
+        CircuitBreaker breaker = getCircuitBreaker(getShard(key));
+        return breaker != null && breaker.isOpen();
+    }
+
+    /**
+     * Extend the expiry of a session document, only if it hasn't changed since it was read, recording when it was
+     * extended in the document.
+     *
+     * @param key The key of the session document
+     * @param cas The CAS the document was read with
+     * @param now The current time in msec since the epoch
+     * @return The new CAS of the document
+     */
+    Observable<Long> touch(String key, long cas, long now) {
+        AsyncBucket async = bucket(key).async();
+        return callAsync(key, StoreOperation.WRITE, timeout -> async.mutateIn(key)
+                .withCas(cas)
+                .withExpiry(expiry.getAsInt())
+                .upsert(CouchbaseSessionManager.LAST_TOUCHED, now, false)
+                .execute())
+                .map(fragment -> fragment.cas());
+    }
+
+    /**
+     * Look up the CAS of a session document without reading it
+     *
+     * @param key The key of the session document
+     * @return The CAS of the document
+     */
+    Observable<Long> readCas(String key) {
+        AsyncBucket async = bucket(key).async();
+        return callAsync(key, StoreOperation.READ, timeout -> async.lookupIn(key)
+                .exists(CouchbaseSessionManager.LAST_TOUCHED)
+                .execute())
+                .map(fragment -> fragment.cas());
+    }
+
+    /**
+     * Read a session document from its shard, hedged with reads from the replicas if enabled.
+     *
+     * @param key The key of the session document
+     * @param touch Whether or not to extend the expiry of the document on the active node
+     * @return The document, or nothing if it doesn't exist
+     */
+    Observable<Read> read(String key, boolean touch) {
+        return hedgeLatency != null ? readHedged(key, touch) : readActive(key, touch);
+    }
+
+    /**
+     * Read a session document from the active node.
+     *
+     * @param key The key of the session document
+     * @param touch Whether or not to extend the expiry of the document
+     * @return The document, or nothing if it doesn't exist
+     */
+    Observable<Read> readActive(String key, boolean touch) {
+        AsyncBucket async = bucket(key).async();
+        return callAsync(key, StoreOperation.READ, timeout -> readAsync(type -> touch
+                ? async.getAndTouch(key, expiry.getAsInt(), type)
+                : async.get(key, type)))
+                .map(doc -> new Read(doc, false));
+    }
+
+    /**
+     * Read a session document from the first replica.
+     *
+     * @param key The key of the session document
+     * @return The document, or nothing if it doesn't exist
+     */
+    Observable<Read> readReplica(String key) {
+        AsyncBucket async = bucket(key).async();
+        return callAsync(key, StoreOperation.REPLICA_READ,
+                timeout -> readAsync(type -> async.getFromReplica(key, ReplicaMode.FIRST, type)))
+                .map(doc -> new Read(doc, true));
+    }
+
+    /**
+     * Read a session document with getAndTouch, in whichever format it was stored in.
+     *
+     * @param key The key of the session document
+     * @return The document or null if it doesn't exist
+     */
+    Document<?> getAndTouchDocument(String key) {
+        SessionCodec sessionCodec = codec;
+        try {
+            return call(key, StoreOperation.READ, timeout -> bucket(key).getAndTouch(key, expiry.getAsInt(),
+                    sessionCodec.getDocumentType(), timeout, TimeUnit.MICROSECONDS));
+        } catch (TranscodingException ex) {
+            //The session was written in another format
+            return call(key, StoreOperation.READ, timeout -> bucket(key).getAndTouch(key, expiry.getAsInt(),
+                    sessionCodec.getAlternateDocumentType(), timeout, TimeUnit.MICROSECONDS));
+        }
+    }
+
+    /**
+     * Read a session document with a plain get, in whichever format it was stored in.
+     *
+     * @param key The key of the session document
+     * @return The document or null if it doesn't exist
+     */
+    Document<?> getDocument(String key) {
+        SessionCodec sessionCodec = codec;
+        Bucket from = bucket(key);
+        try {
+            return call(key, StoreOperation.READ, timeout -> from.get(key, sessionCodec.getDocumentType(),
+                    timeout, TimeUnit.MICROSECONDS));
+        } catch (TranscodingException ex) {
+            //The session was written in another format
+            return call(key, StoreOperation.READ, timeout -> from.get(key, sessionCodec.getAlternateDocumentType(),
+                    timeout, TimeUnit.MICROSECONDS));
+        }
+    }
+
+    /**
+     * Read a session document with a plain get on the async bucket api, in whichever format it was stored in. The
+     * call isn't guarded by the circuit breaker, the caller times it out.
+     *
+     * @param key The key of the session document
+     * @return The document, or nothing if it doesn't exist
+     */
+    Observable<Document<?>> getDocumentAsync(String key) {
+        AsyncBucket async = bucket(key).async();
+        return readAsync(type -> async.get(key, type));
+    }
+
+    /**
+     * Move a session document that isn't on its shard yet from the shard the previous set of shards maps it to. It's
+     * inserted into its shard and removed from the previous one in the background.
+     *
+     * @param key The key of the session document
+     * @return The document as it was inserted into its shard, or nothing if there is no previous set of shards or the
+     * document isn't there either. Fails with a DocumentAlreadyExistsException if a concurrent request moved it first.
+     */
+    Observable<Read> migrate(String key) {
+        Bucket previous = getPreviousBucket(key);
+        if (previous == null) {
+            return Observable.empty();
+        }
+
+        AsyncBucket from = previous.async();
+        AsyncBucket to = bucket(key).async();
+        return callAsync(key, StoreOperation.READ, timeout -> readAsync(type -> from.get(key, type)))
+                .flatMap(doc -> callAsync(key, StoreOperation.WRITE, timeout -> to.insert(
+                        SessionCodec.createDocument(key, expiry.getAsInt(), doc.content(), 0)))
+                        .map(moved -> {
+                            if (LOG.isDebugEnabled()) {
+                                LOG.debug("Moved session {} from its previous shard", key);
+                            }
+                            removeInBackground(previous, key);
+                            return new Read(SessionCodec.createDocument(key, 0, doc.content(), moved.cas()), false);
+                        }));
+    }
+
+    /**
+     * @param key The key of a session document
+     * @return The key of the alias a renewal of the session leaves under its old id
+     */
+    private String getAliasKey(String key) {
+        return keyPrefix + ALIAS_KEY_PREFIX + getId(key);
+    }
+
+    /**
+     * Leave an alias under the old id of a renewed session that leads to its new id for the grace period
+     *
+     * @param oldKey The key of the session document under the old id
+     * @param newClusterId The new id of the session
+     * @param graceSeconds The number of seconds the alias is kept for
+     * @return The alias as it was written
+     */
+    Observable<Document<?>> writeAlias(String oldKey, String newClusterId, int graceSeconds) {
+        RawJsonDocument alias = RawJsonDocument.create(getAliasKey(oldKey), graceSeconds,
+                ALIAS_MAPPER.createObjectNode()
+                        .put(ALIAS_SESSION_ID, newClusterId)
+                        .put(ALIAS_RENEWED_AT, System.currentTimeMillis())
+                        .toString());
+        AsyncBucket async = bucket(oldKey).async();
+        return callAsync(oldKey, StoreOperation.WRITE, timeout -> widen(async.upsert(alias)));
+    }
+
+    /**
+     * Follow the alias a renewal left under the old id of a session, for a request that started before the renewal.
+     *
+     * @param key The key of the session document under the old id
+     * @param requestStart The time in msec since the epoch the request the session is read for started at
+     * @return The key of the renewed session, or nothing if there is no alias or the request started after the
+     * renewal
+     */
+    Observable<String> followAlias(String key, long requestStart) {
+        AsyncBucket async = bucket(key).async();
+        return callAsync(key, StoreOperation.READ, timeout -> async.get(getAliasKey(key), RawJsonDocument.class))
+                .flatMap(alias -> {
+                    String renamedKey;
+                    try {
+                        renamedKey = resolveAlias(key, alias.content(), requestStart);
+                    } catch (IOException ex) {
+                        return Observable.error(new RuntimeException("Failed to deserialize alias of " + key, ex));
+                    }
+                    return renamedKey == null ? Observable.empty() : Observable.just(renamedKey);
+                });
+    }
+
+    /**
+     * @param key The key of the session document under the old id
+     * @param content The content of the alias
+     * @param requestStart The time in msec since the epoch the request the session is read for started at
+     * @return The key of the renewed session, or null if the request started after the renewal and may not follow the
+     * alias
+     * @throws IOException
+     */
+    private String resolveAlias(String key, String content, long requestStart) throws IOException {
+        JsonNode alias = ALIAS_MAPPER.readTree(content);
+        JsonNode renewedAt = alias.get(ALIAS_RENEWED_AT);
+        if (renewedAt == null || requestStart >= renewedAt.asLong()) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Not following alias of renewed session {} for a request that started after the renewal",
+                        key);
+            }
+            return null;
+        }
+
+        String renamedKey = getKey(alias.get(ALIAS_SESSION_ID).asText());
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Following alias of renewed session {} to {}", key, renamedKey);
+        }
+        return renamedKey;
+    }
+
+    /**
+     * @param key The key of a session document
+     * @return The key of the lowest generation of state cookies still accepted for the session
+     */
+    private String getCookieGenerationKey(String key) {
+        return keyPrefix + COOKIE_GENERATION_KEY_PREFIX + getId(key);
+    }
+
+    /**
+     * @param key The key of a session document
+     * @return The lowest generation of state cookies still accepted for the session, 0 if none was recorded
+     */
+    Observable<Long> readCookieGeneration(String key) {
+        String generationKey = getCookieGenerationKey(key);
+        AsyncBucket async = bucket(key).async();
+        return callAsync(key, StoreOperation.READ, timeout -> async.get(generationKey, StringDocument.class))
+                .map(doc -> Long.parseLong(doc.content()))
+                .switchIfEmpty(Observable.just(0L));
+    }
+
+    /**
+     * Record the lowest generation of state cookies still accepted for a session, for as long as an earlier cookie
+     * could still be valid
+     *
+     * @param key The key of the session document
+     * @param generation The generation, or SessionCookieSealer.REVOKED to accept none
+     * @param maxInactiveInterval The max inactive interval of the session in seconds
+     */
+    void recordCookieGeneration(String key, long generation, int maxInactiveInterval) {
+        StringDocument doc = StringDocument.create(getCookieGenerationKey(key), Math.max(maxInactiveInterval, 0),
+                Long.toString(generation));
+        call(key, StoreOperation.WRITE, timeout -> bucket(key).upsert(doc, timeout, TimeUnit.MICROSECONDS));
+    }
+
+    /**
+     * Remove a document in the background
+     *
+     * @param from The bucket to remove it from
+     * @param key The key of the document
+     */
+    void removeInBackground(Bucket from, String key) {
+        from.async()
+                .remove(key, RawJsonDocument.class)
+                .timeout(getKvTimeout(), TimeUnit.MILLISECONDS)
+                .subscribe(doc -> { }, error -> {
+                    if (!(error instanceof DocumentDoesNotExistException)) {
+                        LOG.warn("Failed to remove session {} in the background", key, error);
+                    }
+                });
+    }
+
+    /**
+     * Remove a session document, or a document that belongs to it, in the background
+     *
+     * @param sessionKey The key of the session document, whose shard the document is on
+     * @param key The key of the document
+     */
+    void removeInBackground(String sessionKey, String key) {
+        removeInBackground(bucket(sessionKey), key);
+    }
+
+    /**
+     * Read a session document from the active node and, if it hasn't answered within the hedge delay, from all
+     * replicas as well.
+     *
+     * @param key The key of the session document
+     * @param touch Whether or not to extend the expiry of the document on the active node
+     * @return The first answer, which only comes from a replica if it holds the document, or nothing if the document
+     * doesn't exist
+     */
+    private Observable<Read> readHedged(String key, boolean touch) {
+        int shard = getShard(key);
+        CircuitBreaker breaker = getCircuitBreaker(shard);
+        long permit = allowRequest(breaker);
+        if (permit == CircuitBreaker.REJECTED) {
+            return Observable.error(new SessionStoreUnavailableException("Couchbase session store circuit is open"));
+        }
+
+        AsyncBucket async = bucket(key).async();
+        LatencyTracker tracker = hedgeLatency[shard];
+        long delayMicros = Math.max(TimeUnit.MILLISECONDS.toMicros(minHedgeDelayMillis), tracker.getValue());
+        long kvTimeoutMillis = getKvTimeout();
+        long start = System.nanoTime();
+
+        //Cached so that the replicas are read once, whether the hedge or a failed active read gets to them first
+        Observable<Read> replicas = readReplicasAsync(async, key, delayMicros).cache();
+        //Cached so that the active read runs to the end, and its latency is recorded, even when the hedge wins
+        Observable<Document<?>> activeRead = readAsync(type -> touch
+                ? async.getAndTouch(key, expiry.getAsInt(), type)
+                : async.get(key, type))
+                .timeout(kvTimeoutMillis, TimeUnit.MILLISECONDS)
+                .doOnCompleted(() -> {
+                    tracker.record(LatencyTracker.elapsedMicros(start));
+                    recordOutcome(breaker, permit, null);
+                })
+                .doOnError(error -> {
+                    if (error instanceof TimeoutException) {
+                        //The active node took at least this long
+                        tracker.record(LatencyTracker.elapsedMicros(start));
+                    }
+                    recordOutcome(breaker, permit, error);
+                })
+                .cache();
+        Observable<Read> active = activeRead
+                .map(doc -> new Read(doc, false))
+                .switchIfEmpty(Observable.just(new Read(null, false)))
+                .onErrorResumeNext(error -> replicas.switchIfEmpty(Observable.error(error)));
+        Observable<Read> hedge = Observable.timer(delayMicros, TimeUnit.MICROSECONDS)
+                .flatMap(tick -> replicas);
+
+        return Observable.merge(active, hedge)
+                .take(1)
+                .timeout(kvTimeoutMillis, TimeUnit.MILLISECONDS)
+                .filter(read -> read.doc != null);
+    }
+
+    /**
+     * Read a session document from all replicas, and the active node, collecting answers until none has come in for
+     * windowMicros after the previous one. Nodes that fail to answer are ignored.
+     *
+     * @param async The async bucket api
+     * @param key The key of the session document
+     * @param windowMicros The number of usec to wait for more answers after each answer
+     * @return The answer with the highest CAS, or nothing if no node holds the document
+     */
+    private Observable<Read> readReplicasAsync(AsyncBucket async, String key, long windowMicros) {
+        return readAsync(type -> async.getFromReplica(key, ReplicaMode.ALL, type))
+                .onErrorResumeNext(error -> Observable.empty())
+                .timeout(Observable::never,
+                        doc -> Observable.timer(windowMicros, TimeUnit.MICROSECONDS),
+                        Observable.empty())
+                .toList()
+                .filter(docs -> !docs.isEmpty())
+                .map(docs -> new Read(Collections.max(docs, Comparator.comparingLong(Document::cas)), true));
+    }
+
+    /**
+     * Read a session document asynchronously, in whichever format it was stored in.
+     *
+     * @param read Reads the document as the given type
+     * @return The document, or nothing if it doesn't exist
+     */
+    private Observable<Document<?>> readAsync(
+            Function<Class<? extends Document<?>>, Observable<? extends Document<?>>> read) {
+        SessionCodec sessionCodec = codec;
+        Observable<Document<?>> alternate = Observable.defer(() -> widen(
+                read.apply(sessionCodec.getAlternateDocumentType())));
+        return widen(read.apply(sessionCodec.getDocumentType()))
+                .onErrorResumeNext(error -> error instanceof TranscodingException
+                        //The session was written in another format
+                        ? alternate
+                        : Observable.error(error));
+    }
+
+    static Observable<Document<?>> widen(Observable<? extends Document<?>> docs) {
+        return docs.map(doc -> (Document<?>) doc);
+    }
+
+    /**
+     * The kinds of calls made to couchbase, whose latencies are tracked separately
+     */
+    enum StoreOperation {
+
+        READ(true),
+        WRITE(true),
+        REPLICA_READ(false);
+
+        /**
+         * Whether or not calls are guarded by the circuit breaker
+         */
+        private final boolean guarded;
+
+        StoreOperation(boolean guarded) {
+            this.guarded = guarded;
+        }
+    }
+
+    /**
+     * A session document and where it was read from
+     */
+    static final class Read {
+
+        private final Document<?> doc;
+
+        private final boolean fromReplica;
+
+        private Read(Document<?> doc, boolean fromReplica) {
+            this.doc = doc;
+            this.fromReplica = fromReplica;
+        }
+
+        Document<?> getDoc() {
+            return doc;
+        }
+
+        boolean isFromReplica() {
+            return fromReplica;
+        }
+    }
+}
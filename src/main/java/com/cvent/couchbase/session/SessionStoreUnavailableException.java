@@ -0,0 +1,17 @@
+package com.cvent.couchbase.session;
+
+import com.couchbase.client.core.CouchbaseException;
+
+/**
+ * Thrown instead of calling couchbase while the circuit breaker of the session manager is open.
+ *
+ * @see CouchbaseSessionManager#enableCircuitBreaker(double, int, long, long)
+ */
+public class SessionStoreUnavailableException extends CouchbaseException {
+
+    private static final long serialVersionUID = 1L;
+
+    public SessionStoreUnavailableException(String message) {
+        super(message);
+    }
+}
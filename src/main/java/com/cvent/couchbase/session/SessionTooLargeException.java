@@ -0,0 +1,15 @@
+package com.cvent.couchbase.session;
+
+/**
+ * Thrown instead of writing a session that is over its hard size limit, if writes like that are rejected.
+ *
+ * @see CouchbaseSessionManager#enableSizeBudget(int, int, OversizedSessionPolicy, SessionSizeListener)
+ */
+public class SessionTooLargeException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public SessionTooLargeException(String message) {
+        super(message);
+    }
+}
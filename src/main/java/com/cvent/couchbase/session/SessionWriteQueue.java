@@ -0,0 +1,620 @@
+package com.cvent.couchbase.session;
+
+import com.couchbase.client.java.AsyncBucket;
+import com.couchbase.client.java.document.Document;
+import com.cvent.couchbase.session.CouchbaseSessionManager.SessionJson;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+import org.slf4j.LoggerFactory;
+import rx.Observable;
+
+/**
+ * A bounded write behind queue for session documents. Writes are handed off by the request thread and sent to
+ * couchbase by a single drainer thread using the async bucket api, so the request thread never waits on couchbase.
+ *
+ * Writes of the same session are always applied in the order they were submitted: a write is only sent once the
+ * previous write of that session has completed. A write that was made to a session whose state was read from a still
+ * pending write is sent with the CAS that pending write results in, so a node doesn't conflict with itself.
+ *
+ * Optionally the drainer collects writes into batches, waiting up to a short window for a batch to fill up, and sends
+ * each batch as one bulk async operation. Within a batch, a write of a session that was based on an earlier write in
+ * the same batch replaces it, so only the latest state of each session is sent. The replaced write completes with the
+ * outcome of the write that replaced it.
+ *
+ * The writes the drainer has sent that haven't completed yet are bounded by the capacity of the queue as well. While
+ * couchbase is slow the drainer waits for writes to complete, so the queue fills up and the overflow policy applies,
+ * rather than sending an unbounded number of writes.
+ */
+final class SessionWriteQueue {
+
+    private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(SessionWriteQueue.class);
+
+    private static final CompletableFuture<Long> DONE = CompletableFuture.completedFuture(0L);
+
+    private final Function<String, AsyncBucket> buckets;
+
+    private final OverflowPolicy policy;
+
+    private final long timeoutMillis;
+
+    private final Listener listener;
+
+    private final long batchWindowNanos;
+
+    private final int maxBatchSize;
+
+    private final BlockingQueue<PendingWrite> queue;
+
+    /**
+     * Bounds the writes taken by the drainer that haven't completed yet
+     */
+    private final Semaphore inFlight;
+
+    /**
+     * The most recently submitted write of each session that hasn't completed yet
+     */
+    private final ConcurrentMap<String, PendingWrite> latest = new ConcurrentHashMap<>();
+
+    private final Set<PendingWrite> outstanding = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Guards running so that nothing is queued after the drainer has been stopped
+     */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private boolean running;
+
+    private Thread drainer;
+
+    /**
+     * Create a new write behind queue
+     *
+     * @param buckets The async couchbase api to write a session document with, by its key
+     * @param capacity The max number of writes waiting to be sent
+     * @param policy What to do with a write when the queue is full
+     * @param timeoutMillis The max number of msec to wait for a write to complete
+     * @param batchWindowMillis The max number of msec to wait for a batch to fill up
+     * @param maxBatchSize The max number of writes to send at once, 1 disables batching
+     * @param listener Notified when a write completes
+     */
+    SessionWriteQueue(Function<String, AsyncBucket> buckets, int capacity, OverflowPolicy policy, long timeoutMillis,
+            long batchWindowMillis, int maxBatchSize, Listener listener) {
+        this.buckets = buckets;
+        this.policy = policy;
+        this.timeoutMillis = timeoutMillis;
+        this.batchWindowNanos = TimeUnit.MILLISECONDS.toNanos(batchWindowMillis);
+        //A batch waits for all of its writes to be let in flight before any of them is sent
+        this.maxBatchSize = Math.max(1, Math.min(maxBatchSize, capacity));
+        this.listener = listener;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.inFlight = new Semaphore(capacity);
+    }
+
+    void start() {
+        lock.writeLock().lock();
+        try {
+            if (running) {
+                return;
+            }
+
+            running = true;
+            drainer = new Thread(this::drain, "couchbase-session-write-behind");
+            drainer.setDaemon(true);
+            drainer.start();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Stop accepting writes into the queue and flush everything that's pending. Writes submitted after this are sent
+     * synchronously.
+     *
+     * @param flushTimeoutMillis The max number of msec to wait for pending writes to complete
+     * @throws InterruptedException
+     */
+    void stop(long flushTimeoutMillis) throws InterruptedException {
+        Thread thread;
+        lock.writeLock().lock();
+        try {
+            running = false;
+            thread = drainer;
+            drainer = null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        if (thread != null) {
+            thread.join(flushTimeoutMillis);
+        }
+
+        List<PendingWrite> remaining = new ArrayList<>();
+        queue.drainTo(remaining);
+        if (!remaining.isEmpty()) {
+            sendBatch(remaining);
+        }
+
+        CompletableFuture<?>[] results = outstanding.stream()
+                .map(PendingWrite::getResult)
+                .toArray(CompletableFuture[]::new);
+        try {
+            CompletableFuture.allOf(results).get(flushTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException ex) {
+            //Already reported for each failed write
+        } catch (TimeoutException ex) {
+            LOG.warn("Timed out flushing {} pending session writes", outstanding.size());
+        }
+    }
+
+    /**
+     * @param key The key of the session document
+     * @return The most recently submitted write of the session that hasn't completed yet, or null
+     */
+    PendingWrite getPending(String key) {
+        return latest.get(key);
+    }
+
+    /**
+     * Wait for all submitted writes of a session to complete, successfully or not.
+     *
+     * @param key The key of the session document
+     */
+    void await(String key) {
+        PendingWrite write = latest.get(key);
+        if (write == null) {
+            return;
+        }
+
+        try {
+            write.getResult().get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException ex) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Pending write of " + key + " did not complete", ex);
+            }
+        }
+    }
+
+    /**
+     * Submit a write and wait for it to complete. The write is still batched with writes from other threads.
+     *
+     * @param write The write
+     */
+    void submitAndWait(PendingWrite write) {
+        write.sync = true;
+        submit(write);
+        awaitResult(write);
+    }
+
+    /**
+     * Submit a write. Returns as soon as the write is queued, unless the queue is full and the overflow policy says
+     * otherwise or the queue isn't running, in which case the write is made synchronously.
+     *
+     * @param write The write
+     */
+    void submit(PendingWrite write) {
+        write.predecessor = latest.put(write.getKey(), write);
+        outstanding.add(write);
+
+        lock.readLock().lock();
+        try {
+            if (!running) {
+                sendSync(write);
+                return;
+            }
+
+            switch (policy) {
+                case BLOCK:
+                    try {
+                        queue.put(write);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        sendSync(write);
+                    }
+                    break;
+                case DROP_OLDEST:
+                    while (!queue.offer(write)) {
+                        PendingWrite oldest = queue.poll();
+                        if (oldest != null) {
+                            drop(oldest);
+                        }
+                    }
+                    break;
+                default:
+                    if (!queue.offer(write)) {
+                        sendSync(write);
+                    }
+                    break;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void drain() {
+        List<PendingWrite> batch = new ArrayList<>(maxBatchSize);
+        while (true) {
+            try {
+                PendingWrite write = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (write == null) {
+                    if (!isRunning()) {
+                        return;
+                    }
+                    continue;
+                }
+
+                batch.add(write);
+                fillBatch(batch);
+                acquire(batch);
+                sendBatch(batch);
+            } catch (InterruptedException ex) {
+                if (!batch.isEmpty()) {
+                    sendBatch(batch);
+                }
+                return;
+            } catch (RuntimeException ex) {
+                LOG.error("Unexpected failure sending session writes", ex);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Wait until the writes of a batch can be in flight, which they can't while too many earlier writes haven't
+     * completed yet
+     *
+     * @param batch The batch
+     * @throws InterruptedException
+     */
+    private void acquire(List<PendingWrite> batch) throws InterruptedException {
+        for (PendingWrite write : batch) {
+            inFlight.acquire();
+            write.holdsPermit = true;
+        }
+    }
+
+    /**
+     * Add writes to a batch until it's full or the batch window has passed since its first write was taken.
+     *
+     * @param batch The batch
+     * @throws InterruptedException
+     */
+    private void fillBatch(List<PendingWrite> batch) throws InterruptedException {
+        long deadline = System.nanoTime() + batchWindowNanos;
+        while (batch.size() < maxBatchSize) {
+            queue.drainTo(batch, maxBatchSize - batch.size());
+            long remaining = deadline - System.nanoTime();
+            if (batch.size() >= maxBatchSize || remaining <= 0) {
+                return;
+            }
+
+            PendingWrite write = queue.poll(remaining, TimeUnit.NANOSECONDS);
+            if (write == null) {
+                return;
+            }
+            batch.add(write);
+        }
+    }
+
+    /**
+     * Coalesce a batch of writes and send all of them that aren't waiting on an earlier write of the same session as
+     * one bulk operation. The others are sent as soon as the writes they're waiting on have completed.
+     *
+     * @param batch The batch, in the order the writes were submitted
+     */
+    private void sendBatch(List<PendingWrite> batch) {
+        List<PendingWrite> ready = new ArrayList<>(batch.size());
+        List<Long> readyCas = new ArrayList<>(batch.size());
+        for (PendingWrite write : coalesce(batch)) {
+            CompletableFuture<Long> cas = afterPredecessor(write);
+            if (cas.isDone() && !cas.isCompletedExceptionally()) {
+                ready.add(write);
+                readyCas.add(cas.join());
+            } else {
+                send(write);
+            }
+        }
+
+        if (ready.isEmpty()) {
+            return;
+        }
+
+        List<Integer> indexes = new ArrayList<>(ready.size());
+        for (int i = 0; i < ready.size(); i++) {
+            indexes.add(i);
+        }
+
+        Observable.from(indexes)
+                .flatMap(i -> upsert(ready.get(i), readyCas.get(i)))
+                .subscribe(
+                        ignored -> {
+                        },
+                        error -> LOG.error("Unexpected failure sending session writes", error));
+    }
+
+    /**
+     * Replace every write in a batch that a later write of the same session in the batch was based on by that later
+     * write.
+     *
+     * @param batch The batch, in the order the writes were submitted
+     * @return The writes left to send, in the order they were submitted
+     */
+    private List<PendingWrite> coalesce(List<PendingWrite> batch) {
+        if (batch.size() == 1) {
+            return batch;
+        }
+
+        Map<String, PendingWrite> lastOfSession = new HashMap<>();
+        List<PendingWrite> writes = new ArrayList<>(batch.size());
+        for (PendingWrite write : batch) {
+            PendingWrite previous = lastOfSession.put(write.getKey(), write);
+            if (previous != null && write.base == previous) {
+                write.replace(previous);
+                writes.remove(previous);
+            }
+            writes.add(write);
+        }
+        return writes;
+    }
+
+    private boolean isRunning() {
+        lock.readLock().lock();
+        try {
+            return running;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Send a write as soon as the previous write of the same session has completed.
+     *
+     * @param write The write
+     */
+    private void send(PendingWrite write) {
+        afterPredecessor(write).whenComplete((cas, ex) -> {
+            if (ex != null) {
+                finish(write, 0, unwrap(ex));
+                return;
+            }
+
+            upsert(write, cas).subscribe();
+        });
+    }
+
+    /**
+     * @param write The write
+     * @param cas The CAS to make the write with
+     * @return Completes when the write has completed and has been reported, successfully or not
+     */
+    private Observable<? extends Document<?>> upsert(PendingWrite write, long cas) {
+        Document<?> doc = SessionCodec.createDocument(write.getKey(), write.getExpiry(), write.getContent(), cas);
+        return buckets.apply(write.getKey()).upsert(doc)
+                .timeout(timeoutMillis, TimeUnit.MILLISECONDS)
+                .doOnNext(stored -> finish(write, stored.cas(), null))
+                .onErrorResumeNext(error -> {
+                    finish(write, 0, error);
+                    return Observable.empty();
+                });
+    }
+
+    /**
+     * Send a write and wait for it to complete.
+     *
+     * @param write The write
+     */
+    private void sendSync(PendingWrite write) {
+        write.sync = true;
+        send(write);
+        awaitResult(write);
+    }
+
+    private void awaitResult(PendingWrite write) {
+        try {
+            write.getResult().join();
+        } catch (CompletionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException("Failed to persist session " + write.getKey(), cause);
+        }
+    }
+
+    /**
+     * Drop a write without sending it. It still completes in order, with the CAS the document had before it, so that
+     * any later write that was based on it can go ahead.
+     *
+     * @param write The write
+     */
+    private void drop(PendingWrite write) {
+        LOG.warn("Write behind queue is full, dropping write of {}", write.getKey());
+
+        afterPredecessor(write).whenComplete((cas, ex) -> {
+            latest.remove(write.getKey(), write);
+            outstanding.remove(write);
+            listener.failed(write, new RejectedExecutionException("Dropped write of " + write.getKey()));
+            if (ex != null) {
+                write.getResult().completeExceptionally(unwrap(ex));
+            } else {
+                write.getResult().complete(cas);
+            }
+        });
+    }
+
+    /**
+     * @param write The write
+     * @return The CAS the write has to be made with, completing once the previous write of the same session has
+     */
+    private CompletableFuture<Long> afterPredecessor(PendingWrite write) {
+        CompletableFuture<Long> previous = write.predecessor == null ? DONE : write.predecessor.getResult();
+        return previous.handle((cas, ex) -> null).thenCompose(ignored -> write.getExpectedCas());
+    }
+
+    private void finish(PendingWrite write, long cas, Throwable error) {
+        for (PendingWrite replaced : write.replaced) {
+            release(replaced);
+            latest.remove(replaced.getKey(), replaced);
+            outstanding.remove(replaced);
+            if (error == null) {
+                replaced.getResult().complete(cas);
+            } else {
+                replaced.getResult().completeExceptionally(error);
+            }
+        }
+
+        release(write);
+        latest.remove(write.getKey(), write);
+        outstanding.remove(write);
+
+        if (error == null) {
+            listener.written(write, cas);
+            write.getResult().complete(cas);
+        } else {
+            if (!write.sync) {
+                LOG.error("Problem persisting changed session data key=" + write.getKey(), error);
+            }
+            listener.failed(write, error);
+            write.getResult().completeExceptionally(error);
+        }
+    }
+
+    private void release(PendingWrite write) {
+        if (write.holdsPermit) {
+            write.holdsPermit = false;
+            inFlight.release();
+        }
+    }
+
+    private static Throwable unwrap(Throwable ex) {
+        return ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+    }
+
+    /**
+     * Notified when a submitted write completes
+     */
+    interface Listener {
+
+        void written(PendingWrite write, long cas);
+
+        void failed(PendingWrite write, Throwable error);
+    }
+
+    /**
+     * A session write that has been submitted to the queue
+     */
+    static final class PendingWrite {
+
+        private final String key;
+
+        private final Object content;
+
+        private final int expiry;
+
+        private long cas;
+
+        private PendingWrite base;
+
+        private final SessionJson json;
+
+        private final CompletableFuture<Long> result = new CompletableFuture<>();
+
+        /**
+         * Earlier writes of the same session that this write replaced before being sent
+         */
+        private final List<PendingWrite> replaced = new ArrayList<>(0);
+
+        /**
+         * The previous write of the same session, if it was still pending when this one was submitted
+         */
+        private PendingWrite predecessor;
+
+        /**
+         * Whether or not the request thread is waiting for this write, and will report any failure itself
+         */
+        private volatile boolean sync;
+
+        /**
+         * Whether or not this write was taken by the drainer and counts towards the writes in flight
+         */
+        private volatile boolean holdsPermit;
+
+        /**
+         * Create a new write
+         *
+         * @param key The key of the session document
+         * @param content The content to write, in any format
+         * @param expiry The expiry in seconds of the document
+         * @param cas The CAS the session was read with, ignored if base is given
+         * @param base The pending write the session was read from, or null if it was read from couchbase
+         * @param json The session state that content was serialized from
+         */
+        PendingWrite(String key, Object content, int expiry, long cas, PendingWrite base, SessionJson json) {
+            this.key = key;
+            this.content = content;
+            this.expiry = expiry;
+            this.cas = cas;
+            this.base = base;
+            this.json = json;
+        }
+
+        String getKey() {
+            return key;
+        }
+
+        Object getContent() {
+            return content;
+        }
+
+        int getExpiry() {
+            return expiry;
+        }
+
+        SessionJson getJson() {
+            return json;
+        }
+
+        /**
+         * @return Completes with the CAS of the document after this write
+         */
+        CompletableFuture<Long> getResult() {
+            return result;
+        }
+
+        /**
+         * Take the place of an earlier write that this write was based on, so that it doesn't have to be sent
+         *
+         * @param previous The earlier write
+         */
+        private void replace(PendingWrite previous) {
+            cas = previous.cas;
+            base = previous.base;
+            predecessor = previous.predecessor;
+            replaced.addAll(previous.replaced);
+            replaced.add(previous);
+        }
+
+        private CompletableFuture<Long> getExpectedCas() {
+            return base == null ? CompletableFuture.completedFuture(cas) : base.getResult();
+        }
+    }
+}
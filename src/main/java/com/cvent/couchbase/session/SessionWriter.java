@@ -0,0 +1,682 @@
+package com.cvent.couchbase.session;
+
+import com.codahale.metrics.Meter;
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.document.Document;
+import com.couchbase.client.java.error.CASMismatchException;
+import com.couchbase.client.java.subdoc.MutateInBuilder;
+import com.cvent.couchbase.session.CouchbaseSessionManager.CouchbaseHttpSession;
+import com.cvent.couchbase.session.CouchbaseSessionManager.SessionJson;
+import com.cvent.couchbase.session.SessionStore.StoreOperation;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.IntSupplier;
+import java.util.function.ObjLongConsumer;
+import org.slf4j.LoggerFactory;
+import rx.Observable;
+
+/**
+ * The write side of a session manager: how sessions are encoded and checked against the size budget, written in full
+ * or as a delta of their changed attributes, handed to the write queue, and deferred or dropped while the circuit is
+ * open. Calls to couchbase go through the SessionStore.
+ *
+ * What a session looks like in memory, and keeping the near cache and the expiry index in step with its writes, is
+ * up to the manager.
+ */
+final class SessionWriter {
+
+    private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(SessionWriter.class);
+
+    /**
+     * Sub-document mutations are limited to 16 paths, two of which are taken by lastSaved and lastTouched
+     */
+    private static final int MAX_DELTA_ATTRIBUTES = 14;
+
+    /**
+     * The capacity of the write queue when writes are batched but not written behind
+     */
+    private static final int DEFAULT_WRITE_QUEUE_CAPACITY = 1024;
+
+    /**
+     * Reads attribute values back as plain maps, lists and scalars so that the couchbase client writes exactly the
+     * JSON the configured mapper produced when they're written as sub-document fragments
+     */
+    private static final ObjectMapper FRAGMENT_MAPPER = new ObjectMapper();
+
+    private final SessionStore store;
+
+    private final ObjectMapper mapper;
+
+    /**
+     * The names of the cold attributes, which are left out of the session document and its size
+     */
+    private final Map<String, Integer> coldAttributes;
+
+    /**
+     * The number of seconds session documents are kept for after they were last used
+     */
+    private final IntSupplier expiry;
+
+    /**
+     * Told the key and new CAS of each deferred write once it's written
+     */
+    private final ObjLongConsumer<String> deferredWritten;
+
+    private SessionFormat sessionFormat = SessionFormat.JSON;
+
+    private int compressionThreshold;
+
+    private volatile SessionCodec codec;
+
+    private volatile int deltaThreshold;
+
+    private volatile int softSizeLimit;
+
+    private volatile int hardSizeLimit;
+
+    private volatile OversizedSessionPolicy oversizedSessionPolicy = OversizedSessionPolicy.WRITE;
+
+    private volatile SessionSizeListener sizeListener;
+
+    private volatile SessionMetrics metrics;
+
+    private int writeBehindCapacity;
+
+    private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+
+    private long batchWindowMillis;
+
+    private int maxBatchSize;
+
+    private volatile SessionWriteQueue writeQueue;
+
+    private volatile DegradedWritePolicy degradedWritePolicy = DegradedWritePolicy.FAIL;
+
+    private volatile int maxDeferredWrites;
+
+    /**
+     * The latest state of sessions written while the circuit was open, waiting for it to close
+     */
+    private final ConcurrentMap<String, DeferredWrite> deferredWrites = new ConcurrentHashMap<>();
+
+    /**
+     * Create a new session writer
+     *
+     * @param store Makes the calls to couchbase
+     * @param mapper The mapper attributes are serialized with
+     * @param codec The codec of the default session format, the one the store was created with
+     * @param coldAttributes The names of the cold attributes, as they're declared
+     * @param expiry Gives the number of seconds session documents are kept for after they were last used
+     * @param deferredWritten Told the key and new CAS of each deferred write once it's written
+     */
+    SessionWriter(SessionStore store, ObjectMapper mapper, SessionCodec codec, Map<String, Integer> coldAttributes,
+            IntSupplier expiry, ObjLongConsumer<String> deferredWritten) {
+        this.store = store;
+        this.mapper = mapper;
+        this.codec = codec;
+        this.coldAttributes = coldAttributes;
+        this.expiry = expiry;
+        this.deferredWritten = deferredWritten;
+    }
+
+    SessionCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Choose the format sessions are written in, see CouchbaseSessionManager.setSessionFormat()
+     *
+     * @param format The format to write sessions in
+     * @param compressionThreshold The size in bytes above which encoded sessions are compressed, 0 never compresses
+     */
+    void setSessionFormat(SessionFormat format, int compressionThreshold) {
+        this.sessionFormat = format;
+        this.compressionThreshold = compressionThreshold;
+        this.codec = new SessionCodec(mapper, format, compressionThreshold);
+        store.setCodec(codec);
+    }
+
+    /**
+     * @param deltaThreshold The max number of changed attributes to write as a delta, 0 always writes in full
+     */
+    void setDeltaThreshold(int deltaThreshold) {
+        this.deltaThreshold = Math.min(deltaThreshold, MAX_DELTA_ATTRIBUTES);
+    }
+
+    /**
+     * Check the size of sessions against a budget, see CouchbaseSessionManager.enableSizeBudget()
+     *
+     * @param softLimit The size over which a session is reported, 0 disables the budget
+     * @param hardLimit The size over which the policy applies
+     * @param policy What to do with a session over the hard limit
+     * @param listener Told about sessions over either limit, or null to only count and log them
+     */
+    void enableSizeBudget(int softLimit, int hardLimit, OversizedSessionPolicy policy,
+            SessionSizeListener listener) {
+        this.hardSizeLimit = hardLimit;
+        this.oversizedSessionPolicy = policy;
+        this.sizeListener = listener;
+        this.softSizeLimit = softLimit;
+    }
+
+    void setMetrics(SessionMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @param capacity The max number of writes waiting to be sent, 0 disables write behind
+     * @param policy What to do with a write when the queue is full
+     */
+    void enableWriteBehind(int capacity, OverflowPolicy policy) {
+        this.writeBehindCapacity = capacity;
+        this.overflowPolicy = policy;
+    }
+
+    /**
+     * @param windowMillis The max number of msec to wait for a batch to fill up
+     * @param maxBatchSize The max number of writes in a batch, 1 or less disables batching
+     */
+    void enableWriteBatching(long windowMillis, int maxBatchSize) {
+        this.batchWindowMillis = windowMillis;
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * @param policy What to do with a write while the circuit is open
+     * @param maxDeferredWrites The max number of sessions kept in memory by DEFER, writes beyond that are dropped
+     */
+    void setDegradedWritePolicy(DegradedWritePolicy policy, int maxDeferredWrites) {
+        this.degradedWritePolicy = policy;
+        this.maxDeferredWrites = maxDeferredWrites;
+    }
+
+    /**
+     * Resolve the readers and writers of the codec again now that the mapper has been configured, and start the write
+     * queue if writes are written behind or batched.
+     *
+     * @param listener Told about writes the queue made
+     */
+    void start(SessionWriteQueue.Listener listener) {
+        setSessionFormat(sessionFormat, compressionThreshold);
+
+        if (writeBehindCapacity > 0 || maxBatchSize > 1) {
+            SessionWriteQueue queue = new SessionWriteQueue(key -> store.bucket(key).async(),
+                    writeBehindCapacity > 0 ? writeBehindCapacity : DEFAULT_WRITE_QUEUE_CAPACITY,
+                    writeBehindCapacity > 0 ? overflowPolicy : OverflowPolicy.BLOCK,
+                    store.getKvTimeout(),
+                    batchWindowMillis,
+                    maxBatchSize,
+                    listener);
+            queue.start();
+            writeQueue = queue;
+        }
+    }
+
+    /**
+     * Flush the pending writes of the write queue and stop it
+     *
+     * @param timeoutMillis The max number of msec to wait for pending writes
+     * @throws InterruptedException
+     */
+    void stop(long timeoutMillis) throws InterruptedException {
+        SessionWriteQueue queue = writeQueue;
+        if (queue != null) {
+            queue.stop(timeoutMillis);
+            writeQueue = null;
+        }
+    }
+
+    /**
+     * @return The write queue, or null if writes aren't queued
+     */
+    SessionWriteQueue getWriteQueue() {
+        return writeQueue;
+    }
+
+    /**
+     * Wait for any pending write of a session to complete before operating on the stored document directly
+     *
+     * @param key The key of the session document
+     */
+    void awaitPendingWrite(String key) {
+        SessionWriteQueue queue = writeQueue;
+        if (queue != null) {
+            queue.await(key);
+        }
+    }
+
+    /**
+     * Hand a session to the write queue, waiting for it to be written unless writes are written behind
+     *
+     * @param queue The write queue
+     * @param key The key of the session document
+     * @param encoded The encoded session
+     * @param cas The CAS the session was read with
+     * @param previous The most recent pending write of the session the write is based on, or null
+     */
+    void writeQueued(SessionWriteQueue queue, String key, EncodedSession encoded, long cas,
+            SessionWriteQueue.PendingWrite previous) {
+        recordDocument(encoded.json, encoded.content);
+
+        SessionWriteQueue.PendingWrite write = new SessionWriteQueue.PendingWrite(key, encoded.content,
+                expiry.getAsInt(), cas, previous, encoded.json);
+        if (writeBehindCapacity > 0) {
+            queue.submit(write);
+        } else {
+            queue.submitAndWait(write);
+        }
+    }
+
+    /**
+     * Insert a new session document
+     *
+     * @param key The key of the session document
+     * @param json The session state
+     * @param content The encoded session
+     * @return The document as it was written
+     * @throws SessionStoreUnavailableException If the circuit is open
+     */
+    Document<?> insert(String key, SessionJson json, Object content) {
+        recordDocument(json, content);
+        Bucket to = store.bucket(key);
+        return store.call(key, StoreOperation.WRITE, timeout -> to.insert(
+                SessionCodec.createDocument(key, expiry.getAsInt(), content, 0),
+                timeout, TimeUnit.MICROSECONDS));
+    }
+
+    /**
+     * Insert a new session document on the async bucket api
+     *
+     * @param key The key of the session document
+     * @param json The session state
+     * @param content The encoded session
+     * @return The document as it was written
+     */
+    Observable<Document<?>> insertAsync(String key, SessionJson json, Object content) {
+        recordDocument(json, content);
+        Bucket to = store.bucket(key);
+        return store.callAsync(key, StoreOperation.WRITE, timeout -> SessionStore.widen(to.async().insert(
+                SessionCodec.createDocument(key, expiry.getAsInt(), content, 0))));
+    }
+
+    /**
+     * Write a session document in full
+     *
+     * @param key The key of the session document
+     * @param json The session state
+     * @param content The encoded session
+     * @param cas The CAS the session was read with
+     * @return The document as it was written
+     * @throws SessionStoreUnavailableException If the circuit is open
+     */
+    Document<?> upsert(String key, SessionJson json, Object content, long cas) {
+        recordDocument(json, content);
+        Bucket to = store.bucket(key);
+        return store.call(key, StoreOperation.WRITE, timeout -> to.upsert(
+                SessionCodec.createDocument(key, expiry.getAsInt(), content, cas),
+                timeout, TimeUnit.MICROSECONDS));
+    }
+
+    /**
+     * Write a session document in full on the async bucket api
+     *
+     * @param key The key of the session document
+     * @param json The session state
+     * @param content The encoded session
+     * @param cas The CAS the session was read with
+     * @return The document as it was written
+     */
+    Observable<Document<?>> upsertAsync(String key, SessionJson json, Object content, long cas) {
+        recordDocument(json, content);
+        Bucket to = store.bucket(key);
+        return store.callAsync(key, StoreOperation.WRITE, timeout -> SessionStore.widen(to.async().upsert(
+                SessionCodec.createDocument(key, expiry.getAsInt(), content, cas))));
+    }
+
+    /**
+     * @param session A session about to be written
+     * @return Whether or not it's written by updating just its changed attributes, because there are few enough of
+     * them
+     */
+    boolean isDeltaWrite(CouchbaseHttpSession session) {
+        Map<String, Boolean> changes = session.getChangedAttributes();
+        return session.isStoredAsJson() && !changes.isEmpty() && changes.size() <= deltaThreshold
+                && !session.isHeldColdAttributesChanged();
+    }
+
+    /**
+     * Write just the changed attributes of a session, and when it was saved, as a single sub-document mutation.
+     *
+     * @param key The key of the session document
+     * @param session The session
+     * @param changes The names of the changed attributes mapped to whether they existed when the session was loaded
+     * @param now The current time in msec since the epoch
+     * @return The new CAS of the document
+     */
+    long updateAttributes(String key, CouchbaseHttpSession session, Map<String, Boolean> changes, long now) {
+        MutateInBuilder mutation = store.bucket(key).mutateIn(key)
+                .withCas(session.getCas())
+                .withExpiry(expiry.getAsInt());
+
+        Map<String, Object> attributes = session.getAttributeMap();
+        for (Map.Entry<String, Boolean> change : changes.entrySet()) {
+            Object value = attributes.get(change.getKey());
+            if (value != null) {
+                mutation = mutation.upsert(getAttributePath(change.getKey()), toFragment(change.getKey(), value), true);
+            } else if (change.getValue()) {
+                mutation = mutation.remove(getAttributePath(change.getKey()));
+            }
+        }
+
+        MutateInBuilder saved = mutation.upsert(CouchbaseSessionManager.LAST_SAVED, now, false)
+                .upsert(CouchbaseSessionManager.LAST_TOUCHED, now, false);
+        return store.call(key, StoreOperation.WRITE, timeout -> saved.execute(timeout, TimeUnit.MICROSECONDS).cas());
+    }
+
+    /**
+     * @param name The name of an attribute
+     * @return The sub-document path of the attribute, escaped so that any name can be used
+     */
+    private static String getAttributePath(String name) {
+        return CouchbaseSessionManager.ATTRIBUTES + ".`" + name.replace("`", "``") + "`";
+    }
+
+    /**
+     * Convert an attribute value to a fragment that the couchbase client serializes to exactly the JSON the
+     * configured mapper serializes it to as part of the whole document, including any type information.
+     *
+     * @param name The name of the attribute
+     * @param value The value of the attribute
+     * @return The fragment
+     */
+    private Object toFragment(String name, Object value) {
+        try {
+            return FRAGMENT_MAPPER.readValue(mapper.writerWithType(Object.class).writeValueAsBytes(value),
+                    Object.class);
+        } catch (IOException ex) {
+            throw new RuntimeException("Failed serialize session attribute to JSON " + name, ex);
+        }
+    }
+
+    /**
+     * Check whether a session whose changed attributes are about to be written on their own is within the soft limit
+     * of the size budget, estimated from the size of its document and of those attributes, without encoding it.
+     *
+     * @param session The session
+     * @return Whether or not it's within the soft limit, or there is no budget, so it can be written as a delta
+     * @throws IOException
+     */
+    boolean isDeltaWithinBudget(CouchbaseHttpSession session) throws IOException {
+        int softLimit = softSizeLimit;
+        if (softLimit <= 0) {
+            return true;
+        }
+
+        int estimate = estimateSize(session);
+        if (estimate <= softLimit) {
+            session.setStoredSize(estimate);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Encode a session about to be written and check its size against the size budget. A session over either limit is
+     * reported, and one over the hard limit rejected or truncated according to the policy.
+     *
+     * @param key The key of the session document
+     * @param session The session
+     * @param json The state of the session
+     * @return The encoded session to write
+     * @throws IOException
+     * @throws SessionTooLargeException If the session is over the hard limit and writes like that are rejected
+     */
+    EncodedSession encodeWithinBudget(String key, CouchbaseHttpSession session, SessionJson json)
+            throws IOException {
+        Object content = codec.encode(json);
+        int softLimit = softSizeLimit;
+        if (softLimit <= 0) {
+            return new EncodedSession(json, content);
+        }
+
+        int size = SessionCodec.size(content);
+        if (size <= softLimit) {
+            return new EncodedSession(json, content);
+        }
+
+        int hardLimit = hardSizeLimit;
+        boolean hard = size > hardLimit;
+        Map<String, Integer> attributeSizes = getAttributeSizes(session, content);
+        mark(hard ? SessionMetrics::getHardSizeBreaches : SessionMetrics::getSoftSizeBreaches);
+        SessionSizeListener listener = sizeListener;
+        if (listener != null) {
+            listener.sizeExceeded(session.getClusterId(), size, hard ? hardLimit : softLimit, hard, attributeSizes);
+        }
+
+        if (!hard) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Session {} of size {} is over its soft limit, largest attributes {}", key, size,
+                        attributeSizes.keySet());
+            }
+            return new EncodedSession(json, content);
+        }
+
+        OversizedSessionPolicy policy = oversizedSessionPolicy;
+        LOG.warn("Session {} of size {} is over its hard limit of {}, largest attributes {}, policy {}", key, size,
+                hardLimit, attributeSizes, policy);
+        switch (policy) {
+            case REJECT:
+                throw new SessionTooLargeException("Session " + key + " of size " + size
+                        + " is over its hard limit of " + hardLimit);
+            case TRUNCATE:
+                //Only the document loses the attributes, the request goes on with the session it has
+                return new EncodedSession(json, codec.truncate(json, content, attributeSizes, hardLimit));
+            default:
+                //Written anyway
+                return new EncodedSession(json, content);
+        }
+    }
+
+    /**
+     * Estimate the size of a session document once its changed attributes are written, without encoding it. The
+     * sizes of the changed attributes are added to the size of the document, or if that isn't known, the sizes of all
+     * the attributes are added up.
+     *
+     * @param session A session stored as JSON
+     * @return An upper bound on the size of its document
+     * @throws IOException
+     */
+    private int estimateSize(CouchbaseHttpSession session) throws IOException {
+        Map<String, Object> attributes = session.getAttributeMap();
+        int size = session.getStoredSize();
+        Collection<String> names = size < 0 ? attributes.keySet() : session.getChangedAttributes().keySet();
+        size = Math.max(size, 0);
+        for (String name : names) {
+            Object value = attributes.get(name);
+            if (value != null && !coldAttributes.containsKey(name)) {
+                size += codec.measure(name, value);
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @param session A session
+     * @param content The content of its session document
+     * @return The size of each attribute in the session document, in its format, largest first
+     * @throws IOException
+     */
+    private Map<String, Integer> getAttributeSizes(CouchbaseHttpSession session, Object content) throws IOException {
+        Map<String, Object> stored = new HashMap<>();
+        for (Map.Entry<String, Object> attribute : session.getAttributeMap().entrySet()) {
+            if (!coldAttributes.containsKey(attribute.getKey())) {
+                stored.put(attribute.getKey(), attribute.getValue());
+            }
+        }
+
+        List<Map.Entry<String, Integer>> sizes = new ArrayList<>(codec.measure(stored, content).entrySet());
+        sizes.sort(Map.Entry.<String, Integer>comparingByValue().reversed());
+
+        Map<String, Integer> largestFirst = new LinkedHashMap<>();
+        for (Map.Entry<String, Integer> size : sizes) {
+            largestFirst.put(size.getKey(), size.getValue());
+        }
+        return largestFirst;
+    }
+
+    /**
+     * Handle a write that was rejected because the circuit is open, according to the degraded write policy.
+     *
+     * @param key The key of the session document
+     * @param json The session state
+     * @param content The serialized session state
+     * @param cas The CAS the write has to be made with, 0 for a new session
+     * @param ex Why the write was rejected
+     */
+    void writeDegraded(String key, SessionJson json, Object content, long cas, SessionStoreUnavailableException ex) {
+        switch (degradedWritePolicy) {
+            case DEFER:
+                if (deferredWrites.containsKey(key) || deferredWrites.size() < maxDeferredWrites) {
+                    deferredWrites.put(key, new DeferredWrite(content, cas));
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug("Circuit is open, deferred write of session {}", json.getSessionId());
+                    }
+                } else {
+                    LOG.warn("Circuit is open and too many writes are deferred, dropping write of session {}", key);
+                }
+                break;
+            case DROP:
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Circuit is open, dropped write of session {}", json.getSessionId());
+                }
+                break;
+            default:
+                throw ex;
+        }
+    }
+
+    /**
+     * @param key The key of a session document
+     * @return The write of the session deferred while the circuit was open, or null if there is none
+     */
+    DeferredWrite getDeferredWrite(String key) {
+        return deferredWrites.isEmpty() ? null : deferredWrites.get(key);
+    }
+
+    /**
+     * Forget the write of a session deferred while the circuit was open, once a later write or removal of the
+     * session made it obsolete
+     *
+     * @param key The key of the session document
+     */
+    void removeDeferredWrite(String key) {
+        deferredWrites.remove(key);
+    }
+
+    /**
+     * Write the sessions deferred while the circuit was open, off the request thread. A deferred write that conflicts
+     * with a change made in the meantime is dropped, one that fails because the cluster is still struggling is kept
+     * until the circuit closes again.
+     */
+    void flushDeferredWrites() {
+        if (deferredWrites.isEmpty()) {
+            return;
+        }
+
+        LOG.info("Writing {} sessions deferred while the circuit was open", deferredWrites.size());
+
+        for (Map.Entry<String, DeferredWrite> entry : deferredWrites.entrySet()) {
+            String key = entry.getKey();
+            DeferredWrite write = entry.getValue();
+            store.bucket(key).async()
+                    .upsert(SessionCodec.createDocument(key, expiry.getAsInt(), write.content, write.cas))
+                    .timeout(store.getKvTimeout(), TimeUnit.MILLISECONDS)
+                    .subscribe(doc -> {
+                        deferredWrites.remove(key, write);
+                        deferredWritten.accept(key, doc.cas());
+                    }, error -> {
+                        if (!CircuitBreaker.isFailure(error)) {
+                            if (error instanceof CASMismatchException) {
+                                mark(SessionMetrics::getCasConflicts);
+                            }
+                            deferredWrites.remove(key, write);
+                            LOG.warn("Dropped write of session {} deferred while the circuit was open", key, error);
+                        }
+                    });
+        }
+    }
+
+    private void mark(Function<SessionMetrics, Meter> meter) {
+        SessionMetrics sessionMetrics = metrics;
+        if (sessionMetrics != null) {
+            meter.apply(sessionMetrics).mark();
+        }
+    }
+
+    /**
+     * @param json The state of a written session
+     * @param content The content it was written as
+     */
+    private void recordDocument(SessionJson json, Object content) {
+        SessionMetrics sessionMetrics = metrics;
+        if (sessionMetrics != null) {
+            sessionMetrics.recordDocument(content, json.getAttributes() == null ? 0 : json.getAttributes().size());
+        }
+    }
+
+    /**
+     * The latest state of a session written while the circuit was open
+     */
+    static final class DeferredWrite {
+
+        private final Object content;
+
+        private final long cas;
+
+        private DeferredWrite(Object content, long cas) {
+            this.content = content;
+            this.cas = cas;
+        }
+
+        Object getContent() {
+            return content;
+        }
+
+        long getCas() {
+            return cas;
+        }
+    }
+
+    /**
+     * A session encoded into the content of its document
+     */
+    static final class EncodedSession {
+
+        private final SessionJson json;
+
+        private final Object content;
+
+        private EncodedSession(SessionJson json, Object content) {
+            this.json = json;
+            this.content = content;
+        }
+
+        SessionJson getJson() {
+            return json;
+        }
+
+        Object getContent() {
+            return content;
+        }
+    }
+}
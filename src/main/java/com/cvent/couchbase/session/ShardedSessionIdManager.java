@@ -0,0 +1,27 @@
+package com.cvent.couchbase.session;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * ShardedSessionIdManager
+ *
+ * Generates session ids tagged with the shard the session is created on, so that the session stays on that shard
+ * even when shards are added later. Everything else is left to the session manager, as with NoOpSessionIdManager.
+ */
+public final class ShardedSessionIdManager extends NoOpSessionIdManager {
+
+    private final SessionShards shards;
+
+    /**
+     * @param shards The shards to spread sessions across
+     */
+    public ShardedSessionIdManager(SessionShards shards) {
+        this.shards = shards;
+    }
+
+    @Override
+    public String newSessionId(HttpServletRequest request, long created) {
+        return shards.tag(super.newSessionId(request, created));
+    }
+
+}
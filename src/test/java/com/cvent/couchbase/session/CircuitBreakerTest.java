@@ -0,0 +1,162 @@
+package com.cvent.couchbase.session;
+
+import com.couchbase.client.core.CouchbaseException;
+import com.couchbase.client.java.error.CASMismatchException;
+import com.couchbase.client.java.error.DocumentDoesNotExistException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CircuitBreakerTest {
+
+    private static final long WINDOW_MILLIS = 1000;
+
+    private static final long OPEN_MILLIS = 500;
+
+    private final AtomicInteger closed = new AtomicInteger();
+
+    /**
+     * Opens once half of at least 4 calls in a window failed
+     */
+    private final CircuitBreaker breaker = new CircuitBreaker(0.5, 4, WINDOW_MILLIS, OPEN_MILLIS,
+            closed::incrementAndGet);
+
+    @Test
+    public void staysClosedBelowMinCalls() {
+        fail(0, 3);
+
+        assertFalse(breaker.isOpen());
+        assertEquals(CircuitBreaker.CLOSED, breaker.allowRequest(0));
+    }
+
+    @Test
+    public void staysClosedBelowFailureRate() {
+        succeed(0, 3);
+        fail(0, 1);
+
+        assertFalse(breaker.isOpen());
+    }
+
+    @Test
+    public void opensOnceFailureRateIsReached() {
+        open();
+
+        assertTrue(breaker.isOpen());
+        assertEquals(CircuitBreaker.REJECTED, breaker.allowRequest(OPEN_MILLIS - 1));
+    }
+
+    @Test
+    public void forgetsCallsOfPreviousWindow() {
+        fail(0, 3);
+        succeed(WINDOW_MILLIS, 2);
+        fail(WINDOW_MILLIS, 1);
+
+        assertFalse(breaker.isOpen());
+    }
+
+    @Test
+    public void letsSingleProbeThroughOnceOpenPeriodHasPassed() {
+        open();
+
+        long probe = breaker.allowRequest(OPEN_MILLIS);
+
+        assertTrue(probe > CircuitBreaker.CLOSED);
+        assertEquals(CircuitBreaker.REJECTED, breaker.allowRequest(OPEN_MILLIS));
+        assertEquals(CircuitBreaker.REJECTED, breaker.allowRequest(OPEN_MILLIS + 1));
+    }
+
+    @Test
+    public void closesWhenProbeSucceeds() {
+        open();
+        long probe = breaker.allowRequest(OPEN_MILLIS);
+
+        breaker.recordSuccess(probe, OPEN_MILLIS + 10);
+
+        assertFalse(breaker.isOpen());
+        assertEquals(1, closed.get());
+        assertEquals(CircuitBreaker.CLOSED, breaker.allowRequest(OPEN_MILLIS + 10));
+    }
+
+    @Test
+    public void reopensWhenProbeFails() {
+        open();
+        long probe = breaker.allowRequest(OPEN_MILLIS);
+
+        breaker.recordFailure(probe, OPEN_MILLIS + 10);
+
+        assertTrue(breaker.isOpen());
+        assertEquals(CircuitBreaker.REJECTED, breaker.allowRequest(2 * OPEN_MILLIS + 9));
+        assertTrue(breaker.allowRequest(2 * OPEN_MILLIS + 10) > CircuitBreaker.CLOSED);
+    }
+
+    @Test
+    public void reopensOnceClosedCircuitFailsAgain() {
+        open();
+        breaker.recordSuccess(breaker.allowRequest(OPEN_MILLIS), OPEN_MILLIS);
+
+        //The window starts over when the circuit closes, so earlier failures don't count
+        fail(OPEN_MILLIS, 3);
+        assertFalse(breaker.isOpen());
+        fail(OPEN_MILLIS, 1);
+
+        assertTrue(breaker.isOpen());
+    }
+
+    @Test
+    public void ignoresCallsMadeBeforeCircuitOpened() {
+        open();
+
+        breaker.recordSuccess(CircuitBreaker.CLOSED, 10);
+
+        assertTrue(breaker.isOpen());
+        assertEquals(0, closed.get());
+    }
+
+    @Test
+    public void replacesProbeThatNeverReports() {
+        open();
+        long stale = breaker.allowRequest(OPEN_MILLIS);
+
+        long probe = breaker.allowRequest(2 * OPEN_MILLIS);
+        breaker.recordSuccess(stale, 2 * OPEN_MILLIS);
+
+        assertTrue(probe > CircuitBreaker.CLOSED);
+        assertTrue(breaker.isOpen());
+        breaker.recordSuccess(probe, 2 * OPEN_MILLIS);
+        assertFalse(breaker.isOpen());
+    }
+
+    @Test
+    public void countsOnlyFailuresOfCluster() {
+        assertTrue(CircuitBreaker.isFailure(new TimeoutException()));
+        assertTrue(CircuitBreaker.isFailure(new RuntimeException(new TimeoutException())));
+        assertTrue(CircuitBreaker.isFailure(new CouchbaseException("Temporary failure")));
+        assertFalse(CircuitBreaker.isFailure(new DocumentDoesNotExistException()));
+        assertFalse(CircuitBreaker.isFailure(new CASMismatchException()));
+        assertFalse(CircuitBreaker.isFailure(new IllegalStateException()));
+    }
+
+    /**
+     * Open the circuit at time 0
+     */
+    private void open() {
+        succeed(0, 2);
+        fail(0, 2);
+    }
+
+    private void succeed(long now, int calls) {
+        for (int i = 0; i < calls; i++) {
+            breaker.recordSuccess(breaker.allowRequest(now), now);
+        }
+    }
+
+    private void fail(long now, int calls) {
+        for (int i = 0; i < calls; i++) {
+            breaker.recordFailure(breaker.allowRequest(now), now);
+        }
+    }
+}
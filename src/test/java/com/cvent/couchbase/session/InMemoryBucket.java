@@ -0,0 +1,853 @@
+package com.cvent.couchbase.session;
+
+import com.couchbase.client.core.CouchbaseException;
+import com.couchbase.client.core.message.ResponseStatus;
+import com.couchbase.client.core.message.kv.subdoc.multi.Lookup;
+import com.couchbase.client.core.message.kv.subdoc.multi.Mutation;
+import com.couchbase.client.java.AsyncBucket;
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.ReplicaMode;
+import com.couchbase.client.java.document.ByteArrayDocument;
+import com.couchbase.client.java.document.Document;
+import com.couchbase.client.java.document.RawJsonDocument;
+import com.couchbase.client.java.document.StringDocument;
+import com.couchbase.client.java.env.CouchbaseEnvironment;
+import com.couchbase.client.java.error.CASMismatchException;
+import com.couchbase.client.java.error.DocumentAlreadyExistsException;
+import com.couchbase.client.java.error.DocumentDoesNotExistException;
+import com.couchbase.client.java.error.TranscodingException;
+import com.couchbase.client.java.error.subdoc.DocumentNotJsonException;
+import com.couchbase.client.java.error.subdoc.PathExistsException;
+import com.couchbase.client.java.error.subdoc.PathNotFoundException;
+import com.couchbase.client.java.subdoc.AsyncLookupInBuilder;
+import com.couchbase.client.java.subdoc.AsyncMutateInBuilder;
+import com.couchbase.client.java.subdoc.DocumentFragment;
+import com.couchbase.client.java.subdoc.LookupInBuilder;
+import com.couchbase.client.java.subdoc.MutateInBuilder;
+import com.couchbase.client.java.subdoc.SubdocOperationResult;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+import rx.Observable;
+
+/**
+ * An in-memory stand-in for the couchbase Bucket operations the session manager uses, so that it can be unit tested,
+ * benchmarked and load tested without a cluster. It's shared with the benchmarks through the test jar. JSON, string
+ * and binary documents are stored as RawJsonDocument, StringDocument and ByteArrayDocument content, with CAS and
+ * expiry semantics that follow couchbase, including a TranscodingException when a binary document is read as text or
+ * the other way around.
+ *
+ * Every operation takes a latency drawn from a configurable distribution, and a configurable fraction of operations
+ * time out or fail with a CouchbaseException. A blocking operation that times out, or whose latency exceeds its
+ * timeout, does so after the timeout it was called with or else the kv timeout, as the couchbase client does, and an
+ * async one never completes so that the caller's own timeout applies. The bucket has a single replica, which can be
+ * made to lag behind the active copy.
+ *
+ * Only get, getAndTouch, getFromReplica, insert, upsert, replace, remove, touch, append, mutateIn and lookupIn are
+ * supported, both blocking and async. Any other operation throws UnsupportedOperationException. Sub-document
+ * operations support dictionary paths only, with backticks escaping names, and are applied all or nothing. A failed
+ * mutation throws the path exception itself rather than a MultiMutationException.
+ */
+public final class InMemoryBucket implements InvocationHandler {
+
+    private static final long KV_TIMEOUT_MILLIS = 2500;
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final ConcurrentMap<String, Stored> documents = new ConcurrentHashMap<>();
+
+    private final AtomicLong casSequence = new AtomicLong();
+
+    private final Bucket bucket;
+
+    private final AsyncBucket asyncBucket;
+
+    private volatile Latency latency = Latency.none();
+
+    private volatile double timeoutRate;
+
+    private volatile double errorRate;
+
+    private volatile long replicaLagMillis;
+
+    /**
+     * Create a new, empty bucket
+     */
+    public InMemoryBucket() {
+        this.bucket = (Bucket) Proxy.newProxyInstance(Bucket.class.getClassLoader(), new Class<?>[]{Bucket.class},
+                this);
+        this.asyncBucket = (AsyncBucket) Proxy.newProxyInstance(AsyncBucket.class.getClassLoader(),
+                new Class<?>[]{AsyncBucket.class},
+                this::invokeAsync);
+    }
+
+    /**
+     * @return The Bucket api backed by this bucket
+     */
+    public Bucket getBucket() {
+        return bucket;
+    }
+
+    /**
+     * @param latencyMicros The number of usec every operation takes
+     */
+    public void setLatencyMicros(long latencyMicros) {
+        setLatency(Latency.fixed(latencyMicros));
+    }
+
+    /**
+     * @param latency The distribution of the latency of operations
+     */
+    public void setLatency(Latency latency) {
+        this.latency = latency;
+    }
+
+    /**
+     * @param timeoutRate The fraction of operations that time out
+     * @param errorRate The fraction of operations that fail with a CouchbaseException
+     */
+    public void setFailureRates(double timeoutRate, double errorRate) {
+        this.timeoutRate = timeoutRate;
+        this.errorRate = errorRate;
+    }
+
+    /**
+     * @param replicaLagMillis The number of msec it takes for a change to reach the replica
+     */
+    public void setReplicaLagMillis(long replicaLagMillis) {
+        this.replicaLagMillis = replicaLagMillis;
+    }
+
+    /**
+     * @return The number of documents stored, including any that have expired or been removed but are still known
+     */
+    public int size() {
+        return documents.size();
+    }
+
+    public void clear() {
+        documents.clear();
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        switch (method.getName()) {
+            case "environment":
+                return environment();
+            case "async":
+                return asyncBucket;
+            case "mutateIn":
+                //The latency is taken when the mutation is executed
+                return new MutateInBuilder(new InMemoryMutateIn((String) args[0]), KV_TIMEOUT_MILLIS,
+                        TimeUnit.MILLISECONDS);
+            case "lookupIn":
+                return new LookupInBuilder(new InMemoryLookupIn((String) args[0]), KV_TIMEOUT_MILLIS,
+                        TimeUnit.MILLISECONDS);
+            default:
+                if (isLocal(method)) {
+                    return invokeLocal(method, args);
+                }
+                break;
+        }
+
+        long timeoutNanos = timeoutNanos(args);
+        long nanos = TimeUnit.MICROSECONDS.toNanos(latency.nextMicros());
+        if (isFailure(timeoutRate) || nanos >= timeoutNanos) {
+            LockSupport.parkNanos(timeoutNanos);
+            throw new RuntimeException(new TimeoutException());
+        }
+
+        if (nanos > 0) {
+            LockSupport.parkNanos(nanos);
+        }
+
+        if (isFailure(errorRate)) {
+            throw new CouchbaseException("Injected failure of " + method.getName());
+        }
+
+        return execute(method.getName(), args);
+    }
+
+    private Object invokeAsync(Object proxy, Method method, Object[] args) throws Throwable {
+        if (isLocal(method)) {
+            return invokeLocal(method, args);
+        }
+
+        switch (method.getName()) {
+            case "mutateIn":
+                return new InMemoryMutateIn((String) args[0]);
+            case "lookupIn":
+                return new InMemoryLookupIn((String) args[0]);
+            default:
+                return executeAsync(method.getName(), () -> execute(method.getName(), args))
+                        .flatMap(result -> result instanceof List
+                                ? Observable.<Object>from((List<?>) result)
+                                : Observable.just(result));
+        }
+    }
+
+    /**
+     * Execute an operation after a latency, or fail or time out
+     *
+     * @param operation The name of the operation
+     * @param execution Executes the operation
+     * @return The result of the operation, empty if it's null, or an observable that never completes if the
+     * operation times out
+     */
+    private <T> Observable<T> executeAsync(String operation, Supplier<T> execution) {
+        if (isFailure(timeoutRate)) {
+            return Observable.never();
+        }
+        boolean error = isFailure(errorRate);
+
+        return Observable.timer(latency.nextMicros(), TimeUnit.MICROSECONDS).flatMap(tick -> {
+            if (error) {
+                return Observable.error(new CouchbaseException("Injected failure of " + operation));
+            }
+
+            T result;
+            try {
+                result = execution.get();
+            } catch (RuntimeException ex) {
+                return Observable.error(ex);
+            }
+            return result == null ? Observable.<T>empty() : Observable.just(result);
+        });
+    }
+
+    /**
+     * @param args The arguments of a blocking operation
+     * @return The number of nsec after which the operation times out, given as its last two arguments or else the kv
+     * timeout
+     */
+    private static long timeoutNanos(Object[] args) {
+        if (args != null && args.length >= 2 && args[args.length - 1] instanceof TimeUnit) {
+            return ((TimeUnit) args[args.length - 1]).toNanos((Long) args[args.length - 2]);
+        }
+        return TimeUnit.MILLISECONDS.toNanos(KV_TIMEOUT_MILLIS);
+    }
+
+    private static boolean isLocal(Method method) {
+        return method.getDeclaringClass() == Object.class
+                || method.getName().equals("name")
+                || method.getName().equals("close");
+    }
+
+    private Object invokeLocal(Method method, Object[] args) throws Throwable {
+        switch (method.getName()) {
+            case "name":
+                return "sessions";
+            case "close":
+                return true;
+            default:
+                try {
+                    return method.invoke(this, args);
+                } catch (InvocationTargetException ex) {
+                    throw ex.getCause();
+                }
+        }
+    }
+
+    private static boolean isFailure(double rate) {
+        return rate > 0 && ThreadLocalRandom.current().nextDouble() < rate;
+    }
+
+    private CouchbaseEnvironment environment() {
+        return (CouchbaseEnvironment) Proxy.newProxyInstance(CouchbaseEnvironment.class.getClassLoader(),
+                new Class<?>[]{CouchbaseEnvironment.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("kvTimeout")) {
+                        return KV_TIMEOUT_MILLIS;
+                    }
+                    throw new UnsupportedOperationException(method.getName()
+                            + " isn't supported by the in-memory bucket environment");
+                });
+    }
+
+    /**
+     * @param operation The name of the operation
+     * @param args The arguments of the operation
+     * @return The result of the operation, a list of documents for getFromReplica
+     */
+    private Object execute(String operation, Object[] args) {
+        switch (operation) {
+            case "get":
+                return get((String) args[0], documentType(args, 1));
+            case "getAndTouch":
+                return getAndTouch((String) args[0], (Integer) args[1], documentType(args, 2));
+            case "getFromReplica":
+                return getFromReplica((String) args[0], (ReplicaMode) args[1], documentType(args, 2));
+            case "insert":
+                return insert((Document<?>) args[0]);
+            case "upsert":
+                return upsert((Document<?>) args[0], false);
+            case "replace":
+                return upsert((Document<?>) args[0], true);
+            case "remove":
+                if (args[0] instanceof Document) {
+                    Document<?> doc = (Document<?>) args[0];
+                    return remove(doc.id(), doc.cas(), doc.getClass());
+                }
+                return remove((String) args[0], 0, documentType(args, 1));
+            case "touch":
+                return touch((String) args[0], (Integer) args[1]);
+            case "append":
+                return append((Document<?>) args[0]);
+            default:
+                throw new UnsupportedOperationException(operation + " isn't supported by the in-memory bucket");
+        }
+    }
+
+    private Document<?> get(String id, Class<?> type) {
+        Stored stored = find(id);
+        return stored == null ? null : stored.toDocument(id, type);
+    }
+
+    private List<Document<?>> getFromReplica(String id, ReplicaMode mode, Class<?> type) {
+        List<Document<?>> docs = new ArrayList<>(2);
+        if (mode == ReplicaMode.ALL) {
+            Document<?> active = get(id, type);
+            if (active != null) {
+                docs.add(active);
+            }
+        }
+
+        if (mode == ReplicaMode.ALL || mode == ReplicaMode.FIRST) {
+            long now = System.currentTimeMillis();
+            Stored stored = documents.get(id);
+            Stored replica = stored == null ? null : stored.getReplicated(now - replicaLagMillis);
+            if (replica != null && replica.isLive(now)) {
+                docs.add(replica.toDocument(id, type));
+            }
+        }
+        return docs.isEmpty() ? Collections.emptyList() : docs;
+    }
+
+    private Document<?> getAndTouch(String id, int expiry, Class<?> type) {
+        Stored touched = touchStored(id, expiry);
+        return touched == null ? null : touched.toDocument(id, type);
+    }
+
+    /**
+     * @param id The key of a document
+     * @param expiry The new expiry in seconds of the document
+     * @return The touched document or null if it doesn't exist or has expired
+     */
+    private Stored touchStored(String id, int expiry) {
+        Stored[] touched = new Stored[1];
+        documents.computeIfPresent(id, (key, stored) -> {
+            if (stored.isLive(System.currentTimeMillis())) {
+                touched[0] = newVersion(stored, stored.content, expiry);
+                return touched[0];
+            }
+            return stored;
+        });
+        return touched[0];
+    }
+
+    private Document<?> insert(Document<?> doc) {
+        Stored stored = documents.compute(doc.id(), (key, existing) -> {
+            if (existing != null && existing.isLive(System.currentTimeMillis())) {
+                throw new DocumentAlreadyExistsException();
+            }
+            return newVersion(existing, doc.content(), doc.expiry());
+        });
+        return stored.toDocument(doc.id(), doc.getClass());
+    }
+
+    private Document<?> upsert(Document<?> doc, boolean mustExist) {
+        Stored stored = documents.compute(doc.id(), (key, existing) -> {
+            boolean exists = existing != null && existing.isLive(System.currentTimeMillis());
+            if (!exists && (mustExist || doc.cas() != 0)) {
+                throw new DocumentDoesNotExistException();
+            }
+            if (exists && doc.cas() != 0 && doc.cas() != existing.cas) {
+                throw new CASMismatchException();
+            }
+            return newVersion(existing, doc.content(), doc.expiry());
+        });
+        return stored.toDocument(doc.id(), doc.getClass());
+    }
+
+    /**
+     * @param id The key of the document
+     * @param cas The CAS the document must have, 0 for any
+     * @param type The type of document to return
+     * @return The removed document, with its new CAS and without content
+     */
+    private Document<?> remove(String id, long cas, Class<?> type) {
+        long[] removedCas = new long[1];
+        documents.computeIfPresent(id, (key, existing) -> {
+            if (!existing.isLive(System.currentTimeMillis())) {
+                return existing;
+            }
+            if (cas != 0 && cas != existing.cas) {
+                throw new CASMismatchException();
+            }
+
+            //Keep the removal as a version of its own while the replica may still see earlier ones
+            Stored removal = newVersion(existing, null, 0);
+            removedCas[0] = removal.cas;
+            return replicaLagMillis > 0 ? removal : null;
+        });
+        if (removedCas[0] == 0) {
+            throw new DocumentDoesNotExistException();
+        }
+
+        if (type == StringDocument.class) {
+            return StringDocument.create(id, 0, null, removedCas[0]);
+        } else if (type == ByteArrayDocument.class) {
+            return ByteArrayDocument.create(id, 0, null, removedCas[0]);
+        }
+        return RawJsonDocument.create(id, 0, null, removedCas[0]);
+    }
+
+    private Boolean touch(String id, int expiry) {
+        if (touchStored(id, expiry) == null) {
+            throw new DocumentDoesNotExistException();
+        }
+        return true;
+    }
+
+    /**
+     * Append to the content of a document, keeping its expiry as appends do
+     *
+     * @param doc The document whose content to append
+     * @return The document with its new content and CAS
+     */
+    private Document<?> append(Document<?> doc) {
+        Stored stored = documents.compute(doc.id(), (key, existing) -> {
+            if (existing == null || !existing.isLive(System.currentTimeMillis())) {
+                throw new DocumentDoesNotExistException();
+            }
+            if (doc.cas() != 0 && doc.cas() != existing.cas) {
+                throw new CASMismatchException();
+            }
+
+            Object content;
+            if (existing.content instanceof String && doc.content() instanceof String) {
+                content = existing.content + (String) doc.content();
+            } else if (existing.content instanceof byte[] && doc.content() instanceof byte[]) {
+                byte[] appended = Arrays.copyOf((byte[]) existing.content,
+                        ((byte[]) existing.content).length + ((byte[]) doc.content()).length);
+                System.arraycopy(doc.content(), 0, appended, ((byte[]) existing.content).length,
+                        ((byte[]) doc.content()).length);
+                content = appended;
+            } else {
+                throw new TranscodingException("Can't append to a different type of document for id " + key);
+            }
+            return newVersionExpiringAt(existing, content, existing.expiresAt);
+        });
+        return stored.toDocument(doc.id(), doc.getClass());
+    }
+
+    /**
+     * Apply sub-document mutations to a document, all or none of them
+     *
+     * @param id The key of the document
+     * @param cas The CAS the document must have, 0 for any
+     * @param expiry The new expiry in seconds of the document
+     * @param specs The mutations in the order they're applied
+     * @return The results of the mutations and the new CAS of the document
+     */
+    private DocumentFragment<Mutation> mutateIn(String id, long cas, int expiry, List<MutationSpec> specs) {
+        Stored stored = documents.compute(id, (key, existing) -> {
+            if (existing == null || !existing.isLive(System.currentTimeMillis())) {
+                throw new DocumentDoesNotExistException();
+            }
+            if (cas != 0 && cas != existing.cas) {
+                throw new CASMismatchException();
+            }
+
+            ObjectNode root = parseJson(id, existing);
+            for (MutationSpec spec : specs) {
+                spec.apply(id, root);
+            }
+            return newVersion(existing, root.toString(), expiry);
+        });
+
+        List<SubdocOperationResult<Mutation>> results = new ArrayList<>(specs.size());
+        for (MutationSpec spec : specs) {
+            results.add(SubdocOperationResult.createResult(spec.path, spec.mutation, ResponseStatus.SUCCESS, null));
+        }
+        return new DocumentFragment<>(id, stored.cas, null, results);
+    }
+
+    /**
+     * Look up paths in a document
+     *
+     * @param id The key of the document
+     * @param specs The lookups and their paths
+     * @return The results of the lookups and the CAS of the document
+     */
+    private DocumentFragment<Lookup> lookupIn(String id, List<Map.Entry<Lookup, String>> specs) {
+        Stored stored = find(id);
+        if (stored == null) {
+            throw new DocumentDoesNotExistException();
+        }
+
+        ObjectNode root = parseJson(id, stored);
+        List<SubdocOperationResult<Lookup>> results = new ArrayList<>(specs.size());
+        for (Map.Entry<Lookup, String> spec : specs) {
+            JsonNode node = root;
+            for (String name : parsePath(spec.getValue())) {
+                node = node == null ? null : node.get(name);
+            }
+
+            ResponseStatus status = node == null ? ResponseStatus.SUBDOC_PATH_NOT_FOUND : ResponseStatus.SUCCESS;
+            Object value;
+            if (spec.getKey() == Lookup.EXIST) {
+                value = node != null;
+            } else {
+                value = node == null ? null : MAPPER.convertValue(node, Object.class);
+            }
+            results.add(SubdocOperationResult.createResult(spec.getValue(), spec.getKey(), status, value));
+        }
+        return new DocumentFragment<>(id, stored.cas, null, results);
+    }
+
+    private static ObjectNode parseJson(String id, Stored stored) {
+        if (!(stored.content instanceof String)) {
+            throw new DocumentNotJsonException(id);
+        }
+
+        try {
+            JsonNode root = MAPPER.readTree((String) stored.content);
+            if (!root.isObject()) {
+                throw new DocumentNotJsonException(id);
+            }
+            return (ObjectNode) root;
+        } catch (IOException ex) {
+            throw new DocumentNotJsonException(id);
+        }
+    }
+
+    /**
+     * @param path A sub-document path of dictionary names, separated by dots, each of which may be quoted with
+     * backticks and then escapes a backtick with another
+     * @return The names along the path
+     */
+    private static List<String> parsePath(String path) {
+        List<String> names = new ArrayList<>();
+        StringBuilder name = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < path.length(); i++) {
+            char c = path.charAt(i);
+            if (c == '`') {
+                if (quoted && i + 1 < path.length() && path.charAt(i + 1) == '`') {
+                    name.append(c);
+                    i++;
+                } else {
+                    quoted = !quoted;
+                }
+            } else if (c == '.' && !quoted) {
+                names.add(name.toString());
+                name.setLength(0);
+            } else if (c == '[' && !quoted) {
+                throw new UnsupportedOperationException("Array paths aren't supported by the in-memory bucket");
+            } else {
+                name.append(c);
+            }
+        }
+        names.add(name.toString());
+        return names;
+    }
+
+    /**
+     * @param id The key of a document
+     * @return The active copy of the document or null if it doesn't exist, has been removed or has expired
+     */
+    private Stored find(String id) {
+        Stored stored = documents.get(id);
+        return stored != null && stored.isLive(System.currentTimeMillis()) ? stored : null;
+    }
+
+    /**
+     * @param existing The current version of the document, if any
+     * @param content The content of the new version, null if the document is removed
+     * @param expiry The expiry in seconds of the new version
+     * @return The new version, linked to the earlier versions the replica may still see
+     */
+    private Stored newVersion(Stored existing, Object content, int expiry) {
+        return newVersionExpiringAt(existing, content,
+                expiry == 0 ? Long.MAX_VALUE : System.currentTimeMillis() + expiry * 1000L);
+    }
+
+    /**
+     * @param existing The current version of the document, if any
+     * @param content The content of the new version, null if the document is removed
+     * @param expiresAt The time in msec since the epoch the new version expires at
+     * @return The new version, linked to the earlier versions the replica may still see
+     */
+    private Stored newVersionExpiringAt(Stored existing, Object content, long expiresAt) {
+        long now = System.currentTimeMillis();
+        long lag = replicaLagMillis;
+        Stored previous = lag > 0 && existing != null ? existing.trim(now - lag) : null;
+        return new Stored(content, casSequence.incrementAndGet(), expiresAt, now, previous);
+    }
+
+    private static Class<?> documentType(Object[] args, int index) {
+        if (args.length <= index || !(args[index] instanceof Class)) {
+            throw new UnsupportedOperationException("Only typed reads are supported by the in-memory bucket");
+        }
+        return (Class<?>) args[index];
+    }
+
+    /**
+     * A version of a document: its content, as a String for JSON or a byte[] for binary, its CAS, when it expires and
+     * when it was stored. Earlier versions are kept for as long as the replica lags behind.
+     */
+    private static final class Stored {
+
+        private final Object content;
+
+        private final long cas;
+
+        private final long expiresAt;
+
+        private final long storedAt;
+
+        private final Stored previous;
+
+        private Stored(Object content, long cas, long expiresAt, long storedAt, Stored previous) {
+            this.content = content;
+            this.cas = cas;
+            this.expiresAt = expiresAt;
+            this.storedAt = storedAt;
+            this.previous = previous;
+        }
+
+        private boolean isLive(long now) {
+            return content != null && now < expiresAt;
+        }
+
+        /**
+         * @param cutoff Time in msec since the epoch up to which changes have reached the replica
+         * @return The version the replica has or null if the document hasn't reached the replica yet
+         */
+        private Stored getReplicated(long cutoff) {
+            for (Stored version = this; version != null; version = version.previous) {
+                if (version.storedAt <= cutoff) {
+                    return version;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @param cutoff Time in msec since the epoch up to which changes have reached the replica
+         * @return This version without any earlier versions the replica can no longer see
+         */
+        private Stored trim(long cutoff) {
+            if (previous == null) {
+                return this;
+            } else if (storedAt <= cutoff) {
+                return new Stored(content, cas, expiresAt, storedAt, null);
+            }
+            return new Stored(content, cas, expiresAt, storedAt, previous.trim(cutoff));
+        }
+
+        /**
+         * @param id The key of the document
+         * @param type The type of document to read
+         * @return The document
+         */
+        private Document<?> toDocument(String id, Class<?> type) {
+            if (type != RawJsonDocument.class && type != StringDocument.class && type != ByteArrayDocument.class) {
+                throw new UnsupportedOperationException(type.getName() + " isn't supported by the in-memory bucket");
+            }
+
+            int expiry = expiresAt == Long.MAX_VALUE
+                    ? 0
+                    : (int) Math.max(1, (expiresAt - System.currentTimeMillis()) / 1000);
+            if (type == RawJsonDocument.class && content instanceof String) {
+                return RawJsonDocument.create(id, expiry, (String) content, cas);
+            } else if (type == StringDocument.class && content instanceof String) {
+                return StringDocument.create(id, expiry, (String) content, cas);
+            } else if (type == ByteArrayDocument.class && content instanceof byte[]) {
+                return ByteArrayDocument.create(id, expiry, (byte[]) content, cas);
+            }
+            throw new TranscodingException("Flags indicate a different type of document for id " + id);
+        }
+    }
+
+    /**
+     * A sub-document mutation of a path
+     */
+    private static final class MutationSpec {
+
+        private final Mutation mutation;
+
+        private final String path;
+
+        private final JsonNode fragment;
+
+        private final boolean createParents;
+
+        private MutationSpec(Mutation mutation, String path, Object fragment, boolean createParents) {
+            this.mutation = mutation;
+            this.path = path;
+            this.fragment = fragment == null ? null : MAPPER.valueToTree(fragment);
+            this.createParents = createParents;
+        }
+
+        /**
+         * @param id The key of the document
+         * @param root The content of the document, changed in place
+         */
+        private void apply(String id, ObjectNode root) {
+            List<String> names = parsePath(path);
+            ObjectNode parent = root;
+            for (String name : names.subList(0, names.size() - 1)) {
+                JsonNode child = parent.get(name);
+                if (child == null && createParents) {
+                    child = parent.putObject(name);
+                } else if (child == null || !child.isObject()) {
+                    throw new PathNotFoundException(id, path);
+                }
+                parent = (ObjectNode) child;
+            }
+
+            String name = names.get(names.size() - 1);
+            switch (mutation) {
+                case DICT_ADD:
+                    if (parent.has(name)) {
+                        throw new PathExistsException(id, path);
+                    }
+                    parent.set(name, fragment);
+                    break;
+                case DICT_UPSERT:
+                    parent.set(name, fragment);
+                    break;
+                case REPLACE:
+                    if (!parent.has(name)) {
+                        throw new PathNotFoundException(id, path);
+                    }
+                    parent.set(name, fragment);
+                    break;
+                case DELETE:
+                    if (parent.remove(name) == null) {
+                        throw new PathNotFoundException(id, path);
+                    }
+                    break;
+                default:
+                    throw new UnsupportedOperationException(mutation + " isn't supported by the in-memory bucket");
+            }
+        }
+    }
+
+    /**
+     * Collects the mutations of a document and applies them to it when executed
+     */
+    private final class InMemoryMutateIn extends AsyncMutateInBuilder {
+
+        private final String id;
+
+        private final List<MutationSpec> specs = new ArrayList<>();
+
+        private long cas;
+
+        private int expiry;
+
+        private InMemoryMutateIn(String id) {
+            super(null, "sessions", null, null, id);
+            this.id = id;
+        }
+
+        @Override
+        public AsyncMutateInBuilder withCas(long cas) {
+            this.cas = cas;
+            return this;
+        }
+
+        @Override
+        public AsyncMutateInBuilder withExpiry(int expiry) {
+            this.expiry = expiry;
+            return this;
+        }
+
+        @Override
+        public <T> AsyncMutateInBuilder insert(String path, T fragment, boolean createParents) {
+            specs.add(new MutationSpec(Mutation.DICT_ADD, path, fragment, createParents));
+            return this;
+        }
+
+        @Override
+        public <T> AsyncMutateInBuilder upsert(String path, T fragment, boolean createParents) {
+            specs.add(new MutationSpec(Mutation.DICT_UPSERT, path, fragment, createParents));
+            return this;
+        }
+
+        @Override
+        public <T> AsyncMutateInBuilder replace(String path, T fragment) {
+            specs.add(new MutationSpec(Mutation.REPLACE, path, fragment, false));
+            return this;
+        }
+
+        @Override
+        public AsyncMutateInBuilder remove(String path) {
+            specs.add(new MutationSpec(Mutation.DELETE, path, null, false));
+            return this;
+        }
+
+        @Override
+        public Observable<DocumentFragment<Mutation>> execute() {
+            return executeAsync("mutateIn", () -> mutateIn(id, cas, expiry, specs));
+        }
+    }
+
+    /**
+     * Collects the lookups of paths in a document and looks them up when executed
+     */
+    private final class InMemoryLookupIn extends AsyncLookupInBuilder {
+
+        private final String id;
+
+        private final List<Map.Entry<Lookup, String>> specs = new ArrayList<>();
+
+        private InMemoryLookupIn(String id) {
+            super(null, "sessions", null, null, id);
+            this.id = id;
+        }
+
+        @Override
+        public AsyncLookupInBuilder get(String... paths) {
+            for (String path : paths) {
+                specs.add(new AbstractMap.SimpleImmutableEntry<>(Lookup.GET, path));
+            }
+            return this;
+        }
+
+        @Override
+        public AsyncLookupInBuilder exists(String... paths) {
+            for (String path : paths) {
+                specs.add(new AbstractMap.SimpleImmutableEntry<>(Lookup.EXIST, path));
+            }
+            return this;
+        }
+
+        @Override
+        public Observable<DocumentFragment<Lookup>> execute() {
+            return executeAsync("lookupIn", () -> lookupIn(id, specs));
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.cvent.couchbase.session;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A distribution of the latency of bucket operations
+ */
+public abstract class Latency {
+
+    /**
+     * @return The latency in usec of the next operation
+     */
+    public abstract long nextMicros();
+
+    /**
+     * @return No latency at all
+     */
+    public static Latency none() {
+        return fixed(0);
+    }
+
+    /**
+     * @param micros The latency in usec of every operation
+     * @return The distribution
+     */
+    public static Latency fixed(long micros) {
+        return new Latency() {
+            @Override
+            public long nextMicros() {
+                return micros;
+            }
+        };
+    }
+
+    /**
+     * @param minMicros The lowest latency in usec
+     * @param maxMicros The highest latency in usec
+     * @return Latencies evenly distributed between minMicros and maxMicros
+     */
+    public static Latency uniform(long minMicros, long maxMicros) {
+        return new Latency() {
+            @Override
+            public long nextMicros() {
+                return minMicros + (long) (ThreadLocalRandom.current().nextDouble() * (maxMicros - minMicros));
+            }
+        };
+    }
+
+    /**
+     * Latencies with a long tail, as network round trips usually have. A sigma of 0.5 puts the 99th percentile at a
+     * little over 3 times the median, a sigma of 1 puts it at about 10 times the median.
+     *
+     * @param medianMicros The median latency in usec
+     * @param sigma The standard deviation of the log of the latency
+     * @return The distribution
+     */
+    public static Latency logNormal(long medianMicros, double sigma) {
+        return new Latency() {
+            @Override
+            public long nextMicros() {
+                return (long) (medianMicros * Math.exp(sigma * ThreadLocalRandom.current().nextGaussian()));
+            }
+        };
+    }
+
+    /**
+     * @param probability The fraction of operations that stall
+     * @param stallMicros The additional latency in usec of an operation that stalls
+     * @return This distribution with occasional stalls, such as GC pauses or failovers
+     */
+    public Latency withStalls(double probability, long stallMicros) {
+        Latency base = this;
+        return new Latency() {
+            @Override
+            public long nextMicros() {
+                long micros = base.nextMicros();
+                return ThreadLocalRandom.current().nextDouble() < probability ? micros + stallMicros : micros;
+            }
+        };
+    }
+}
@@ -0,0 +1,73 @@
+package com.cvent.couchbase.session;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class LatencyTrackerTest {
+
+    @Test
+    public void keepsInitialValueUntilEnoughLatenciesAreRecorded() {
+        LatencyTracker tracker = new LatencyTracker(0.9, 5000);
+
+        record(tracker, 1, 127);
+
+        assertEquals(5000, tracker.getValue());
+    }
+
+    @Test
+    public void tracksPercentile() {
+        LatencyTracker tracker = new LatencyTracker(0.75, 5000);
+
+        record(tracker, 1, 1024);
+
+        assertEquals(768, tracker.getValue());
+    }
+
+    @Test
+    public void tracksMedianOfPartiallyFilledSamples() {
+        LatencyTracker tracker = new LatencyTracker(0.5, 5000);
+
+        record(tracker, 1, 128);
+
+        assertEquals(64, tracker.getValue());
+    }
+
+    @Test
+    public void tracksMinimumAsLowestPercentile() {
+        LatencyTracker tracker = new LatencyTracker(0, 5000);
+
+        record(tracker, 100, 355);
+
+        assertEquals(100, tracker.getValue());
+    }
+
+    @Test
+    public void tracksMaximumAsHighestPercentile() {
+        LatencyTracker tracker = new LatencyTracker(1, 5000);
+
+        record(tracker, 100, 355);
+
+        assertEquals(355, tracker.getValue());
+    }
+
+    @Test
+    public void forgetsLatenciesOlderThanSamples() {
+        LatencyTracker tracker = new LatencyTracker(0, 5000);
+        record(tracker, 1, 1024);
+
+        //Overwrites every sample recorded before
+        record(tracker, 2000, 3023);
+
+        assertEquals(2000, tracker.getValue());
+    }
+
+    /**
+     * Record latencies counting up from first to last, inclusive
+     */
+    private static void record(LatencyTracker tracker, long first, long last) {
+        for (long micros = first; micros <= last; micros++) {
+            tracker.record(micros);
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package com.cvent.couchbase.session;
+
+import com.cvent.couchbase.session.CouchbaseSessionManager.SessionJson;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SessionCodecTest {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    /**
+     * Larger than any session in these tests
+     */
+    private static final int LARGE_THRESHOLD = 64 * 1024;
+
+    /**
+     * Smaller than any session in these tests
+     */
+    private static final int SMALL_THRESHOLD = 16;
+
+    private final SessionJson session = new SessionJson();
+
+    public SessionCodecTest() {
+        Map<String, Object> attributes = new HashMap<>();
+        attributes.put("user", "alice");
+        attributes.put("visits", 3);
+        attributes.put("admin", false);
+        attributes.put("cart", Arrays.asList("book", "lamp"));
+        attributes.put("address", new HashMap<>(Collections.singletonMap("city", "Paris")));
+        session.setSessionId("abc123");
+        session.setCreationTime(1000L);
+        session.setLastSaved(2000L);
+        session.setMaxInactiveInterval(1800);
+        session.setAttributes(attributes);
+    }
+
+    @Test
+    public void roundTripsJson() throws IOException {
+        assertRoundTrips(new SessionCodec(MAPPER, SessionFormat.JSON, 0));
+    }
+
+    @Test
+    public void roundTripsDeflatedJson() throws IOException {
+        assertRoundTrips(new SessionCodec(MAPPER, SessionFormat.JSON, SMALL_THRESHOLD));
+    }
+
+    @Test
+    public void roundTripsSmile() throws IOException {
+        assertRoundTrips(new SessionCodec(MAPPER, SessionFormat.SMILE, 0));
+    }
+
+    @Test
+    public void roundTripsDeflatedSmile() throws IOException {
+        assertRoundTrips(new SessionCodec(MAPPER, SessionFormat.SMILE, SMALL_THRESHOLD));
+    }
+
+    @Test
+    public void readsEveryFormatWhateverItWrites() throws IOException {
+        List<SessionCodec> codecs = Arrays.asList(
+                new SessionCodec(MAPPER, SessionFormat.JSON, 0),
+                new SessionCodec(MAPPER, SessionFormat.JSON, SMALL_THRESHOLD),
+                new SessionCodec(MAPPER, SessionFormat.SMILE, 0),
+                new SessionCodec(MAPPER, SessionFormat.SMILE, SMALL_THRESHOLD));
+
+        for (SessionCodec writer : codecs) {
+            Object content = writer.encode(session);
+            for (SessionCodec reader : codecs) {
+                assertSession(reader.decode(content, false));
+                assertSession(reader.decode(content, true));
+            }
+        }
+    }
+
+    @Test
+    public void readsJsonStoredAsBinary() throws IOException {
+        SessionCodec codec = new SessionCodec(MAPPER, SessionFormat.SMILE, 0);
+        Object content = new SessionCodec(MAPPER, SessionFormat.JSON, 0).encode(session);
+
+        assertSession(codec.decode(((String) content).getBytes("UTF-8"), false));
+        assertSession(codec.decode(((String) content).getBytes("UTF-8"), true));
+    }
+
+    @Test
+    public void writesJsonAsTextBelowThreshold() throws IOException {
+        Object content = new SessionCodec(MAPPER, SessionFormat.JSON, LARGE_THRESHOLD).encode(session);
+
+        assertTrue(content instanceof String);
+        assertTrue(SessionCodec.isJson(content));
+    }
+
+    @Test
+    public void deflatesJsonAboveThreshold() throws IOException {
+        Object content = new SessionCodec(MAPPER, SessionFormat.JSON, SMALL_THRESHOLD).encode(session);
+
+        assertTrue(content instanceof byte[]);
+        assertEquals(2, ((byte[]) content)[0]);
+        assertFalse(SessionCodec.isJson(content));
+    }
+
+    @Test
+    public void writesSmileBelowThreshold() throws IOException {
+        Object content = new SessionCodec(MAPPER, SessionFormat.SMILE, LARGE_THRESHOLD).encode(session);
+
+        assertEquals(1, ((byte[]) content)[0]);
+    }
+
+    @Test
+    public void deflatesSmileAboveThreshold() throws IOException {
+        Object content = new SessionCodec(MAPPER, SessionFormat.SMILE, SMALL_THRESHOLD).encode(session);
+
+        assertEquals(3, ((byte[]) content)[0]);
+    }
+
+    @Test
+    public void writesLazyAttributesBackAsTheyWereRead() throws IOException {
+        SessionCodec codec = new SessionCodec(MAPPER, SessionFormat.JSON, 0);
+        Object content = codec.encode(session);
+
+        SessionJson lazy = codec.decode(content, true);
+
+        assertTrue(lazy.getAttributes().get("cart") instanceof LazyAttribute);
+        assertEquals(content, codec.encode(lazy));
+    }
+
+    @Test
+    public void fingerprintsLazyAttributeAsTheAttribute() throws IOException {
+        SessionCodec codec = new SessionCodec(MAPPER, SessionFormat.SMILE, 0);
+        SessionJson lazy = codec.decode(codec.encode(session), true);
+
+        for (Map.Entry<String, Object> attribute : session.getAttributes().entrySet()) {
+            assertEquals(codec.fingerprint(attribute.getKey(), attribute.getValue()),
+                    codec.fingerprint(attribute.getKey(), lazy.getAttributes().get(attribute.getKey())));
+        }
+    }
+
+    @Test
+    public void truncatesAttributesInOrderGivenUntilDocumentFits() throws IOException {
+        SessionCodec codec = new SessionCodec(MAPPER, SessionFormat.JSON, 0);
+        addLargeAttributes();
+        Set<String> names = new HashSet<>(session.getAttributes().keySet());
+        Object content = codec.encode(session);
+        Map<String, Integer> sizes = new LinkedHashMap<>();
+        sizes.put("huge", codec.measure("huge", session.getAttributes().get("huge")));
+        sizes.put("large", codec.measure("large", session.getAttributes().get("large")));
+        int limit = SessionCodec.size(content) - 1500;
+
+        Object truncated = codec.truncate(session, content, sizes, limit);
+
+        assertTrue(SessionCodec.size(truncated) <= limit);
+        assertEquals(without(names, "huge"),
+                codec.decode(truncated, false).getAttributes().keySet());
+    }
+
+    @Test
+    public void encodesAgainWhenSizesUnderestimateDocument() throws IOException {
+        SessionCodec codec = new SessionCodec(MAPPER, SessionFormat.JSON, 0);
+        addLargeAttributes();
+        Set<String> names = new HashSet<>(session.getAttributes().keySet());
+        Object content = codec.encode(session);
+        Map<String, Integer> sizes = new LinkedHashMap<>();
+        //Says dropping the smaller attribute is enough
+        sizes.put("large", 1500);
+        sizes.put("huge", 2000);
+        int limit = SessionCodec.size(content) - 1500;
+
+        Object truncated = codec.truncate(session, content, sizes, limit);
+
+        assertTrue(SessionCodec.size(truncated) <= limit);
+        assertEquals(without(names, "huge", "large"),
+                codec.decode(truncated, false).getAttributes().keySet());
+    }
+
+    @Test
+    public void truncatesOnlyTheEncodedCopyOfSession() throws IOException {
+        SessionCodec codec = new SessionCodec(MAPPER, SessionFormat.JSON, 0);
+        addLargeAttributes();
+        Map<String, Object> live = session.getAttributes();
+        Set<String> names = new HashSet<>(live.keySet());
+        Object content = codec.encode(session);
+
+        codec.truncate(session, content, Collections.singletonMap("huge", 2000), SessionCodec.size(content) - 1500);
+
+        assertEquals(names, live.keySet());
+        assertFalse(session.getAttributes().containsKey("huge"));
+    }
+
+    @Test
+    public void treatsUnknownContentAsJson() {
+        //As for a document that was only partially written
+        assertTrue(SessionCodec.isJson(null));
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void failsToSizeUnknownContent() {
+        SessionCodec.size(null);
+    }
+
+    /**
+     * Add a huge attribute of about 2000 chars and a large one of about 1000
+     */
+    private void addLargeAttributes() {
+        session.getAttributes().put("huge", String.join("", Collections.nCopies(2000, "x")));
+        session.getAttributes().put("large", String.join("", Collections.nCopies(1000, "x")));
+    }
+
+    private static Set<String> without(Set<String> names, String... dropped) {
+        Set<String> remaining = new HashSet<>(names);
+        remaining.removeAll(Arrays.asList(dropped));
+        return remaining;
+    }
+
+    private void assertRoundTrips(SessionCodec codec) throws IOException {
+        Object content = codec.encode(session);
+
+        assertSession(codec.decode(content, false));
+        assertSession(codec.decode(content, true));
+    }
+
+    /**
+     * Assert that a decoded session is the one these tests encode, materializing any lazy attributes
+     */
+    private void assertSession(SessionJson decoded) throws IOException {
+        assertEquals(session.getSessionId(), decoded.getSessionId());
+        assertEquals(session.getCreationTime(), decoded.getCreationTime());
+        assertEquals(session.getLastSaved(), decoded.getLastSaved());
+        assertEquals(session.getMaxInactiveInterval(), decoded.getMaxInactiveInterval());
+        assertEquals(session.getAttributes().keySet(), decoded.getAttributes().keySet());
+        for (Map.Entry<String, Object> attribute : decoded.getAttributes().entrySet()) {
+            Object value = attribute.getValue() instanceof LazyAttribute
+                    ? ((LazyAttribute) attribute.getValue()).materialize(MAPPER)
+                    : attribute.getValue();
+            assertEquals(session.getAttributes().get(attribute.getKey()), value);
+        }
+    }
+}
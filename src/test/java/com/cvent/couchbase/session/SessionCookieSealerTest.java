@@ -0,0 +1,115 @@
+package com.cvent.couchbase.session;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SessionCookieSealerTest {
+
+    private static final byte[] SECRET = "0123456789abcdef0123456789abcdef".getBytes(StandardCharsets.UTF_8);
+
+    private static final String CONTENT = "{\"sessionId\":\"abc\",\"attributes\":{\"user\":\"\u00e9mile\"}}";
+
+    private final SessionCookieSealer sealer = new SessionCookieSealer("state", SECRET, 4000);
+
+    @Test
+    public void opensWhatItSealed() {
+        SessionCookieSealer.State state = sealer.open(sealer.seal(CONTENT, "abc", 3), "abc");
+
+        assertNotNull(state);
+        assertEquals(CONTENT, state.getContent());
+        assertEquals(3, state.getGeneration());
+    }
+
+    @Test
+    public void opensBinaryContent() {
+        byte[] content = {1, 2, 3, 0, -1};
+        SessionCookieSealer.State state = sealer.open(sealer.seal(content, "abc", 0), "abc");
+
+        assertNotNull(state);
+        assertArrayEquals(content, (byte[]) state.getContent());
+    }
+
+    @Test
+    public void doesNotOpenTamperedState() {
+        byte[] sealed = Base64.getUrlDecoder().decode(sealer.seal(CONTENT, "abc", 0));
+        for (int i = 0; i < sealed.length; i++) {
+            byte[] tampered = Arrays.copyOf(sealed, sealed.length);
+            tampered[i] ^= 1;
+
+            assertNull("Opened with byte " + i + " flipped",
+                    sealer.open(Base64.getUrlEncoder().withoutPadding().encodeToString(tampered), "abc"));
+        }
+    }
+
+    @Test
+    public void doesNotOpenTruncatedOrMalformedState() {
+        String sealed = sealer.seal(CONTENT, "abc", 0);
+
+        assertNull(sealer.open(sealed.substring(0, sealed.length() - 4), "abc"));
+        assertNull(sealer.open("", "abc"));
+        assertNull(sealer.open("not base64!", "abc"));
+    }
+
+    @Test
+    public void doesNotOpenStateOfAnotherSession() {
+        assertNull(sealer.open(sealer.seal(CONTENT, "abc", 0), "abd"));
+    }
+
+    @Test
+    public void doesNotOpenStateSealedWithAnotherSecret() {
+        byte[] otherSecret = Arrays.copyOf(SECRET, SECRET.length);
+        otherSecret[0] ^= 1;
+        SessionCookieSealer other = new SessionCookieSealer("state", otherSecret, 4000);
+
+        assertNull(sealer.open(other.seal(CONTENT, "abc", 0), "abc"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsShortSecret() {
+        new SessionCookieSealer("state", new byte[15], 4000);
+    }
+
+    @Test
+    public void stateIsNotCurrentOnceSessionIsInvalidated() {
+        String sealed = sealer.seal(CONTENT, "abc", 2);
+        SessionCookieSealer.State state = sealer.open(sealed, "abc");
+        assertTrue(SessionCookieSealer.isCurrent(state.getGeneration(), 0));
+
+        //Replayed after the session was invalidated
+        SessionCookieSealer.State replayed = sealer.open(sealed, "abc");
+        assertNotNull(replayed);
+        assertFalse(SessionCookieSealer.isCurrent(replayed.getGeneration(), SessionCookieSealer.REVOKED));
+    }
+
+    @Test
+    public void stateIsNotCurrentOnceSessionMovedIntoCouchbase() {
+        SessionCookieSealer.State state = sealer.open(sealer.seal(CONTENT, "abc", 2), "abc");
+
+        assertTrue(SessionCookieSealer.isCurrent(state.getGeneration(), 2));
+        assertFalse(SessionCookieSealer.isCurrent(state.getGeneration(), 3));
+    }
+
+    @Test
+    public void fitsMatchesLengthOfSealedState() {
+        for (int length = 0; length < 200; length++) {
+            char[] chars = new char[length];
+            Arrays.fill(chars, length % 2 == 0 ? 'a' : '\u00e9');
+            String content = new String(chars);
+            for (int max = 100; max < 500; max += 7) {
+                SessionCookieSealer limited = new SessionCookieSealer("state", SECRET, max);
+
+                assertEquals("Length " + length + " max " + max, limited.seal(content, "abc", 0).length() <= max,
+                        limited.fits(content));
+            }
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package com.cvent.couchbase.session;
+
+import com.couchbase.client.java.document.StringDocument;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SessionExpiryIndexTest {
+
+    private static final String KEY_PREFIX = "expiry::";
+
+    private static final int PARTITIONS = 4;
+
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    /**
+     * Past the first lease period of a node, once it takes the partitions of other nodes
+     */
+    private static final long TAKEOVER_MILLIS = TimeUnit.SECONDS.toMillis(20);
+
+    private final InMemoryBucket bucket = new InMemoryBucket();
+
+    /**
+     * The sessions handed to the expirer of each index, in order
+     */
+    private final List<Map<String, Set<Long>>> expired = Collections.synchronizedList(new ArrayList<>());
+
+    private final long start = System.currentTimeMillis();
+
+    @Test
+    public void takesPartitionsAssignedToNode() {
+        SessionExpiryIndex first = index(0, 2);
+        SessionExpiryIndex second = index(1, 2);
+
+        first.run(start);
+        second.run(start);
+
+        assertHeld(first, 0, 2);
+        assertHeld(second, 1, 3);
+    }
+
+    @Test
+    public void takesPartitionsOfNodeThatIsDownOnceItsLeaseExpired() {
+        SessionExpiryIndex first = index(0, 2);
+        SessionExpiryIndex second = index(1, 2);
+        first.run(start);
+        second.run(start);
+
+        //The second node stops without letting its partitions go, until its leases expire
+        first.run(start + TAKEOVER_MILLIS);
+        assertHeld(first, 0, 2);
+        expireLeases(1, 3);
+        first.run(start + 2 * TAKEOVER_MILLIS);
+
+        assertHeld(first, 0, 1, 2, 3);
+    }
+
+    @Test
+    public void givesPartitionsBackToNodeThatIsBack() {
+        SessionExpiryIndex first = index(0, 2);
+        first.run(start + TAKEOVER_MILLIS);
+        assertHeld(first, 0, 1, 2, 3);
+
+        SessionExpiryIndex second = index(1, 2);
+        second.run(start);
+        assertHeld(second);
+        first.run(start + 2 * TAKEOVER_MILLIS);
+        second.run(start + TAKEOVER_MILLIS);
+
+        assertHeld(first, 0, 2);
+        assertHeld(second, 1, 3);
+    }
+
+    @Test
+    public void handsSessionsToExpirerOnceTheirBucketHasPassed() {
+        SessionExpiryIndex index = index(0, 1);
+        index.track("a", 5, start);
+        index.track("b", 7, start + 1000);
+
+        runFor(index, index.getGraceSeconds() + 5);
+
+        assertEquals(expiring("a", 5L, "b", 7L), merged());
+        //Every index document is removed once scanned, the leases are left
+        assertEquals(PARTITIONS, bucket.size());
+    }
+
+    @Test
+    public void keepsLatestTouchOfSessionNotedBetweenAppends() {
+        SessionExpiryIndex index = index(0, 1);
+        index.track("a", 5, start);
+        index.track("a", 6, start + 500);
+        index.track("a", 4, start - 500);
+
+        runFor(index, index.getGraceSeconds() + 5);
+
+        assertEquals(expiring("a", 6L), merged());
+    }
+
+    @Test
+    public void handsEveryCasSessionWasIndexedWithInBucket() {
+        SessionExpiryIndex index = index(0, 1);
+        long now = start / 1000 * 1000;
+        index.track("a", 5, now + 10);
+        index.run(now);
+        index.track("a", 6, now + 20);
+
+        runFor(index, index.getGraceSeconds() + 5);
+
+        assertEquals(1, expired.size());
+        assertEquals(new HashSet<>(Arrays.asList(5L, 6L)), expired.get(0).get("a"));
+    }
+
+    @Test
+    public void handsSessionsAgainWhenExpirerFails() {
+        boolean[] failed = new boolean[1];
+        SessionExpiryIndex index = new SessionExpiryIndex(bucket.getBucket(), KEY_PREFIX, 1, PARTITIONS, 0, 1, 100,
+                TIMEOUT_MILLIS, sessions -> {
+                    if (!failed[0]) {
+                        failed[0] = true;
+                        throw new IllegalStateException("Injected failure");
+                    }
+                    expired.add(sessions);
+                });
+        index.track("a", 5, start);
+
+        //Noted again in the bucket of the failure, reached once the scan has caught up
+        runFor(index, 2 * index.getGraceSeconds() + 10);
+
+        assertTrue(failed[0]);
+        assertEquals(expiring("a", 5L), merged());
+    }
+
+    @Test
+    public void handsSessionsToExpirerInBatches() {
+        SessionExpiryIndex index = new SessionExpiryIndex(bucket.getBucket(), KEY_PREFIX, 1, 1, 0, 1, 2,
+                TIMEOUT_MILLIS, expired::add);
+        for (int i = 0; i < 5; i++) {
+            index.track("session" + i, i, start);
+        }
+
+        runFor(index, index.getGraceSeconds() + 5);
+
+        assertEquals(3, expired.size());
+        assertEquals(5, merged().size());
+    }
+
+    /**
+     * @return An index over the partitions of these tests with 1 second buckets
+     */
+    private SessionExpiryIndex index(int nodeIndex, int nodeCount) {
+        return new SessionExpiryIndex(bucket.getBucket(), KEY_PREFIX, 1, PARTITIONS, nodeIndex, nodeCount, 100,
+                TIMEOUT_MILLIS, expired::add);
+    }
+
+    /**
+     * Run an index once a second, as its scheduler does, for the given number of seconds from the start of the test
+     */
+    private void runFor(SessionExpiryIndex index, int seconds) {
+        for (long now = start; now <= start + TimeUnit.SECONDS.toMillis(seconds); now += 1000) {
+            index.run(now);
+        }
+    }
+
+    /**
+     * Remove the leases on the given partitions, as if they expired
+     */
+    private void expireLeases(int... partitions) {
+        for (int partition : partitions) {
+            bucket.getBucket().remove(KEY_PREFIX + "lease::" + partition, StringDocument.class);
+        }
+    }
+
+    /**
+     * @return All the sessions handed to the expirer
+     */
+    private Map<String, Set<Long>> merged() {
+        Map<String, Set<Long>> merged = new HashMap<>();
+        for (Map<String, Set<Long>> sessions : expired) {
+            sessions.forEach((id, cas) -> merged.computeIfAbsent(id, k -> new HashSet<>()).addAll(cas));
+        }
+        return merged;
+    }
+
+    /**
+     * @param sessions Pairs of session id and CAS
+     * @return The sessions mapped to their CAS
+     */
+    private static Map<String, Set<Long>> expiring(Object... sessions) {
+        Map<String, Set<Long>> expiring = new HashMap<>();
+        for (int i = 0; i < sessions.length; i += 2) {
+            expiring.computeIfAbsent((String) sessions[i], k -> new HashSet<>()).add((Long) sessions[i + 1]);
+        }
+        return expiring;
+    }
+
+    private static void assertHeld(SessionExpiryIndex index, int... partitions) {
+        Set<Integer> held = new HashSet<>();
+        for (int partition : partitions) {
+            held.add(partition);
+        }
+
+        for (int partition = 0; partition < PARTITIONS; partition++) {
+            if (held.contains(partition)) {
+                assertTrue("Partition " + partition, index.isHeld(partition));
+            } else {
+                assertFalse("Partition " + partition, index.isHeld(partition));
+            }
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package com.cvent.couchbase.session;
+
+import com.couchbase.client.java.error.CASMismatchException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SessionMergeTest {
+
+    private static final SessionMerge.Fingerprinter FINGERPRINTER = (name, value) -> Objects.hashCode(value);
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    /**
+     * The attributes as both requests read them
+     */
+    private final Map<String, Object> read = new HashMap<>();
+
+    /**
+     * The attributes stored by the other write
+     */
+    private final Map<String, Object> latest = new HashMap<>();
+
+    /**
+     * The attributes as this request left them
+     */
+    private final Map<String, Object> ours = new HashMap<>();
+
+    private final Map<String, Boolean> changes = new HashMap<>();
+
+    public SessionMergeTest() {
+        read.put("cart", "2 items");
+        read.put("user", "alice");
+        latest.putAll(read);
+        ours.putAll(read);
+    }
+
+    @Test
+    public void keepsOurChangeToAttributeOnlyWeChanged() throws IOException {
+        setOurs("cart", "3 items");
+        latest.put("user", "bob");
+
+        merge(SessionConflictResolver.FAIL);
+
+        assertEquals("3 items", latest.get("cart"));
+        assertEquals("bob", latest.get("user"));
+        assertTrue(changes.get("cart"));
+    }
+
+    @Test
+    public void addsAttributeOnlyWeSet() throws IOException {
+        setOurs("locale", "fr");
+
+        merge(SessionConflictResolver.FAIL);
+
+        assertEquals("fr", latest.get("locale"));
+        assertFalse(changes.get("locale"));
+    }
+
+    @Test
+    public void keepsOursWhenBothChangedAndOursWins() throws IOException {
+        setOurs("cart", "3 items");
+        latest.put("cart", "1 item");
+
+        merge(SessionConflictResolver.OURS);
+
+        assertEquals("3 items", latest.get("cart"));
+    }
+
+    @Test
+    public void keepsTheirsWhenBothChangedAndTheirsWins() throws IOException {
+        setOurs("cart", "3 items");
+        latest.put("cart", "1 item");
+
+        merge(SessionConflictResolver.THEIRS);
+
+        assertEquals("1 item", latest.get("cart"));
+    }
+
+    @Test(expected = CASMismatchException.class)
+    public void failsWhenBothChangedAndConflictsFail() throws IOException {
+        setOurs("cart", "3 items");
+        latest.put("cart", "1 item");
+
+        merge(SessionConflictResolver.FAIL);
+    }
+
+    @Test
+    public void resolvesAttributeBothChangedOnce() throws IOException {
+        setOurs("cart", "3 items");
+        latest.put("cart", "1 item");
+        int[] calls = new int[1];
+
+        merge((name, value, theirs) -> {
+            calls[0]++;
+            assertEquals("cart", name);
+            assertEquals("3 items", value);
+            assertEquals("1 item", theirs);
+            return "4 items";
+        });
+
+        assertEquals(1, calls[0]);
+        assertEquals("4 items", latest.get("cart"));
+    }
+
+    @Test
+    public void removesAttributeOnlyWeRemoved() throws IOException {
+        setOurs("cart", null);
+
+        merge(SessionConflictResolver.FAIL);
+
+        assertFalse(latest.containsKey("cart"));
+        assertTrue(changes.get("cart"));
+    }
+
+    @Test
+    public void resolvesAttributeWeChangedAndTheyRemoved() throws IOException {
+        setOurs("cart", "3 items");
+        latest.remove("cart");
+
+        merge(SessionConflictResolver.THEIRS);
+
+        assertFalse(latest.containsKey("cart"));
+        assertFalse(changes.get("cart"));
+    }
+
+    @Test
+    public void keepsAttributeWeChangedAndTheyRemovedWhenOursWins() throws IOException {
+        setOurs("cart", "3 items");
+        latest.remove("cart");
+
+        merge(SessionConflictResolver.OURS);
+
+        assertEquals("3 items", latest.get("cart"));
+        assertFalse(changes.get("cart"));
+    }
+
+    @Test
+    public void resolvesAttributeWeRemovedAndTheyChanged() throws IOException {
+        setOurs("cart", null);
+        latest.put("cart", "1 item");
+
+        merge(SessionConflictResolver.OURS);
+
+        assertFalse(latest.containsKey("cart"));
+        assertTrue(changes.get("cart"));
+    }
+
+    @Test
+    public void keepsAttributeWeRemovedAndTheyChangedWhenTheirsWins() throws IOException {
+        setOurs("cart", null);
+        latest.put("cart", "1 item");
+
+        merge(SessionConflictResolver.THEIRS);
+
+        assertEquals("1 item", latest.get("cart"));
+    }
+
+    @Test
+    public void resolvesAttributeWhoseOriginalIsUnknown() throws IOException {
+        setOurs("cart", "3 items");
+
+        //As when the attribute was exposed before the session was written
+        SessionMerge.merge(latest, ours, changes, name -> null, FINGERPRINTER, SessionConflictResolver.THEIRS, MAPPER);
+
+        assertEquals("2 items", latest.get("cart"));
+    }
+
+    @Test
+    public void leavesAttributesWeDidNotChange() throws IOException {
+        latest.put("user", "bob");
+        latest.remove("cart");
+
+        merge(SessionConflictResolver.FAIL);
+
+        assertEquals("bob", latest.get("user"));
+        assertNull(latest.get("cart"));
+    }
+
+    /**
+     * Change or remove an attribute in this request
+     */
+    private void setOurs(String name, Object value) {
+        if (value == null) {
+            ours.remove(name);
+        } else {
+            ours.put(name, value);
+        }
+        changes.put(name, read.containsKey(name));
+    }
+
+    private void merge(SessionConflictResolver resolver) throws IOException {
+        SessionMerge.merge(latest, ours, changes, name -> (long) Objects.hashCode(read.get(name)), FINGERPRINTER,
+                resolver, MAPPER);
+    }
+}
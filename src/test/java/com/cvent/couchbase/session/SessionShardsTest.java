@@ -0,0 +1,156 @@
+package com.cvent.couchbase.session;
+
+import com.couchbase.client.java.Bucket;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SessionShardsTest {
+
+    private static final int SESSIONS = 10000;
+
+    private final List<Bucket> buckets = new ArrayList<>();
+
+    public SessionShardsTest() {
+        for (int i = 0; i < 4; i++) {
+            buckets.add(new InMemoryBucket().getBucket());
+        }
+    }
+
+    @Test
+    public void mapsTaggedIdToItsShard() {
+        SessionShards shards = shards(4);
+
+        assertEquals(0, shards.getShard("0_abc"));
+        assertEquals(3, shards.getShard("3_abc"));
+        assertSame(buckets.get(2), shards.getBucket("2_abc"));
+    }
+
+    @Test
+    public void mapsIdWithoutValidTagWithRing() {
+        SessionShards shards = shards(4);
+
+        //No tag before the separator, a tag too long to be one and no number
+        for (String id : new String[]{"_abc", "abcde_fgh", "!!_abc"}) {
+            String tagged = shards.tag(id);
+
+            assertTrue(id, tagged.endsWith(SessionShards.TAG_SEPARATOR + id));
+            assertEquals(id, shards.getShard(tagged), shards.getShard(id));
+        }
+    }
+
+    @Test
+    public void mapsIdTaggedWithShardThatDoesNotExistWithRing() {
+        int shard = shards(3).getShard("3_abc");
+
+        assertTrue("Mapped to " + shard, shard >= 0 && shard < 3);
+    }
+
+    @Test
+    public void tagsNewIdWithShardRingMapsItTo() {
+        SessionShards shards = shards(4);
+
+        for (int i = 0; i < 100; i++) {
+            String id = "session" + i;
+            String tagged = shards.tag(id);
+
+            assertTrue(tagged.endsWith(SessionShards.TAG_SEPARATOR + id));
+            assertEquals(shards.getShard(id), shards.getShard(tagged));
+            //Tagged ids are left as they are
+            assertEquals(tagged, shards.tag(tagged));
+        }
+    }
+
+    @Test
+    public void keepsTaggedIdOnItsShardWhenShardIsAdded() {
+        String tagged = shards(3).tag("abc");
+
+        assertEquals(shards(3).getShard(tagged), shards(4).getShard(tagged));
+    }
+
+    @Test
+    public void movesOnlyShareOfNewShardWhenShardIsAdded() {
+        SessionShards before = shards(3);
+        SessionShards after = shards(4);
+
+        int moved = 0;
+        for (int i = 0; i < SESSIONS; i++) {
+            String id = "session" + i;
+            if (before.getShard(id) != after.getShard(id)) {
+                //Only to the new shard, never between the ones that were there before
+                assertEquals(3, after.getShard(id));
+                moved++;
+            }
+        }
+
+        assertTrue("Moved " + moved, moved > SESSIONS * 0.15 && moved < SESSIONS * 0.35);
+    }
+
+    @Test
+    public void spreadsSessionsAcrossShards() {
+        SessionShards shards = shards(4);
+
+        int[] counts = new int[4];
+        for (int i = 0; i < SESSIONS; i++) {
+            counts[shards.getShard("session" + i)]++;
+        }
+
+        for (int count : counts) {
+            assertTrue("Shard has " + count, count > SESSIONS * 0.15 && count < SESSIONS * 0.35);
+        }
+    }
+
+    @Test
+    public void findsNoPreviousBucketWithoutPreviousShards() {
+        assertNull(shards(4).getPreviousBucket("session"));
+    }
+
+    @Test
+    public void findsPreviousBucketOfSessionThatMoved() {
+        SessionShards previous = shards(3);
+        SessionShards shards = shards(4);
+        shards.setPrevious(previous);
+
+        for (int i = 0; i < SESSIONS; i++) {
+            String id = "session" + i;
+            if (previous.getShard(id) == shards.getShard(id)) {
+                assertNull(shards.getPreviousBucket(id));
+            } else {
+                assertSame(previous.getBucket(id), shards.getPreviousBucket(id));
+            }
+        }
+    }
+
+    @Test
+    public void findsNoPreviousBucketOfTaggedSession() {
+        SessionShards shards = shards(4);
+        shards.setPrevious(shards(3));
+
+        assertNull(shards.getPreviousBucket("1_abc"));
+    }
+
+    @Test
+    public void forgetsPreviousShards() {
+        SessionShards shards = shards(4);
+        shards.setPrevious(shards(3));
+
+        shards.setPrevious(null);
+
+        for (int i = 0; i < 100; i++) {
+            assertNull(shards.getPreviousBucket("session" + i));
+        }
+    }
+
+    /**
+     * @param count The number of buckets
+     * @return Shards over the first count buckets of these tests
+     */
+    private SessionShards shards(int count) {
+        return new SessionShards(buckets.subList(0, count));
+    }
+}
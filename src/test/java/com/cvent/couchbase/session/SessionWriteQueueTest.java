@@ -0,0 +1,254 @@
+package com.cvent.couchbase.session;
+
+import com.couchbase.client.java.document.RawJsonDocument;
+import com.cvent.couchbase.session.SessionWriteQueue.PendingWrite;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SessionWriteQueueTest {
+
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    /**
+     * How long the first write sent by a stalling queue takes
+     */
+    private static final long STALL_MILLIS = 500;
+
+    private final InMemoryBucket bucket = new InMemoryBucket();
+
+    private final List<PendingWrite> written = Collections.synchronizedList(new ArrayList<>());
+
+    private final List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+
+    /**
+     * Counted down once the first write has been sent
+     */
+    private final CountDownLatch firstSent = new CountDownLatch(1);
+
+    /**
+     * The number of operations sent to the bucket
+     */
+    private final AtomicInteger sent = new AtomicInteger();
+
+    private SessionWriteQueue queue;
+
+    @After
+    public void stop() throws InterruptedException {
+        if (queue != null) {
+            queue.stop(TIMEOUT_MILLIS);
+        }
+    }
+
+    @Test
+    public void writesSessionInOrderSubmitted() throws Exception {
+        bucket.setLatency(Latency.uniform(0, 5000));
+        start(100, OverflowPolicy.BLOCK, 0, 1);
+
+        List<PendingWrite> writes = new ArrayList<>();
+        PendingWrite base = null;
+        for (int i = 0; i < 20; i++) {
+            base = write("a", i, base);
+            writes.add(base);
+            queue.submit(base);
+        }
+        queue.await("a");
+
+        assertEquals(writes, written);
+        assertTrue(failures.isEmpty());
+        assertEquals(content(19), stored("a"));
+        long previous = 0;
+        for (PendingWrite write : writes) {
+            long cas = write.getResult().get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            assertTrue(cas > previous);
+            previous = cas;
+        }
+    }
+
+    @Test
+    public void blocksSubmitWhileQueueIsFull() throws Exception {
+        stallFirstWrite();
+        start(1, OverflowPolicy.BLOCK, 0, 1);
+        PendingWrite first = write("a", 0, null);
+        queue.submit(first);
+        assertTrue(firstSent.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+
+        //One write waits to be let in flight and one fills the queue, so the last one can't be queued
+        List<PendingWrite> writes = Arrays.asList(write("b", 0, null), write("c", 0, null), write("d", 0, null));
+        Thread submitter = new Thread(() -> writes.forEach(queue::submit));
+        submitter.start();
+        submitter.join(STALL_MILLIS / 5);
+
+        assertTrue(submitter.isAlive());
+        assertFalse(first.getResult().isDone());
+
+        submitter.join(TIMEOUT_MILLIS);
+        for (PendingWrite write : writes) {
+            write.getResult().get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        assertTrue(failures.isEmpty());
+        assertEquals(content(0), stored("d"));
+    }
+
+    @Test
+    public void dropsOldestQueuedWriteWhenQueueIsFull() throws Exception {
+        stallFirstWrite();
+        start(1, OverflowPolicy.DROP_OLDEST, 0, 1);
+        PendingWrite first = write("a", 0, null);
+        queue.submit(first);
+        assertTrue(firstSent.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+
+        List<PendingWrite> writes = Arrays.asList(write("b", 0, null), write("c", 0, null), write("d", 0, null));
+        writes.forEach(queue::submit);
+
+        assertFalse(first.getResult().isDone());
+        for (PendingWrite write : writes) {
+            //A dropped write still completes, with the CAS the document had before it
+            write.getResult().get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        assertEquals(1, failures.size());
+        assertTrue(failures.get(0) instanceof RejectedExecutionException);
+        assertEquals(content(0), stored("a"));
+        assertEquals(content(0), stored("d"));
+    }
+
+    @Test
+    public void writesSynchronouslyWhenQueueIsFull() throws Exception {
+        stallFirstWrite();
+        start(1, OverflowPolicy.SYNC, 0, 1);
+        PendingWrite first = write("a", 0, null);
+        queue.submit(first);
+        assertTrue(firstSent.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+
+        PendingWrite last = write("d", 0, null);
+        Arrays.asList(write("b", 0, null), write("c", 0, null), last).forEach(queue::submit);
+
+        assertTrue(last.getResult().isDone());
+        assertFalse(first.getResult().isDone());
+        assertEquals(content(0), stored("d"));
+    }
+
+    @Test
+    public void writesSynchronouslyOnceStopped() throws Exception {
+        start(1, OverflowPolicy.BLOCK, 0, 1);
+        queue.stop(TIMEOUT_MILLIS);
+
+        PendingWrite write = write("a", 0, null);
+        queue.submit(write);
+
+        assertTrue(write.getResult().isDone());
+        assertEquals(content(0), stored("a"));
+    }
+
+    @Test
+    public void coalescesWritesBasedOnEarlierWriteInBatch() throws Exception {
+        countOperations();
+        start(100, OverflowPolicy.BLOCK, 200, 10);
+        PendingWrite first = write("a", 0, null);
+        PendingWrite second = write("a", 1, first);
+        PendingWrite third = write("a", 2, second);
+        PendingWrite other = write("b", 0, null);
+
+        Arrays.asList(first, second, other, third).forEach(queue::submit);
+        queue.await("a");
+        queue.await("b");
+
+        assertEquals(2, sent.get());
+        //Sent together, so they may complete in either order
+        assertEquals(new HashSet<>(Arrays.asList(other, third)), new HashSet<>(written));
+        long cas = third.getResult().get();
+        assertEquals(cas, (long) first.getResult().get());
+        assertEquals(cas, (long) second.getResult().get());
+        assertEquals(content(2), stored("a"));
+    }
+
+    @Test
+    public void sendsWritesReadFromCouchbaseSeparately() throws Exception {
+        countOperations();
+        start(100, OverflowPolicy.BLOCK, 200, 10);
+        PendingWrite first = write("a", 0, null);
+        PendingWrite second = write("a", 1, null);
+
+        Arrays.asList(first, second).forEach(queue::submit);
+        queue.await("a");
+
+        assertEquals(2, sent.get());
+        assertEquals(Arrays.asList(first, second), written);
+        assertEquals(content(1), stored("a"));
+    }
+
+    /**
+     * Count the operations sent, which take no time
+     */
+    private void countOperations() {
+        bucket.setLatency(new Latency() {
+            @Override
+            public long nextMicros() {
+                sent.incrementAndGet();
+                return 0;
+            }
+        });
+    }
+
+    /**
+     * Make the first write sent take STALL_MILLIS, and every other operation none
+     */
+    private void stallFirstWrite() {
+        bucket.setLatency(new Latency() {
+            @Override
+            public long nextMicros() {
+                if (sent.getAndIncrement() == 0) {
+                    firstSent.countDown();
+                    return TimeUnit.MILLISECONDS.toMicros(STALL_MILLIS);
+                }
+                return 0;
+            }
+        });
+    }
+
+    private void start(int capacity, OverflowPolicy policy, long batchWindowMillis, int maxBatchSize) {
+        queue = new SessionWriteQueue(key -> bucket.getBucket().async(), capacity, policy, TIMEOUT_MILLIS,
+                batchWindowMillis, maxBatchSize, new SessionWriteQueue.Listener() {
+                    @Override
+                    public void written(PendingWrite write, long cas) {
+                        written.add(write);
+                    }
+
+                    @Override
+                    public void failed(PendingWrite write, Throwable error) {
+                        failures.add(error);
+                    }
+                });
+        queue.start();
+    }
+
+    /**
+     * @param key The key of the session document
+     * @param version Identifies the content written
+     * @param base The write the session was read from, or null if it was read from couchbase
+     * @return A write of the session
+     */
+    private static PendingWrite write(String key, int version, PendingWrite base) {
+        return new PendingWrite(key, content(version), 0, 0, base, null);
+    }
+
+    private static String content(int version) {
+        return "{\"version\":" + version + "}";
+    }
+
+    private String stored(String key) {
+        return bucket.getBucket().get(key, RawJsonDocument.class).content();
+    }
+}